@@ -1,26 +1,81 @@
 from datetime import datetime
+import struct
+import sys
 
 import pyglow
 
-terminate = 0
-while not terminate:
-    year = input()
-    month = input()
-    day = input()
-    hour = input()
-    minute = input()
-    latitude = input()
-    longitude = input()
-    altitude = input()
-    terminate = int(input())
+# Each request holds the number of points, the year, month, day, hour and minute, and then the latitude, longitude
+# and altitude of each point. Each reply holds the electron density at each point. Several requests may be sent
+# before the first reply is read. The program exits when its input is closed.
+#
+# Requests and replies are lines of text, unless the first line is "protocol binary". Then the line is echoed back,
+# and each message after that is a little endian int32 giving its length in bytes, followed by the message. A request
+# is six int32s followed by the float64 coordinates, and a reply is a float64 for each point.
 
-    time = datetime(int(year), int(month), int(day), int(hour), int(minute))
+HANDSHAKE = b"protocol binary"
 
-    pt = pyglow.Point(time, float(latitude), float(longitude), float(altitude))
-    pt.run_iri() 
 
-    print(pt.ne, flush=True)
+def densities(time, coordinates):
+    result = []
 
-    if terminate:
-        break
+    for i in range(0, len(coordinates), 3):
+        pt = pyglow.Point(time, coordinates[i], coordinates[i + 1], coordinates[i + 2])
+        pt.run_iri()
 
+        result.append(pt.ne)
+
+    return result
+
+
+def run_text(lines):
+    for line in lines:
+        values = line.split()
+
+        if not values:
+            continue
+
+        count = int(values[0])
+        time = datetime(*(int(value) for value in values[1:6]))
+        coordinates = [float(value) for value in values[6:6 + 3 * count]]
+
+        print(" ".join(str(density) for density in densities(time, coordinates)), flush=True)
+
+
+def read_exactly(stream, length):
+    data = stream.read(length)
+    return data if len(data) == length else None
+
+
+def run_binary(stream, output):
+    while True:
+        header = read_exactly(stream, 4)
+        if header is None:
+            break
+
+        (length,) = struct.unpack("<i", header)
+        message = read_exactly(stream, length)
+        if message is None:
+            break
+
+        count, year, month, day, hour, minute = struct.unpack_from("<6i", message)
+        coordinates = struct.unpack_from("<%dd" % (3 * count), message, 24)
+
+        output.write(struct.pack("<i%dd" % count, 8 * count, *densities(datetime(year, month, day, hour, minute), coordinates)))
+        output.flush()
+
+
+first = sys.stdin.buffer.readline()
+
+if first.strip() == HANDSHAKE:
+    sys.stdout.buffer.write(HANDSHAKE + b"\n")
+    sys.stdout.buffer.flush()
+
+    run_binary(sys.stdin.buffer, sys.stdout.buffer)
+else:
+    def lines():
+        yield first.decode()
+
+        for line in sys.stdin.buffer:
+            yield line.decode()
+
+    run_text(lines())
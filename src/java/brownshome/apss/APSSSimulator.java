@@ -2,12 +2,18 @@ package brownshome.apss;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.function.Consumer;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -31,6 +37,50 @@ public class APSSSimulator {
 		options.addOption("mass", true, "Mass (kg)");
 		options.addOption("diam", true, "The cable diameter (m)");
 		options.addOption("cond", true, "The cable conductivity (ohm^-1 * m^-1)");
+		options.addOption("integrator", true, "The integrator to use (rk4, dp45, encke)");
+		options.addOption("step", true, "The simulation time step, or the initial step for adaptive integrators (s)");
+		options.addOption("patol", true, "Absolute position tolerance for adaptive integrators (m)");
+		options.addOption("prtol", true, "Relative position tolerance for adaptive integrators");
+		options.addOption("vatol", true, "Absolute velocity tolerance for adaptive integrators (m/s)");
+		options.addOption("vrtol", true, "Relative velocity tolerance for adaptive integrators");
+		options.addOption("rectify", true, "Deviation from the reference orbit, as a fraction of the radius, at which the encke integrator rectifies");
+		options.addOption("prefetch", true, "Request the plasma density every prefetch seconds along the predicted trajectory ahead "
+				+ "of the satellite, and interpolate in between");
+		options.addOption("envrate", true, "Sample the magnetic field and densities every envrate seconds and interpolate in between");
+		options.addOption("length", true, "The length of the simulation (hours)");
+		options.addOption("epoch", true, "The date at the start of the simulation, eg. 2017-07-02T12:00:00Z");
+		options.addOption("field", true, "The magnetic field model (wmm, wmm:<degree> for the model truncated to a degree, grid or "
+				+ "grid:<spacing> for the model sampled on a grid of the given spacing in degrees, dipole)");
+		options.addOption("fieldrefresh", true, "The time between updates to the date of the magnetic field model (hours)");
+		options.addOption("sweep", "Run every combination of the comma separated values given to dir, mass, diam, cond, power, currentlimit, "
+				+ "bias, e, height, inc, argp, anomaly and raan");
+		options.addOption("power", true, "Emitter power limit (W), defaults to " + Emitter.POWER_LIMIT + ", Infinity for no limit");
+		options.addOption("currentlimit", true, "Emitter current limit (A), defaults to " + Emitter.CURRENT_LIMIT + ", Infinity for no limit");
+		options.addOption("bias", true, "Emitter set bias (V), if not given the bias is adjusted to the limits");
+		options.addOption("e", true, "Eccentricity");
+		options.addOption("argp", true, "Argument of periapsis (radians)");
+		options.addOption("anomaly", true, "True anomaly (radians)");
+		options.addOption("raan", true, "Longitude of the ascending node (radians)");
+		options.addOption("threads", true, "The number of simulations to run at once in a sweep");
+		options.addOption("plasma", true, "The electron density model (iri, grid for the grid in " + GriddedPlasmaModel.DEFAULT_FILE
+				+ " or grid:<file>, see PlasmaGridBuilder, chapman for the analytic model or chapman:<parameters>, see PlasmaModelCalibration)");
+		options.addOption("plasmaworkers", true, "The number of copies of the plasma density model to run at once, "
+				+ "defaults to the number of processors");
+		options.addOption("plasmaprotocol", true, "The format used to talk to the plasma density model, binary (default) or text");
+		options.addOption("out", true, "The output file");
+		options.addOption("format", true, "The format of the output file of a single run, csv (default), binary, see BinaryStateSink, "
+				+ "or columnar, see ColumnarStateSink and TrajectoryToCsv");
+		options.addOption("outputbuffer", true, "The number of samples that can wait to be written on another thread, 0 to write them "
+				+ "as they are taken (default " + AsyncStateSink.DEFAULT_CAPACITY + ")");
+		options.addOption("montecarlo", true, "Run this many simulations with parameters drawn from normal distributions around the given values");
+		options.addOption("seed", true, "The random seed for the Monte Carlo runs");
+		options.addOption("sigma", true, "The standard deviations for the Monte Carlo runs, as a comma separated list of option=value, "
+				+ "eg. height=1000,inc=0.01");
+		options.addOption("checkpoint", true, "Periodically save the simulation to this file, so that it can be resumed");
+		options.addOption("checkpointinterval", true, "The time between checkpoints (minutes of real time)");
+		options.addOption("surrogate", "Look the tether current up in a precomputed table instead of solving for it at every state");
+		options.addOption("surrogatecache", true, "The directory to keep the tether current tables in between runs");
+		options.addOption("resume", true, "Resume the simulation saved in this checkpoint, appending to the output file");
 		
 		if(args.length == 1 && args[0].equals("help")) {
 			HelpFormatter formatter = new HelpFormatter();
@@ -41,61 +91,404 @@ public class APSSSimulator {
 		
 		CommandLineParser parser = new DefaultParser();
 		CommandLine line = parser.parse(options, args);
+
+		if(line.hasOption("plasmaworkers")) {
+			IriPlasmaModel.setWorkerCount(Integer.parseInt(line.getOptionValue("plasmaworkers")));
+		}
+
+		if(line.hasOption("plasmaprotocol")) {
+			switch(line.getOptionValue("plasmaprotocol")) {
+				case "binary":
+					IriPlasmaModel.setBinaryProtocol(true);
+					break;
+				case "text":
+					IriPlasmaModel.setBinaryProtocol(false);
+					break;
+				default:
+					throw new ParseException("No plasma protocol found: " + line.getOptionValue("plasmaprotocol"));
+			}
+		}
 		
 		if(line.hasOption('v')) {
 			Application.launch(Display.class, args);
+			return;
+		} else if(line.hasOption("sweep")) {
+			runSweep(line);
+		} else if(line.hasOption("montecarlo")) {
+			runMonteCarlo(line);
 		} else {
-			String direction = line.getOptionValue("dir", "Across velocity - 200.0m");
-			
-			double inclination = Double.parseDouble(line.getOptionValue("inc", "0.0"));
-			double height = Double.parseDouble(line.getOptionValue("height", "6.771e6"));
-			double mass = Double.parseDouble(line.getOptionValue("mass", "1.0"));
-			double cableDiameter = Double.parseDouble(line.getOptionValue("diam", "0.001"));
-			double conductivity = Double.parseDouble(line.getOptionValue("cond", Double.toString(UnderlyingModels.σAluminium)));
-			
-			CableFunction chosenFunction = null;
-			for(CableFunction func : CableFunction.CABLE_FUNCTIONS) {
-				if(func.toString().equals(direction)) {
-					chosenFunction = func;
-				}
+			runSimulation(line);
+		}
+
+		IriPlasmaModel plasmaModel = IriPlasmaModel.getInstanceIfStarted();
+		if(plasmaModel != null) {
+			System.out.print(plasmaModel.getReport());
+		}
+	}
+
+	private static Duration getLength(CommandLine line) {
+		return Duration.ofNanos((long) (Double.parseDouble(line.getOptionValue("length", "6")) * 3600e9));
+	}
+
+	/**
+	 * Runs a single simulation, writing each sample to the output file as it is taken. If checkpoints are enabled the
+	 * simulation is saved along with the length of the output file, so that a resumed run can drop any rows written
+	 * after the checkpoint and carry on from there.
+	 */
+	private static void runSimulation(CommandLine line) throws ParseException {
+		Duration sampleFrequency = Duration.ofMinutes(1);
+		OrbitalSimulation simulation;
+		long outputPosition;
+
+		if(line.hasOption("resume")) {
+			Checkpoint checkpoint;
+
+			try {
+				checkpoint = Checkpoint.read(Paths.get(line.getOptionValue("resume")),
+						line.hasOption("surrogatecache") ? Paths.get(line.getOptionValue("surrogatecache")) : null);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
 			}
-			
-			if(chosenFunction == null) {
-				throw new ParseException("No function found: " + CableFunction.CABLE_FUNCTIONS.toString());
+
+			simulation = checkpoint.simulation;
+			outputPosition = checkpoint.outputPosition;
+
+			System.out.println("Resuming from: " + Duration.ofNanos(simulation.getState().time));
+		} else {
+			List<ParameterSweep.DesignPoint> points = createSweep(line, "Across velocity - 200.0m").getDesignPoints();
+
+			if(points.size() != 1) {
+				throw new ParseException("Multiple values were given, use -sweep to run more than one simulation");
 			}
-			
+
 			//TODO fill in drag values
-			Satellite sat = new Satellite(chosenFunction, Emitter.createThermionicCathode(), mass, cableDiameter, conductivity);
+			simulation = createSimulation(line, points.get(0).createOrbit(), points.get(0).createSatellite(), sampleFrequency);
+			outputPosition = 0;
+		}
 
-			List<State> states = runHeadlessSimulation(sat, new OrbitCharacteristics(0.0, height, inclination, 0.0, 0.0, 0.0), Duration.ofHours(6), Duration.ofMinutes(1),
-					Duration.ofMillis(50));
-			
-			try(BufferedWriter writer = Files.newBufferedWriter(Paths.get("output.csv"), 
-					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE)) {
-				writer.write("\"Timestep\",\"Velocity\",\"Lorrentz Force\",\"Height\",\"Current\",\"Field Strength\"\n");
-				
-				for(State state : states) {
-					writer.write(String.format("\"%.3f\",\"%.3e\",\"%.3e\",\"%.3e\",\"%.3e\",\"%.3e\"\n", 
-							state.time / 1e9,
-							state.velocity.length(),
-							state.lorentzForce.length(),
-							state.position.length(),
-							state.current,
-							state.magneticField.length()));
+		// A resumed run keeps checkpointing to the file it was resumed from
+		Path checkpointFile = line.hasOption("checkpoint") ? Paths.get(line.getOptionValue("checkpoint"))
+				: line.hasOption("resume") ? Paths.get(line.getOptionValue("resume")) : null;
+		long checkpointInterval = (long) (Double.parseDouble(line.getOptionValue("checkpointinterval", "5")) * 60e9);
+
+		int outputBuffer = Integer.parseInt(line.getOptionValue("outputbuffer", Integer.toString(AsyncStateSink.DEFAULT_CAPACITY)));
+
+		try(StateSink output = createSink(line, outputPosition, outputBuffer)) {
+			long[] lastCheckpoint = { System.nanoTime() };
+
+			runHeadlessSimulation(simulation, getLength(line), sampleFrequency, (State state) -> {
+				try {
+					output.write(state);
+
+					if(checkpointFile != null && System.nanoTime() - lastCheckpoint[0] > checkpointInterval) {
+						Checkpoint.write(checkpointFile, simulation, output.flush());
+						lastCheckpoint[0] = System.nanoTime();
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
 				}
+			});
+
+			if(output instanceof AsyncStateSink) {
+				System.out.printf("Waited %.3f s for the output to be written%n", ((AsyncStateSink) output).getBlockedNanos() / 1e9);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		Environment environment = simulation.getEnvironment();
+
+		if(environment instanceof MultiRateEnvironment) {
+			System.out.println(((MultiRateEnvironment) environment).getErrorReport());
+			environment = ((MultiRateEnvironment) environment).getSource();
+		}
+
+		if(environment instanceof PrefetchingEnvironment) {
+			System.out.println(((PrefetchingEnvironment) environment).getReport());
+		}
+	}
+
+	/**
+	 * Opens the output file in the format chosen on the command line.
+	 *
+	 * @param position the length of the file to keep
+	 * @param buffer the number of states to buffer while they are written on another thread, or zero to write them
+	 *               on the simulation thread
+	 */
+	private static StateSink createSink(CommandLine line, long position, int buffer) throws ParseException, IOException {
+		Path file = Paths.get(line.getOptionValue("out", "output.csv"));
+		StateSink sink;
+
+		switch(line.getOptionValue("format", "csv")) {
+			case "csv":
+				sink = new CsvStateSink(file, position);
+				break;
+			case "binary":
+				sink = new BinaryStateSink(file, position);
+				break;
+			case "columnar":
+				sink = new ColumnarStateSink(file, position, true);
+				break;
+			default:
+				throw new ParseException("No output format found: " + line.getOptionValue("format"));
+		}
+
+		return buffer > 0 ? new AsyncStateSink(sink, buffer) : sink;
+	}
+
+	/** Creates a simulation with the integrator and environment chosen on the command line */
+	private static OrbitalSimulation createSimulation(CommandLine line, OrbitCharacteristics orbit, Satellite satellite,
+	                                                  Duration sampleFrequency) throws ParseException {
+		Integrator integrator;
+		Duration simFrequency;
+
+		switch(line.getOptionValue("integrator", "rk4")) {
+			case "rk4":
+				integrator = new RK4Integrator();
+				simFrequency = Duration.ofMillis(50);
+				break;
+			case "dp45":
+				integrator = new DormandPrinceIntegrator(
+						Double.parseDouble(line.getOptionValue("patol", "1e-2")),
+						Double.parseDouble(line.getOptionValue("prtol", "1e-10")),
+						Double.parseDouble(line.getOptionValue("vatol", "1e-5")),
+						Double.parseDouble(line.getOptionValue("vrtol", "1e-10")));
+				// The adaptive integrator picks its own steps, only stop the integration to take samples
+				simFrequency = sampleFrequency;
+				break;
+			case "encke":
+				integrator = new EnckeIntegrator(Double.parseDouble(line.getOptionValue("rectify", "1e-4")));
+				// Only the deviation from the reference orbit is integrated, so much larger steps can be taken
+				simFrequency = Duration.ofSeconds(10);
+				break;
+			default:
+				throw new ParseException("No integrator found: " + line.getOptionValue("integrator"));
+		}
+
+		if(line.hasOption("step")) {
+			simFrequency = Duration.ofNanos((long) (Double.parseDouble(line.getOptionValue("step")) * 1e9));
+		}
+
+		OrbitalSimulation simulation = new OrbitalSimulation(orbit, satellite, simFrequency.toNanos(), integrator);
+
+		if(line.hasOption("surrogate")) {
+			try {
+				simulation.getTetherSolver().setSurrogate(TetherSurrogate.forSatellite(satellite,
+						line.hasOption("surrogatecache") ? Paths.get(line.getOptionValue("surrogatecache")) : null));
 			} catch (IOException e) {
-				throw new RuntimeException(e);
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		Environment environment = createEnvironment(line);
+
+		if(line.hasOption("prefetch")) {
+			try {
+				environment = new PrefetchingEnvironment((DirectEnvironment) environment,
+						(long) (Double.parseDouble(line.getOptionValue("prefetch")) * 1e9), PrefetchingEnvironment.DEFAULT_TOLERANCE);
+			} catch(IllegalArgumentException e) {
+				throw new ParseException(e.getMessage());
+			}
+		}
+
+		if(line.hasOption("envrate")) {
+			environment = new MultiRateEnvironment(environment, (long) (Double.parseDouble(line.getOptionValue("envrate")) * 1e9));
+		}
+
+		simulation.setEnvironment(environment);
+
+		return simulation;
+	}
+
+	private static DirectEnvironment createEnvironment(CommandLine line) throws ParseException {
+		Instant epoch;
+		try {
+			epoch = line.hasOption("epoch") ? Instant.parse(line.getOptionValue("epoch")) : DirectEnvironment.DEFAULT_EPOCH;
+		} catch(DateTimeParseException e) {
+			throw new ParseException("Invalid epoch: " + line.getOptionValue("epoch"));
+		}
+
+		long fieldRefresh = line.hasOption("fieldrefresh")
+				? (long) (Double.parseDouble(line.getOptionValue("fieldrefresh")) * 3600e9)
+				: DirectEnvironment.DEFAULT_FIELD_REFRESH;
+
+		if(fieldRefresh <= 0) {
+			throw new ParseException("The field refresh interval must be positive");
+		}
+
+		MagneticFieldModel fieldModel;
+		PlasmaModel plasmaModel;
+		try {
+			fieldModel = MagneticFieldModel.forName(line.getOptionValue("field", "wmm"));
+			plasmaModel = PlasmaModel.forName(line.getOptionValue("plasma", "iri"));
+		} catch(IllegalArgumentException e) {
+			throw new ParseException(e.getMessage());
+		}
+
+		return new DirectEnvironment(fieldModel, plasmaModel, epoch, fieldRefresh);
+	}
+
+	/**
+	 * Reads the satellite and orbit parameters, each of which may be a comma separated list of values.
+	 *
+	 * @param defaultDirection the cable direction to use if none is given, or null to use every direction
+	 */
+	private static ParameterSweep createSweep(CommandLine line, String defaultDirection) throws ParseException {
+		List<CableFunction> cableFunctions = new ArrayList<>();
+
+		if(line.hasOption("dir") || defaultDirection != null) {
+			for(String direction : line.getOptionValue("dir", defaultDirection).split(",")) {
+				CableFunction chosenFunction = null;
+				for(CableFunction func : CableFunction.CABLE_FUNCTIONS) {
+					if(func.toString().equals(direction.trim())) {
+						chosenFunction = func;
+					}
+				}
+
+				if(chosenFunction == null) {
+					throw new ParseException("No function found: " + CableFunction.CABLE_FUNCTIONS.toString());
+				}
+
+				cableFunctions.add(chosenFunction);
 			}
+		} else {
+			cableFunctions.addAll(CableFunction.CABLE_FUNCTIONS);
+		}
+
+		ParameterSweep sweep = new ParameterSweep(cableFunctions);
+
+		for(ParameterSweep.Parameter parameter : ParameterSweep.Parameter.values()) {
+			if(line.hasOption(parameter.option)) {
+				sweep.setValues(parameter, Arrays.stream(line.getOptionValue(parameter.option).split(","))
+						.mapToDouble(value -> Double.parseDouble(value.trim()))
+						.toArray());
+			}
+		}
+
+		return sweep;
+	}
+
+	private static void runSweep(CommandLine line) throws ParseException {
+		ParameterSweep sweep = createSweep(line, null);
+
+		// Check the integrator options before starting any threads
+		createSimulation(line, sweep.getDesignPoints().get(0).createOrbit(), sweep.getDesignPoints().get(0).createSatellite(), Duration.ofMinutes(1));
+
+		int threads = Integer.parseInt(line.getOptionValue("threads", Integer.toString(Runtime.getRuntime().availableProcessors())));
+		Duration sampleFrequency = Duration.ofMinutes(1);
+
+		try(BufferedWriter writer = Files.newBufferedWriter(Paths.get(line.getOptionValue("out", "sweep.csv")),
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE)) {
+			sweep.run(point -> {
+				try {
+					return createSimulation(line, point.createOrbit(), point.createSatellite(), sampleFrequency);
+				} catch(ParseException e) {
+					throw new IllegalArgumentException(e);
+				}
+			}, getLength(line), sampleFrequency, threads, writer);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
 		}
 	}
 
 	public static List<State> runHeadlessSimulation(Satellite satellite, OrbitCharacteristics c, Duration length, Duration sampleFrequency, Duration simFrequency) {
-		OrbitalSimulation simulation = new OrbitalSimulation(c, satellite, simFrequency.toNanos());
-		
-		List<State> states = new ArrayList<>();
-		
+		return runHeadlessSimulation(satellite, c, length, sampleFrequency, simFrequency, new RK4Integrator());
+	}
+
+	private static void runMonteCarlo(CommandLine line) throws ParseException {
+		List<ParameterSweep.DesignPoint> points = createSweep(line, "Across velocity - 200.0m").getDesignPoints();
+
+		if(points.size() != 1) {
+			throw new ParseException("Only one nominal value can be given for a Monte Carlo run, use -sigma to set the spread");
+		}
+
+		MonteCarlo monteCarlo = new MonteCarlo(points.get(0), Long.parseLong(line.getOptionValue("seed", "0")));
+
+		if(line.hasOption("sigma")) {
+			for(String entry : line.getOptionValue("sigma").split(",")) {
+				String[] pair = entry.split("=");
+				ParameterSweep.Parameter chosenParameter = null;
+
+				for(ParameterSweep.Parameter parameter : ParameterSweep.Parameter.values()) {
+					if(pair.length == 2 && parameter.option.equals(pair[0].trim())) {
+						chosenParameter = parameter;
+					}
+				}
+
+				if(chosenParameter == null) {
+					throw new ParseException("Invalid standard deviation: " + entry);
+				}
+
+				monteCarlo.setStandardDeviation(chosenParameter, Double.parseDouble(pair[1].trim()));
+			}
+		}
+
+		// Check the integrator options before starting any threads
+		createSimulation(line, points.get(0).createOrbit(), points.get(0).createSatellite(), Duration.ofMinutes(1));
+
+		int samples = Integer.parseInt(line.getOptionValue("montecarlo"));
+		int threads = Integer.parseInt(line.getOptionValue("threads", Integer.toString(Runtime.getRuntime().availableProcessors())));
+		Duration sampleFrequency = Duration.ofMinutes(1);
+
+		try(BufferedWriter writer = Files.newBufferedWriter(Paths.get(line.getOptionValue("out", "montecarlo.csv")),
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE)) {
+			monteCarlo.run(point -> {
+				try {
+					return createSimulation(line, point.createOrbit(), point.createSatellite(), sampleFrequency);
+				} catch(ParseException e) {
+					throw new IllegalArgumentException(e);
+				}
+			}, samples, getLength(line), sampleFrequency, threads, writer);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		System.out.println(monteCarlo.getRuns() + " runs, " + monteCarlo.getImpacts() + " impacted the Earth");
+	}
+
+	public static List<State> runHeadlessSimulation(Satellite satellite, OrbitCharacteristics c, Duration length, Duration sampleFrequency, Duration simFrequency,
+	                                                Integrator integrator) {
+		return runHeadlessSimulation(new OrbitalSimulation(c, satellite, simFrequency.toNanos(), integrator), length, sampleFrequency);
+	}
+
+	public static List<State> runHeadlessSimulation(OrbitalSimulation simulation, Duration length, Duration sampleFrequency) {
+		MemoryStateSink states = new MemoryStateSink();
+		runHeadlessSimulation(simulation, length, sampleFrequency, states::write);
+		return states.getStates();
+	}
+
+	/**
+	 * Runs the simulation, writing each sampled state to the sink as it is produced. The sink is flushed at the end, but
+	 * not closed.
+	 */
+	public static void runHeadlessSimulation(OrbitalSimulation simulation, Duration length, Duration sampleFrequency, StateSink sink) throws IOException {
+		try {
+			runHeadlessSimulation(simulation, length, sampleFrequency, (State state) -> {
+				try {
+					sink.write(state);
+				} catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch(UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+		sink.flush();
+	}
+
+	/**
+	 * Runs the simulation, passing each sampled state to the consumer as it is produced.
+	 */
+	public static void runHeadlessSimulation(OrbitalSimulation simulation, Duration length, Duration sampleFrequency, Consumer<State> samples) {
+		runHeadlessSimulation(simulation, length, sampleFrequency, samples, true);
+	}
+
+	static void runHeadlessSimulation(OrbitalSimulation simulation, Duration length, Duration sampleFrequency, Consumer<State> samples,
+	                                  boolean printProgress) {
 		long sampleNanos = sampleFrequency.toNanos();
-		int lastSample = 0;
+		// Starting from the current time, so that a resumed simulation does not repeat its first sample
+		int lastSample = (int) (simulation.getState().time / sampleNanos);
 		
 		long printFrequency = Duration.ofMinutes(30).toNanos();
 		int lastPrint = 0;
@@ -103,10 +496,10 @@ public class APSSSimulator {
 		while(true) {
 			if(lastSample < simulation.getState().time / sampleNanos) {
 				lastSample = (int) (simulation.getState().time / sampleNanos);
-				states.add(simulation.getState());
+				samples.accept(simulation.getState());
 			}
 			
-			if(lastPrint < simulation.getState().time / printFrequency) {
+			if(printProgress && lastPrint < simulation.getState().time / printFrequency) {
 				lastPrint = (int) (simulation.getState().time / printFrequency);
 				System.out.println("Simulated: " + Duration.ofNanos(simulation.getState().time));
 			}
@@ -116,13 +509,14 @@ public class APSSSimulator {
 			}
 			
 			if(simulation.getState().position.length() < 6.371e6) {
-				System.out.println("Tether impacted Earth");
+				if(printProgress) {
+					System.out.println("Tether impacted Earth");
+				}
+				
 				break;
 			}
 			
 			simulation.step();
 		}
-		
-		return states;
 	}
 }
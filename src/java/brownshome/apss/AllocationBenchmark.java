@@ -0,0 +1,114 @@
+package brownshome.apss;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the allocation rate and speed of stepping an orbital simulation.
+ *
+ * An analytic dipole field and constant densities are used in place of the external models, so that the numbers
+ * only reflect the physics in this program and the benchmark can run without the native library or Python.
+ */
+public class AllocationBenchmark {
+	private static final long WARMUP_STEPS = 10_000, MEASURED_STEPS = 50_000;
+
+	/** Counts the states that are created, and answers with a cheap analytic environment */
+	private static final class SyntheticEnvironment implements Environment {
+		/** Earth's dipole moment times μ0 / 4π (T m3) */
+		private static final double DIPOLE = 7.94e22 * 1e-7;
+
+		long evaluations = 0;
+
+		@Override
+		public Vec3 getMagneticFieldStrength(Vec3 position, Vec3 velocity, long time) {
+			evaluations++;
+
+			// Dipole aligned with the y axis, B = k (3 (m.r) r / r^5 - m / r^3)
+			double r2 = position.lengthSquared();
+			double r = Math.sqrt(r2);
+			double r3 = r2 * r;
+			double mDotR = -DIPOLE * position.y;
+
+			return new Vec3(
+					3 * mDotR * position.x / (r3 * r2),
+					3 * mDotR * position.y / (r3 * r2) + DIPOLE / r3,
+					3 * mDotR * position.z / (r3 * r2));
+		}
+
+		@Override
+		public double getPlasmaDensity(Vec3 position, Vec3 velocity, long time) {
+			return 1e11;
+		}
+
+		@Override
+		public double getAtmosphericDensity(Vec3 position, Vec3 velocity, long time) {
+			return 1.93e-11;
+		}
+	}
+
+	public static void main(String[] args) {
+		String integratorName = args.length > 0 ? args[0] : "rk4";
+		boolean surrogate = args.length > 1 && args[1].equals("surrogate");
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		Satellite satellite = new Satellite(CableFunction.acrossVelocity(200), Emitter.createThermionicCathode(), 1.0, 0.001, UnderlyingModels.σAluminium);
+
+		SyntheticEnvironment environment = new SyntheticEnvironment();
+		OrbitalSimulation simulation = new OrbitalSimulation(new OrbitCharacteristics(0.0, 6.771e6, 0.5, 0.0, 0.0, 0.0), satellite,
+				50_000_000L, createIntegrator(integratorName));
+		simulation.setEnvironment(environment);
+
+		if(surrogate) {
+			simulation.getTetherSolver().setSurrogate(TetherSurrogate.build(satellite, 1e-3));
+		}
+
+		for(long i = 0; i < WARMUP_STEPS; i++) {
+			simulation.step();
+		}
+
+		long startEvaluations = environment.evaluations;
+		long startSolves = simulation.getTetherSolver().getTotalSolves();
+		long startTetherEvaluations = simulation.getTetherSolver().getTotalEvaluations();
+		long startDerivatives = simulation.getTetherSolver().getDerivativeEvaluations();
+		long startLookups = simulation.getTetherSolver().getSurrogateLookups();
+		long startWarmFailures = simulation.getTetherSolver().getWarmStartFailures();
+		long startBytes = threads.getThreadAllocatedBytes(thread);
+		long startTime = System.nanoTime();
+
+		for(long i = 0; i < MEASURED_STEPS; i++) {
+			simulation.step();
+		}
+
+		long nanos = System.nanoTime() - startTime;
+		long bytes = threads.getThreadAllocatedBytes(thread) - startBytes;
+		long states = environment.evaluations - startEvaluations;
+		long solves = simulation.getTetherSolver().getTotalSolves() - startSolves;
+		long tetherEvaluations = simulation.getTetherSolver().getTotalEvaluations() - startTetherEvaluations;
+		long derivatives = simulation.getTetherSolver().getDerivativeEvaluations() - startDerivatives;
+		long lookups = simulation.getTetherSolver().getSurrogateLookups() - startLookups;
+		long warmFailures = simulation.getTetherSolver().getWarmStartFailures() - startWarmFailures;
+
+		System.out.printf("Integrator: %s%s%n", integratorName, surrogate ? ", tether surrogate" : "");
+		System.out.printf("Steps: %d, states: %d, time: %.3f s%n", MEASURED_STEPS, states, nanos / 1e9);
+		System.out.printf("Allocated: %.1f bytes per step, %.1f bytes per state%n", bytes / (double) MEASURED_STEPS, bytes / (double) states);
+		System.out.printf("Allocation rate: %.1f MB/s%n", bytes / 1e6 / (nanos / 1e9));
+		System.out.printf("Speed: %.0f steps/s%n", MEASURED_STEPS / (nanos / 1e9));
+		System.out.printf("Tether solves: %d, %.2f integrations of the tether per solve, %.1f derivative evaluations per integration%n",
+				solves, tetherEvaluations / (double) solves, derivatives / (double) tetherEvaluations);
+		System.out.printf("Surrogate lookups: %d, failed warm starts: %d%n", lookups, warmFailures);
+	}
+
+	private static Integrator createIntegrator(String name) {
+		switch(name) {
+			case "rk4":
+				return new RK4Integrator();
+			case "dp45":
+				return new DormandPrinceIntegrator(1e-2, 1e-10, 1e-5, 1e-10);
+			case "encke":
+				return new EnckeIntegrator();
+			default:
+				throw new IllegalArgumentException("No integrator found: " + name);
+		}
+	}
+}
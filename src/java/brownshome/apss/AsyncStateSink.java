@@ -0,0 +1,141 @@
+package brownshome.apss;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import brownshome.apss.OrbitalSimulation.State;
+
+/**
+ * Passes states to another sink on a background thread, so that formatting and writing them does not hold up the
+ * simulation. The states waiting to be written are held in a bounded buffer. If the buffer is full the simulation
+ * waits for space, so memory stays flat however long the run is.
+ *
+ * An error from the destination is thrown by the next call to this sink.
+ */
+public class AsyncStateSink implements StateSink {
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private final StateSink destination;
+	private final BlockingQueue<State> buffer;
+	private final Thread thread;
+
+	/** Guards the destination, and is notified whenever a state has been written */
+	private final Object lock = new Object();
+
+	/** Only changed by the simulation thread */
+	private long submitted = 0;
+	/** Only changed by the writing thread while holding the lock */
+	private long written = 0;
+	private volatile Throwable failure;
+	private volatile boolean closed = false;
+
+	private long blockedNanos = 0;
+
+	/** @param capacity the number of states that can wait to be written */
+	public AsyncStateSink(StateSink destination, int capacity) {
+		this.destination = destination;
+		this.buffer = new ArrayBlockingQueue<>(capacity);
+
+		thread = new Thread(this::run, "State writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void run() {
+		try {
+			while(true) {
+				State state = buffer.take();
+
+				synchronized(lock) {
+					// After a failure states are dropped, so that the simulation does not wait for space forever
+					if(failure == null) {
+						try {
+							destination.write(state);
+						} catch(IOException | RuntimeException e) {
+							failure = e;
+						}
+					}
+
+					written++;
+					lock.notifyAll();
+				}
+			}
+		} catch(InterruptedException e) {
+			// Closed
+		}
+	}
+
+	@Override
+	public void write(State state) throws IOException {
+		checkOpen();
+
+		if(!buffer.offer(state)) {
+			long start = System.nanoTime();
+
+			try {
+				buffer.put(state);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting to write a state", e);
+			}
+
+			blockedNanos += System.nanoTime() - start;
+		}
+
+		submitted++;
+	}
+
+	/** Waits for every state in the buffer to be written, and then flushes the destination */
+	@Override
+	public long flush() throws IOException {
+		checkOpen();
+
+		synchronized(lock) {
+			while(written < submitted && failure == null) {
+				try {
+					lock.wait();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for the states to be written", e);
+				}
+			}
+
+			checkOpen();
+			return destination.flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(closed) {
+			return;
+		}
+
+		try {
+			flush();
+		} finally {
+			closed = true;
+			thread.interrupt();
+
+			synchronized(lock) {
+				destination.close();
+			}
+		}
+	}
+
+	/** The time that the simulation has spent waiting for space in the buffer (ns) */
+	public long getBlockedNanos() {
+		return blockedNanos;
+	}
+
+	private void checkOpen() throws IOException {
+		if(failure != null) {
+			throw new IOException("Writing a state failed", failure);
+		}
+
+		if(closed) {
+			throw new IOException("The sink is closed");
+		}
+	}
+}
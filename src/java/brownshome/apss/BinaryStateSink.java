@@ -0,0 +1,79 @@
+package brownshome.apss;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import brownshome.apss.OrbitalSimulation.State;
+
+/**
+ * Writes a record of doubles for each state, without rounding them. The file starts with a magic number, a version,
+ * and the names of the columns, after which each record holds a value for each column. Values are big endian, as
+ * written by {@link DataOutputStream}.
+ */
+public class BinaryStateSink implements StateSink {
+	private static final long MAGIC = 0x4150535353544154L; // APSSSTAT
+	private static final int VERSION = 1;
+
+	public static final String[] COLUMNS = {
+			"time (s)",
+			"position x (m)", "position y (m)", "position z (m)",
+			"velocity x (m/s)", "velocity y (m/s)", "velocity z (m/s)",
+			"field x (T)", "field y (T)", "field z (T)",
+			"lorentz force x (N)", "lorentz force y (N)", "lorentz force z (N)",
+			"current (A)", "plasma density (e/m3)", "atmospheric density (kg/m3)"
+	};
+
+	private final FileChannel channel;
+	private final DataOutputStream out;
+
+	/**
+	 * @param position the length of the file to keep, zero to start a new file with a header
+	 */
+	public BinaryStateSink(Path file, long position) throws IOException {
+		channel = StateSink.openForWriting(file, position);
+		out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+
+		if(position == 0) {
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(COLUMNS.length);
+
+			for(String column : COLUMNS) {
+				out.writeUTF(column);
+			}
+		}
+	}
+
+	@Override
+	public void write(State state) throws IOException {
+		out.writeDouble(state.time / 1e9);
+		writeVector(state.position);
+		writeVector(state.velocity);
+		writeVector(state.magneticField);
+		writeVector(state.lorentzForce);
+		out.writeDouble(state.current);
+		out.writeDouble(state.plasmaDensity);
+		out.writeDouble(state.atmosphericDensity);
+	}
+
+	private void writeVector(Vec3 vector) throws IOException {
+		out.writeDouble(vector.x);
+		out.writeDouble(vector.y);
+		out.writeDouble(vector.z);
+	}
+
+	@Override
+	public long flush() throws IOException {
+		out.flush();
+		return channel.position();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+}
@@ -48,6 +48,19 @@ public abstract class CableFunction implements Function<OrbitalSimulation.State,
 			public Vec3 getCableDirection(State state) {
 				return state.position.cross(state.velocity);
 			}
+
+			/** The same as the default, without creating the intermediate direction vector */
+			@Override
+			public Vec3 apply(State state) {
+				Vec3 p = state.position, v = state.velocity;
+
+				double x = p.y * v.z - p.z * v.y;
+				double y = p.z * v.x - p.x * v.z;
+				double z = p.x * v.y - p.y * v.x;
+				double s = cableLength / Math.sqrt(x * x + y * y + z * z);
+
+				return new Vec3(x * s, y * s, z * s);
+			}
 		};
 	}
 
@@ -68,6 +81,41 @@ public abstract class CableFunction implements Function<OrbitalSimulation.State,
 		};
 	}
 
+	/**
+	 * Recreates a cable function from its name.
+	 *
+	 * @throws IllegalArgumentException if the name is not that of a cable function
+	 */
+	public static CableFunction forName(String name) {
+		for(CableFunction function : CABLE_FUNCTIONS) {
+			if(function.name.equals(name)) {
+				return function;
+			}
+		}
+
+		int separator = name.lastIndexOf(" - ");
+		if(separator != -1 && name.endsWith("m")) {
+			String type = name.substring(0, separator);
+
+			try {
+				double distance = Double.parseDouble(name.substring(separator + 3, name.length() - 1));
+
+				switch(type) {
+					case "Towards gravity":
+						return towardsGravity(distance);
+					case "Across velocity":
+						return acrossVelocity(distance);
+					case "Across velocity Spun":
+						return acrossVelocitySpin(distance);
+				}
+			} catch(NumberFormatException e) {
+				// Fall through to the exception below
+			}
+		}
+
+		throw new IllegalArgumentException("No cable function found: " + name);
+	}
+
 	@Override
 	public String toString() {
 		return name;
@@ -0,0 +1,139 @@
+package brownshome.apss;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+
+/**
+ * An analytic model of the F layer of the ionosphere, evaluated in Java without running the plasma model program.
+ *
+ * The density follows a Chapman layer with one scale height below the peak and another above it. The peak density
+ * falls with the square root of the cosine of the solar zenith angle towards a fraction of its daytime value at night,
+ * and towards another fraction at the poles. The sun is placed for the date that the plasma model is evaluated at, so
+ * the day side is fixed in the simulation frame like the rest of the plasma model.
+ *
+ * The default parameters are typical of a quiet ionosphere. {@link PlasmaModelCalibration} fits them to samples of
+ * the International Reference Ionosphere and reports the error of the fit.
+ */
+public final class ChapmanPlasmaModel implements PlasmaModel {
+	/** The number of parameters, in the order taken by the constructor */
+	public static final int PARAMETERS = 6;
+
+	/** The direction of the sun in the simulation frame */
+	private static final Vec3 SUN = sunDirection(IriPlasmaModel.DATE);
+
+	public static final ChapmanPlasmaModel DEFAULT = new ChapmanPlasmaModel(1e12, 300, 50, 90, 0.1, 0.3);
+
+	private final double peakDensity, peakAltitude, bottomScaleHeight, topScaleHeight, nightRatio, polarRatio;
+
+	/**
+	 * @param peakDensity the density at the peak of the layer, under the sun at the equator (e per m3)
+	 * @param peakAltitude the altitude of the peak (km)
+	 * @param bottomScaleHeight the scale height below the peak (km)
+	 * @param topScaleHeight the scale height above the peak (km)
+	 * @param nightRatio the peak density on the night side, as a fraction of the peak density under the sun
+	 * @param polarRatio the peak density at the poles, as a fraction of the peak density at the equator
+	 */
+	public ChapmanPlasmaModel(double peakDensity, double peakAltitude, double bottomScaleHeight, double topScaleHeight,
+	                          double nightRatio, double polarRatio) {
+		if(!(peakDensity > 0 && bottomScaleHeight > 0 && topScaleHeight > 0)) {
+			throw new IllegalArgumentException("The peak density and scale heights must be positive");
+		}
+
+		if(!(nightRatio >= 0 && nightRatio <= 1 && polarRatio >= 0 && polarRatio <= 1)) {
+			throw new IllegalArgumentException("The night and polar ratios must be between 0 and 1");
+		}
+
+		this.peakDensity = peakDensity;
+		this.peakAltitude = peakAltitude;
+		this.bottomScaleHeight = bottomScaleHeight;
+		this.topScaleHeight = topScaleHeight;
+		this.nightRatio = nightRatio;
+		this.polarRatio = polarRatio;
+	}
+
+	/** @param parameters the parameters in the order taken by the constructor */
+	public static ChapmanPlasmaModel withParameters(double... parameters) {
+		if(parameters.length != PARAMETERS) {
+			throw new IllegalArgumentException("Expected " + PARAMETERS + " parameters, got " + parameters.length);
+		}
+
+		return new ChapmanPlasmaModel(parameters[0], parameters[1], parameters[2], parameters[3], parameters[4], parameters[5]);
+	}
+
+	/**
+	 * The direction of the sun at a date, from the approximate declination and the hour angle. The earth does not
+	 * rotate in the simulation frame, where longitude 0 is -z and the north pole is y.
+	 *
+	 * @param date the year, month, day, hour and minute (UTC)
+	 */
+	private static Vec3 sunDirection(int[] date) {
+		int dayOfYear = LocalDate.of(date[0], date[1], date[2]).getDayOfYear();
+		double declination = Math.toRadians(-23.44) * Math.cos(2 * Math.PI / 365 * (dayOfYear + 10));
+
+		// The longitude where it is noon
+		double hours = date[3] + date[4] / 60.0;
+		double longitude = Math.PI * (1 - hours / 12);
+
+		return new Vec3(
+				Math.cos(declination) * Math.sin(longitude),
+				Math.sin(declination),
+				-Math.cos(declination) * Math.cos(longitude));
+	}
+
+	@Override
+	public double getDensity(Vec3 position) {
+		double radius = position.length();
+		double z = scaledHeight(radius);
+
+		return peakDensity(position, radius) * Math.exp(0.5 * (1 - z - Math.exp(-z)));
+	}
+
+	/** The natural log of the density, which unlike the density does not underflow far below the peak */
+	double getLogDensity(Vec3 position) {
+		double radius = position.length();
+		double z = scaledHeight(radius);
+
+		return Math.log(peakDensity(position, radius)) + 0.5 * (1 - z - Math.exp(-z));
+	}
+
+	/** The height above the peak, in scale heights */
+	private double scaledHeight(double radius) {
+		double altitude = (radius - UnderlyingModels.rE) * 1e-3;
+
+		return (altitude - peakAltitude) / (altitude < peakAltitude ? bottomScaleHeight : topScaleHeight);
+	}
+
+	/** The density at the peak of the layer above a position */
+	private double peakDensity(Vec3 position, double radius) {
+		double sinLatitude = position.y / radius;
+		double cosZenith = (position.x * SUN.x + position.y * SUN.y + position.z * SUN.z) / radius;
+
+		return peakDensity
+				* (nightRatio + (1 - nightRatio) * Math.sqrt(Math.max(0, cosZenith)))
+				* (1 - (1 - polarRatio) * sinLatitude * sinLatitude);
+	}
+
+	/** The parameters in the order taken by the constructor */
+	public double[] getParameters() {
+		return new double[] { peakDensity, peakAltitude, bottomScaleHeight, topScaleHeight, nightRatio, polarRatio };
+	}
+
+	@Override
+	public String getName() {
+		if(Arrays.equals(getParameters(), DEFAULT.getParameters())) {
+			return "chapman";
+		}
+
+		StringBuilder name = new StringBuilder("chapman:");
+		for(double parameter : getParameters()) {
+			name.append(parameter).append(',');
+		}
+
+		return name.substring(0, name.length() - 1);
+	}
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+}
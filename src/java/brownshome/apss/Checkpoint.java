@@ -0,0 +1,255 @@
+package brownshome.apss;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+
+import brownshome.apss.OrbitalSimulation.State;
+
+/**
+ * A binary snapshot of a simulation, holding everything needed to continue it with the same results as if it had not
+ * been stopped: the current position, velocity and time, the time step, the satellite, the state carried between
+ * steps by the integrator, the field and plasma models, epoch and samples held by the environment, and the warm start of the
+ * tether solver.
+ *
+ * Derived values such as the forces are not stored, as they are recalculated from the position and velocity when the
+ * simulation is restored. A checkpoint is a few hundred bytes.
+ */
+public final class Checkpoint {
+	private static final long MAGIC = 0x4150535343484B50L; // APSSCHKP
+	private static final int VERSION = 9;
+
+	private static final byte RK4 = 0, DORMAND_PRINCE = 1, ENCKE = 2;
+	private static final byte DIRECT = 0, MULTI_RATE = 1, PREFETCHING = 2;
+
+	public final OrbitalSimulation simulation;
+
+	/** A position in the output of the run, such as the length of an output file, that was current when the checkpoint was written */
+	public final long outputPosition;
+
+	private Checkpoint(OrbitalSimulation simulation, long outputPosition) {
+		this.simulation = simulation;
+		this.outputPosition = outputPosition;
+	}
+
+	/**
+	 * Writes the simulation to a file. The file is written next to the destination and then moved into place, so an
+	 * interrupted write leaves the previous checkpoint intact.
+	 *
+	 * @param outputPosition a position in the output of the run, returned by {@link #outputPosition} when read
+	 */
+	public static void write(Path file, OrbitalSimulation simulation, long outputPosition) throws IOException {
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(outputPosition);
+
+			writeSatellite(out, simulation.satellite);
+
+			State state = simulation.getState();
+			writeVector(out, state.position);
+			writeVector(out, state.velocity);
+			out.writeLong(state.time);
+			out.writeLong(simulation.getTimeStep());
+
+			writeIntegrator(out, simulation.getIntegrator());
+			writeEnvironment(out, simulation.getEnvironment());
+
+			// The table is rebuilt on resume, building it is deterministic
+			out.writeBoolean(simulation.getTetherSolver().getSurrogate() != null);
+			simulation.getTetherSolver().writeCheckpoint(out);
+		}
+
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @param surrogateCache the directory to look for tether current tables in, if the simulation used one
+	 */
+	public static Checkpoint read(Path file, Path surrogateCache) throws IOException {
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if(in.readLong() != MAGIC) {
+				throw new IOException(file + " is not a checkpoint");
+			}
+
+			int version = in.readInt();
+			if(version != VERSION) {
+				throw new IOException("Unsupported checkpoint version " + version);
+			}
+
+			long outputPosition = in.readLong();
+			Satellite satellite = readSatellite(in);
+
+			Vec3 position = readVector(in);
+			Vec3 velocity = readVector(in);
+			long time = in.readLong();
+			long timeStep = in.readLong();
+
+			Integrator integrator = readIntegrator(in);
+			Environment environment = readEnvironment(in);
+			boolean surrogate = in.readBoolean();
+
+			OrbitalSimulation simulation = new OrbitalSimulation(new OrbitCharacteristics(position, velocity), satellite, timeStep, integrator, time);
+			simulation.setEnvironment(environment);
+
+			if(surrogate) {
+				simulation.getTetherSolver().setSurrogate(TetherSurrogate.forSatellite(satellite, surrogateCache));
+			}
+
+			// This must be read before the restored state is created below
+			simulation.getTetherSolver().readCheckpoint(in);
+
+			if(integrator instanceof EnckeIntegrator) {
+				((EnckeIntegrator) integrator).resume(simulation.getState());
+			}
+
+			return new Checkpoint(simulation, outputPosition);
+		}
+	}
+
+	static void writeVector(DataOutput out, Vec3 vector) throws IOException {
+		out.writeDouble(vector.x);
+		out.writeDouble(vector.y);
+		out.writeDouble(vector.z);
+	}
+
+	static Vec3 readVector(DataInput in) throws IOException {
+		return new Vec3(in.readDouble(), in.readDouble(), in.readDouble());
+	}
+
+	private static void writeSatellite(DataOutput out, Satellite satellite) throws IOException {
+		out.writeUTF(satellite.cableVector.toString());
+		out.writeDouble(satellite.mass);
+		out.writeDouble(satellite.cableDiameter);
+		out.writeDouble(satellite.cableConductivity);
+		out.writeDouble(satellite.cableDensity);
+
+		Emitter emitter = satellite.emitter;
+		out.writeDouble(emitter.powerLimit);
+		out.writeDouble(emitter.currentLimit);
+		out.writeDouble(emitter.setBias);
+		out.writeDouble(emitter.technologyVoltageDrop);
+	}
+
+	private static Satellite readSatellite(DataInput in) throws IOException {
+		CableFunction cableFunction;
+		try {
+			cableFunction = CableFunction.forName(in.readUTF());
+		} catch(IllegalArgumentException e) {
+			throw new IOException(e);
+		}
+
+		double mass = in.readDouble();
+		double cableDiameter = in.readDouble();
+		double cableConductivity = in.readDouble();
+		double cableDensity = in.readDouble();
+
+		double powerLimit = in.readDouble();
+		double currentLimit = in.readDouble();
+		double setBias = in.readDouble();
+		double technologyVoltageDrop = in.readDouble();
+
+		Emitter emitter = Double.isNaN(setBias)
+				? new Emitter(powerLimit, currentLimit, technologyVoltageDrop)
+				: new Emitter(powerLimit, currentLimit, setBias, technologyVoltageDrop);
+
+		return new Satellite(cableFunction, emitter, mass, cableDiameter, cableConductivity, cableDensity);
+	}
+
+	private static void writeIntegrator(DataOutput out, Integrator integrator) throws IOException {
+		if(integrator instanceof RK4Integrator) {
+			out.writeByte(RK4);
+		} else if(integrator instanceof DormandPrinceIntegrator) {
+			out.writeByte(DORMAND_PRINCE);
+			((DormandPrinceIntegrator) integrator).writeCheckpoint(out);
+		} else if(integrator instanceof EnckeIntegrator) {
+			out.writeByte(ENCKE);
+			((EnckeIntegrator) integrator).writeCheckpoint(out);
+		} else {
+			throw new IllegalArgumentException("Unable to checkpoint " + integrator.getClass().getSimpleName());
+		}
+	}
+
+	private static Integrator readIntegrator(DataInput in) throws IOException {
+		byte type = in.readByte();
+
+		switch(type) {
+			case RK4:
+				return new RK4Integrator();
+			case DORMAND_PRINCE:
+				return DormandPrinceIntegrator.readCheckpoint(in);
+			case ENCKE:
+				return EnckeIntegrator.readCheckpoint(in);
+			default:
+				throw new IOException("Unknown integrator type " + type);
+		}
+	}
+
+	private static void writeEnvironment(DataOutput out, Environment environment) throws IOException {
+		if(environment instanceof DirectEnvironment) {
+			out.writeByte(DIRECT);
+			out.writeUTF(((DirectEnvironment) environment).getFieldModel().getName());
+			out.writeUTF(((DirectEnvironment) environment).getPlasmaModel().getName());
+			out.writeLong(((DirectEnvironment) environment).getEpoch().getEpochSecond());
+			out.writeInt(((DirectEnvironment) environment).getEpoch().getNano());
+			out.writeLong(((DirectEnvironment) environment).getFieldRefresh());
+		} else if(environment instanceof MultiRateEnvironment) {
+			out.writeByte(MULTI_RATE);
+			writeEnvironment(out, ((MultiRateEnvironment) environment).getSource());
+			((MultiRateEnvironment) environment).writeCheckpoint(out);
+		} else if(environment instanceof PrefetchingEnvironment) {
+			out.writeByte(PREFETCHING);
+			writeEnvironment(out, ((PrefetchingEnvironment) environment).getSource());
+			((PrefetchingEnvironment) environment).writeCheckpoint(out);
+		} else {
+			throw new IllegalArgumentException("Unable to checkpoint " + environment.getClass().getSimpleName());
+		}
+	}
+
+	private static Environment readEnvironment(DataInput in) throws IOException {
+		byte type = in.readByte();
+
+		switch(type) {
+			case DIRECT:
+				MagneticFieldModel fieldModel;
+				PlasmaModel plasmaModel;
+				try {
+					fieldModel = MagneticFieldModel.forName(in.readUTF());
+					plasmaModel = PlasmaModel.forName(in.readUTF());
+				} catch(IllegalArgumentException e) {
+					throw new IOException(e);
+				}
+
+				Instant epoch = Instant.ofEpochSecond(in.readLong(), in.readInt());
+				long fieldRefresh = in.readLong();
+
+				if(fieldRefresh <= 0) {
+					throw new IOException("Invalid field refresh interval " + fieldRefresh);
+				}
+
+				return new DirectEnvironment(fieldModel, plasmaModel, epoch, fieldRefresh);
+			case MULTI_RATE:
+				return MultiRateEnvironment.readCheckpoint(in, readEnvironment(in));
+			case PREFETCHING:
+				Environment source = readEnvironment(in);
+
+				if(!(source instanceof DirectEnvironment)) {
+					throw new IOException("Only a direct environment can be prefetched");
+				}
+
+				return PrefetchingEnvironment.readCheckpoint(in, (DirectEnvironment) source);
+			default:
+				throw new IOException("Unknown environment type " + type);
+		}
+	}
+}
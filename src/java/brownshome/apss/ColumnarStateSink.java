@@ -0,0 +1,297 @@
+package brownshome.apss;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+import brownshome.apss.OrbitalSimulation.State;
+
+/**
+ * Writes every field of each state in columns, without rounding them, so that a run can be read back from any time
+ * with {@link TrajectoryFile} and converted to CSV with {@link TrajectoryToCsv}.
+ *
+ * The file starts with a magic number, the length of the header, a version and the names of the columns. The states
+ * follow in blocks of up to {@link #BLOCK_ROWS} rows. Each block starts with its number of rows, its first and last
+ * times and its length, so that a reader can find a time without decoding the blocks before it. The columns of a block
+ * follow one after the other, each starting with its encoding and length.
+ *
+ * The first column is the time in nanoseconds, and the others are doubles. When compressed the time is stored as the
+ * change in the time step, and each double as the XOR of it with the value before it, leaving out the leading and
+ * trailing zero bits, so that a value that does not change takes one bit. Each block is encoded on its own, and is
+ * written when it is full or the sink is flushed. Values are big endian.
+ */
+public class ColumnarStateSink implements StateSink {
+	static final long MAGIC = 0x415053535452414AL; // APSSTRAJ
+	/** Changed whenever the layout of the file changes */
+	static final int VERSION = 1;
+
+	public static final int BLOCK_ROWS = 1024;
+
+	/** Eight bytes for each value */
+	static final byte RAW = 0;
+	/** The time of the first row, then the change in the time step of each row as a zigzag varint */
+	static final byte DELTA = 1;
+	/** The bits of the first row, then the XOR of each row with the row before it */
+	static final byte XOR = 2;
+
+	private static final List<String> NAMES = new ArrayList<>();
+	private static final List<ToDoubleFunction<State>> GETTERS = new ArrayList<>();
+
+	static {
+		NAMES.add("time (s)");
+		GETTERS.add(null);
+
+		vector("position", "m", state -> state.position);
+		vector("velocity", "m/s", state -> state.velocity);
+		vector("acceleration", "m/s2", state -> state.acceleration);
+		vector("gravity", "m/s2", state -> state.gravity);
+		vector("cable", "m", state -> state.cableVector);
+		vector("field", "T", state -> state.magneticField);
+		vector("lorentz force", "N", state -> state.lorentzForce);
+		vector("lorentz torque", "N m", state -> state.lorentzTorque);
+		vector("drag force", "N", state -> state.dragForce);
+		vector("drag torque", "N m", state -> state.dragTorque);
+		vector("net torque", "N m", state -> state.netTorque);
+		vector("gravity gradient torque", "N m", state -> state.gravityGradientTorque);
+
+		scalar("plasma density (e/m3)", state -> state.plasmaDensity);
+		scalar("atmospheric density (kg/m3)", state -> state.atmosphericDensity);
+		scalar("current (A)", state -> state.current);
+		scalar("tether evaluations", state -> state.tetherEvaluations);
+		scalar("emitter power (W)", state -> state.emitterResult.powerUsage);
+		scalar("emitter bias (V)", state -> state.emitterResult.chosenBias);
+		scalar("emitter voltage drop (V)", state -> state.emitterResult.voltageDrop);
+	}
+
+	private static void vector(String name, String unit, Function<State, Vec3> getter) {
+		scalar(name + " x (" + unit + ")", state -> getter.apply(state).x);
+		scalar(name + " y (" + unit + ")", state -> getter.apply(state).y);
+		scalar(name + " z (" + unit + ")", state -> getter.apply(state).z);
+	}
+
+	private static void scalar(String name, ToDoubleFunction<State> getter) {
+		NAMES.add(name);
+		GETTERS.add(getter);
+	}
+
+	private final FileChannel channel;
+	private final DataOutputStream out;
+	private final boolean compress;
+
+	/** The rows of the block that has not been written yet */
+	private final long[] times = new long[BLOCK_ROWS];
+	private final double[][] values = new double[NAMES.size()][BLOCK_ROWS];
+	private int rows = 0;
+
+	private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+	private final ByteArrayOutputStream column = new ByteArrayOutputStream();
+
+	/**
+	 * @param position the length of the file to keep, zero to start a new file with a header
+	 * @param compress true to compress the columns, false to store eight bytes for every value
+	 */
+	public ColumnarStateSink(Path file, long position, boolean compress) throws IOException {
+		this.compress = compress;
+
+		channel = StateSink.openForWriting(file, position);
+		out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+
+		if(position == 0) {
+			ByteArrayOutputStream names = new ByteArrayOutputStream();
+			DataOutputStream namesOut = new DataOutputStream(names);
+			for(String name : NAMES) {
+				namesOut.writeUTF(name);
+			}
+
+			out.writeLong(MAGIC);
+			out.writeInt(8 + 4 + 4 + 4 + names.size());
+			out.writeInt(VERSION);
+			out.writeInt(NAMES.size());
+			names.writeTo(out);
+		}
+	}
+
+	@Override
+	public void write(State state) throws IOException {
+		times[rows] = state.time;
+
+		for(int c = 1; c < values.length; c++) {
+			values[c][rows] = GETTERS.get(c).applyAsDouble(state);
+		}
+
+		if(++rows == BLOCK_ROWS) {
+			writeBlock();
+		}
+	}
+
+	private void writeBlock() throws IOException {
+		block.reset();
+		DataOutputStream blockOut = new DataOutputStream(block);
+
+		for(int c = 0; c < values.length; c++) {
+			column.reset();
+			DataOutputStream columnOut = new DataOutputStream(column);
+			byte encoding;
+
+			if(c == 0) {
+				encoding = compress ? DELTA : RAW;
+
+				if(compress) {
+					writeDeltas(columnOut);
+				} else {
+					for(int i = 0; i < rows; i++) {
+						columnOut.writeLong(times[i]);
+					}
+				}
+			} else {
+				encoding = compress ? XOR : RAW;
+
+				if(compress) {
+					writeXors(values[c], columnOut);
+				} else {
+					for(int i = 0; i < rows; i++) {
+						columnOut.writeDouble(values[c][i]);
+					}
+				}
+			}
+
+			blockOut.writeByte(encoding);
+			blockOut.writeInt(column.size());
+			column.writeTo(blockOut);
+		}
+
+		out.writeInt(rows);
+		out.writeLong(times[0]);
+		out.writeLong(times[rows - 1]);
+		out.writeInt(block.size());
+		block.writeTo(out);
+
+		rows = 0;
+	}
+
+	private void writeDeltas(DataOutputStream columnOut) throws IOException {
+		columnOut.writeLong(times[0]);
+
+		long step = 0;
+		for(int i = 1; i < rows; i++) {
+			long next = times[i] - times[i - 1];
+			long change = next - step;
+			step = next;
+
+			// Zigzag, so that small negative changes are small numbers
+			long value = (change << 1) ^ (change >> 63);
+
+			while((value & ~0x7FL) != 0) {
+				columnOut.writeByte((int) (value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+
+			columnOut.writeByte((int) value);
+		}
+	}
+
+	private void writeXors(double[] column, DataOutputStream columnOut) throws IOException {
+		BitWriter bits = new BitWriter(columnOut);
+
+		long previous = Double.doubleToRawLongBits(column[0]);
+		bits.write(previous, 64);
+
+		// The window of meaningful bits of the last value that was stored with its own window
+		int leading = -1, trailing = 0;
+
+		for(int i = 1; i < rows; i++) {
+			long value = Double.doubleToRawLongBits(column[i]);
+			long xor = value ^ previous;
+			previous = value;
+
+			if(xor == 0) {
+				bits.write(0, 1);
+				continue;
+			}
+
+			// The count is stored in five bits
+			int lz = Math.min(Long.numberOfLeadingZeros(xor), 31);
+			int tz = Long.numberOfTrailingZeros(xor);
+
+			if(leading >= 0 && lz >= leading && tz >= trailing) {
+				bits.write(0b10, 2);
+				bits.write(xor >>> trailing, 64 - leading - trailing);
+			} else {
+				int meaningful = 64 - lz - tz;
+
+				bits.write(0b11, 2);
+				bits.write(lz, 5);
+				bits.write(meaningful - 1, 6);
+				bits.write(xor >>> tz, meaningful);
+
+				leading = lz;
+				trailing = tz;
+			}
+		}
+
+		bits.finish();
+	}
+
+	/** Writes bits from the most significant end of each byte, gathering them into longs */
+	private static final class BitWriter {
+		private final DataOutputStream out;
+		private long current = 0;
+		private int used = 0;
+
+		BitWriter(DataOutputStream out) {
+			this.out = out;
+		}
+
+		/** Writes the lowest bits of a value, most significant first */
+		void write(long value, int bits) throws IOException {
+			if(bits < 64) {
+				value &= (1L << bits) - 1;
+			}
+
+			int free = 64 - used;
+
+			if(bits < free) {
+				current |= value << (free - bits);
+				used += bits;
+			} else {
+				int rest = bits - free;
+				out.writeLong(current | value >>> rest);
+
+				current = rest == 0 ? 0 : value << (64 - rest);
+				used = rest;
+			}
+		}
+
+		/** Writes the bits that are left, padding the last byte with zeros */
+		void finish() throws IOException {
+			for(int shift = 56; used > 0; shift -= 8, used -= 8) {
+				out.writeByte((int) (current >>> shift));
+			}
+		}
+	}
+
+	/** Writes the block that has not been written yet, even if it is not full */
+	@Override
+	public long flush() throws IOException {
+		if(rows > 0) {
+			writeBlock();
+		}
+
+		out.flush();
+		return channel.position();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		out.close();
+	}
+}
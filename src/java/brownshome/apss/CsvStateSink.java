@@ -0,0 +1,52 @@
+package brownshome.apss;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import brownshome.apss.OrbitalSimulation.State;
+
+/** Writes a row of text for each state, with the time, speed, Lorentz force, radius, current and field strength */
+public class CsvStateSink implements StateSink {
+	public static final String HEADER = "\"Timestep\",\"Velocity\",\"Lorrentz Force\",\"Height\",\"Current\",\"Field Strength\"\n";
+
+	private final FileChannel channel;
+	private final Writer writer;
+
+	/**
+	 * @param position the length of the file to keep, zero to start a new file with a header
+	 */
+	public CsvStateSink(Path file, long position) throws IOException {
+		channel = StateSink.openForWriting(file, position);
+		writer = new BufferedWriter(Channels.newWriter(channel, "UTF-8"));
+
+		if(position == 0) {
+			writer.write(HEADER);
+		}
+	}
+
+	@Override
+	public void write(State state) throws IOException {
+		writer.write(String.format("\"%.3f\",\"%.3e\",\"%.3e\",\"%.3e\",\"%.3e\",\"%.3e\"\n",
+				state.time / 1e9,
+				state.velocity.length(),
+				state.lorentzForce.length(),
+				state.position.length(),
+				state.current,
+				state.magneticField.length()));
+	}
+
+	@Override
+	public long flush() throws IOException {
+		writer.flush();
+		return channel.position();
+	}
+
+	@Override
+	public void close() throws IOException {
+		writer.close();
+	}
+}
@@ -0,0 +1,80 @@
+package brownshome.apss;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * A dipole at the centre of the earth, tilted to match the degree one terms of the World Magnetic Model. This is the
+ * same as the model truncated to degree one, but is evaluated in Java without the native library. In low earth orbit
+ * the error against the full model is around 9000 nT RMS, and can be over half of the field where the field is weak.
+ */
+public final class DipoleFieldModel implements MagneticFieldModel {
+	public static final DipoleFieldModel INSTANCE = new DipoleFieldModel();
+
+	/** The reference radius of the model (m) */
+	private static final double REFERENCE_RADIUS = 6371200;
+
+	/** The degree one coefficients, read from WMM.COF on first use */
+	private static final class Coefficients {
+		/** g10, g11, h11 (nT) and their rates of change (nT per year) */
+		static final double G10, G11, H11, G10_RATE, G11_RATE, H11_RATE;
+		static final double EPOCH;
+
+		static {
+			try(BufferedReader reader = Files.newBufferedReader(Paths.get("WMM.COF"), StandardCharsets.US_ASCII)) {
+				EPOCH = Double.parseDouble(reader.readLine().trim().split("\\s+")[0]);
+
+				// n m g h g-rate h-rate
+				String[] g10 = reader.readLine().trim().split("\\s+");
+				String[] g11 = reader.readLine().trim().split("\\s+");
+
+				G10 = Double.parseDouble(g10[2]);
+				G10_RATE = Double.parseDouble(g10[4]);
+				G11 = Double.parseDouble(g11[2]);
+				H11 = Double.parseDouble(g11[3]);
+				G11_RATE = Double.parseDouble(g11[4]);
+				H11_RATE = Double.parseDouble(g11[5]);
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	private DipoleFieldModel() { }
+
+	@Override
+	public Vec3 getFieldStrength(Vec3 position, double decimalYear) {
+		double years = decimalYear - Coefficients.EPOCH;
+
+		// The coefficients are in an earth fixed frame with x through 0-longitude and z through the north pole. In the
+		// simulation frame 0-longitude is -z, 90 degrees east is x, and north is y.
+		double gx = (Coefficients.H11 + years * Coefficients.H11_RATE) * 1e-9;
+		double gy = (Coefficients.G10 + years * Coefficients.G10_RATE) * 1e-9;
+		double gz = -(Coefficients.G11 + years * Coefficients.G11_RATE) * 1e-9;
+
+		// B = (a / r)^3 (3 (g.r) r / r^2 - g)
+		double r2 = position.lengthSquared();
+		double r = Math.sqrt(r2);
+		double scale = REFERENCE_RADIUS * REFERENCE_RADIUS * REFERENCE_RADIUS / (r2 * r);
+		double gDotR = 3 * (gx * position.x + gy * position.y + gz * position.z) / r2;
+
+		return new Vec3(
+				scale * (gDotR * position.x - gx),
+				scale * (gDotR * position.y - gy),
+				scale * (gDotR * position.z - gz));
+	}
+
+	@Override
+	public String getName() {
+		return "dipole";
+	}
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+}
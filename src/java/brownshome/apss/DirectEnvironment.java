@@ -0,0 +1,88 @@
+package brownshome.apss;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Evaluates the underlying models at every requested point.
+ *
+ * The field is found with a choice of {@link MagneticFieldModel}, the full World Magnetic Model by default. The model
+ * is evaluated at the date of the state, which is the epoch plus the simulation time. The secular variation of the
+ * field is so slow that the date is only moved on once every refresh interval, so that the native library can keep
+ * the coefficients for that date between calls. The electron density is found with a choice of {@link PlasmaModel},
+ * the International Reference Ionosphere by default.
+ */
+public class DirectEnvironment implements Environment {
+	/** The date that the field model was evaluated at before the epoch could be set, 2017.5 */
+	public static final Instant DEFAULT_EPOCH = Instant.parse("2017-07-02T12:00:00Z");
+	public static final long DEFAULT_FIELD_REFRESH = Duration.ofDays(1).toNanos();
+
+	private final MagneticFieldModel fieldModel;
+	private final PlasmaModel plasmaModel;
+	private final Instant epoch;
+	private final long fieldRefresh;
+
+	/** The refresh interval that the field date was last found for, and that date as a decimal year */
+	private long fieldInterval = Long.MIN_VALUE;
+	private double fieldYear;
+
+	public DirectEnvironment() {
+		this(WorldMagneticModel.FULL, IriPlasmaModel.getInstance(), DEFAULT_EPOCH, DEFAULT_FIELD_REFRESH);
+	}
+
+	/**
+	 * @param fieldModel the model of the magnetic field
+	 * @param plasmaModel the model of the electron density
+	 * @param epoch the date at a simulation time of zero
+	 * @param fieldRefresh the time between changes to the date of the field model in nanoseconds
+	 */
+	public DirectEnvironment(MagneticFieldModel fieldModel, PlasmaModel plasmaModel, Instant epoch, long fieldRefresh) {
+		if(fieldRefresh <= 0) {
+			throw new IllegalArgumentException("The field refresh interval must be positive");
+		}
+
+		this.fieldModel = fieldModel;
+		this.plasmaModel = plasmaModel;
+		this.epoch = epoch;
+		this.fieldRefresh = fieldRefresh;
+	}
+
+	public MagneticFieldModel getFieldModel() {
+		return fieldModel;
+	}
+
+	public PlasmaModel getPlasmaModel() {
+		return plasmaModel;
+	}
+
+	public Instant getEpoch() {
+		return epoch;
+	}
+
+	public long getFieldRefresh() {
+		return fieldRefresh;
+	}
+
+	@Override
+	public Vec3 getMagneticFieldStrength(Vec3 position, Vec3 velocity, long time) {
+		// The start of the interval is used, so that the date does not depend on which states were evaluated before
+		long interval = Math.floorDiv(time, fieldRefresh);
+
+		if(interval != fieldInterval) {
+			fieldYear = UnderlyingModels.toDecimalYear(epoch.plusNanos(interval * fieldRefresh));
+			fieldInterval = interval;
+		}
+
+		return fieldModel.getFieldStrength(position, fieldYear);
+	}
+
+	@Override
+	public double getPlasmaDensity(Vec3 position, Vec3 velocity, long time) {
+		return plasmaModel.getDensity(position);
+	}
+
+	@Override
+	public double getAtmosphericDensity(Vec3 position, Vec3 velocity, long time) {
+		return UnderlyingModels.getAtmosphericDensity(position);
+	}
+}
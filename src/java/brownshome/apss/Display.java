@@ -68,6 +68,10 @@ public class Display extends Application {
 	}
 	
 	private static final double SAT_SIZE = 2.5e5;
+	/** The number of points in the grid of field arrows, 45 by 45 */
+	private static final int FIELD_GRID_POINTS = 45 * 45;
+	/** The positions and field strengths of the arrows, as x, y, z triples, reused every frame */
+	private final double[] fieldPositions = new double[FIELD_GRID_POINTS * 3], fieldStrengths = new double[FIELD_GRID_POINTS * 3];
 	private void animationLoop() {
 		if(simulation != null) {
 			simulation.step(timePerFrame);
@@ -82,18 +86,28 @@ public class Display extends Application {
 			context.scale(4e-5, -4e-5);
 			
 			context.setStroke(Color.BLUE);
+			int arrows = 0;
 			for(double x = -9e6; x < 9e6; x += 4e5) {
 				for(double y = -9e6; y < 9e6; y += 4e5) {
-					Vec3 v = new Vec3(x, y, state.position.z);
-					
-					if(v.lengthSquared() < UnderlyingModels.rE * UnderlyingModels.rE * 0.5)
+					if(x * x + y * y + state.position.z * state.position.z < UnderlyingModels.rE * UnderlyingModels.rE * 0.5)
 						continue;
 					
-					Vec3 s = UnderlyingModels.getMagneticFieldStrength(v);
-					drawVector(s.scale(6e9), v);
+					fieldPositions[arrows * 3] = x;
+					fieldPositions[arrows * 3 + 1] = y;
+					fieldPositions[arrows * 3 + 2] = state.position.z;
+					arrows++;
 				}
 			}
 			
+			// One call into the field model for the whole grid
+			UnderlyingModels.getMagneticFieldStrength(fieldPositions, fieldStrengths, arrows);
+			
+			for(int i = 0; i < arrows * 3; i += 3) {
+				Vec3 p = new Vec3(fieldPositions[i], fieldPositions[i + 1], fieldPositions[i + 2]);
+				Vec3 s = new Vec3(fieldStrengths[i], fieldStrengths[i + 1], fieldStrengths[i + 2]);
+				drawVector(s.scale(6e9), p);
+			}
+			
 			context.setFill(Color.LIGHTSKYBLUE);
 			context.fillOval(-UnderlyingModels.rE, -UnderlyingModels.rE, UnderlyingModels.rE * 2, UnderlyingModels.rE * 2);
 			
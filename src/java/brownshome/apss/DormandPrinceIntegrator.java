@@ -0,0 +1,246 @@
+package brownshome.apss;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import brownshome.apss.OrbitalSimulation.State;
+
+/**
+ * Embedded Runge-Kutta 5(4) integration using the Dormand-Prince coefficients, with the step length chosen to keep the
+ * local error estimate inside the requested tolerances.
+ *
+ * The time step of the simulation is used as the first trial step, after that the step length is chosen by the
+ * integrator and carried over between calls.
+ */
+public class DormandPrinceIntegrator implements Integrator {
+	private static final double NANOS_PER_SECOND = 1e9;
+
+	// Butcher tableau, see Dormand & Prince (1980)
+	private static final double C2 = 1.0 / 5, C3 = 3.0 / 10, C4 = 4.0 / 5, C5 = 8.0 / 9;
+
+	private static final double
+			A21 = 1.0 / 5,
+			A31 = 3.0 / 40, A32 = 9.0 / 40,
+			A41 = 44.0 / 45, A42 = -56.0 / 15, A43 = 32.0 / 9,
+			A51 = 19372.0 / 6561, A52 = -25360.0 / 2187, A53 = 64448.0 / 6561, A54 = -212.0 / 729,
+			A61 = 9017.0 / 3168, A62 = -355.0 / 33, A63 = 46732.0 / 5247, A64 = 49.0 / 176, A65 = -5103.0 / 18656,
+			A71 = 35.0 / 384, A73 = 500.0 / 1113, A74 = 125.0 / 192, A75 = -2187.0 / 6784, A76 = 11.0 / 84;
+
+	/** The difference between the fifth and fourth order weights, used for the error estimate */
+	private static final double
+			E1 = 71.0 / 57600, E3 = -71.0 / 16695, E4 = 71.0 / 1920, E5 = -17253.0 / 339200, E6 = 22.0 / 525, E7 = -1.0 / 40;
+
+	private static final double SAFETY = 0.9, MIN_SCALE = 0.2, MAX_SCALE = 5.0;
+
+	private final double positionAbsoluteTolerance, positionRelativeTolerance;
+	private final double velocityAbsoluteTolerance, velocityRelativeTolerance;
+
+	private long minimumStep = 1_000_000; // 1ms
+	private long maximumStep = Long.MAX_VALUE;
+
+	/** The step that will be attempted next, or zero if no step has been taken yet */
+	private long nextStep = 0;
+
+	private long acceptedSteps = 0, rejectedSteps = 0;
+
+	// Scratch space, reused so that the only allocations in a step are the states themselves
+	private final double[] y = new double[6], stage = new double[6], error = new double[6];
+	private final double[] k1 = new double[6], k2 = new double[6], k3 = new double[6], k4 = new double[6],
+			k5 = new double[6], k6 = new double[6], k7 = new double[6];
+
+	/**
+	 * @param positionAbsoluteTolerance the allowed local position error (m)
+	 * @param positionRelativeTolerance the allowed local position error as a fraction of the distance from the origin
+	 * @param velocityAbsoluteTolerance the allowed local velocity error (m/s)
+	 * @param velocityRelativeTolerance the allowed local velocity error as a fraction of the speed
+	 */
+	public DormandPrinceIntegrator(double positionAbsoluteTolerance, double positionRelativeTolerance,
+	                               double velocityAbsoluteTolerance, double velocityRelativeTolerance) {
+		assert positionAbsoluteTolerance >= 0 && positionRelativeTolerance >= 0
+				&& velocityAbsoluteTolerance >= 0 && velocityRelativeTolerance >= 0;
+
+		this.positionAbsoluteTolerance = positionAbsoluteTolerance;
+		this.positionRelativeTolerance = positionRelativeTolerance;
+		this.velocityAbsoluteTolerance = velocityAbsoluteTolerance;
+		this.velocityRelativeTolerance = velocityRelativeTolerance;
+	}
+
+	/**
+	 * Sets the bounds on the step length. Steps that fail the error test at the minimum step length are accepted
+	 * anyway, so that discontinuities in the forces do not stall the simulation.
+	 */
+	public void setStepLimits(long minimumStep, long maximumStep) {
+		assert minimumStep > 0 && maximumStep >= minimumStep;
+
+		this.minimumStep = minimumStep;
+		this.maximumStep = maximumStep;
+	}
+
+	public long getAcceptedSteps() {
+		return acceptedSteps;
+	}
+
+	public long getRejectedSteps() {
+		return rejectedSteps;
+	}
+
+	/** The step length that will be tried next, in nanoseconds */
+	public long getNextStep() {
+		return nextStep;
+	}
+
+	/** Writes the tolerances and the step size controller, see {@link Checkpoint} */
+	void writeCheckpoint(DataOutput out) throws IOException {
+		out.writeDouble(positionAbsoluteTolerance);
+		out.writeDouble(positionRelativeTolerance);
+		out.writeDouble(velocityAbsoluteTolerance);
+		out.writeDouble(velocityRelativeTolerance);
+		out.writeLong(minimumStep);
+		out.writeLong(maximumStep);
+		out.writeLong(nextStep);
+		out.writeLong(acceptedSteps);
+		out.writeLong(rejectedSteps);
+	}
+
+	static DormandPrinceIntegrator readCheckpoint(DataInput in) throws IOException {
+		DormandPrinceIntegrator integrator = new DormandPrinceIntegrator(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+		integrator.minimumStep = in.readLong();
+		integrator.maximumStep = in.readLong();
+		integrator.nextStep = in.readLong();
+		integrator.acceptedSteps = in.readLong();
+		integrator.rejectedSteps = in.readLong();
+
+		return integrator;
+	}
+
+	@Override
+	public State step(OrbitalSimulation simulation, State state, long nanos) {
+		if(nextStep == 0) {
+			nextStep = clamp(simulation.getTimeStep());
+		}
+
+		long remaining = nanos;
+
+		while(remaining > 0) {
+			long h = Math.min(nextStep, remaining);
+			boolean truncated = h < nextStep;
+
+			State next = attemptStep(simulation, state, h);
+			double norm = errorNorm(state, next);
+
+			if(norm <= 1.0 || h <= minimumStep) {
+				acceptedSteps++;
+				state = next;
+				remaining -= h;
+
+				long proposed = clamp((long) (h * scaleFactor(norm, MAX_SCALE)));
+
+				// A step shortened to land on the end of the interval says nothing about the error of a full step
+				nextStep = truncated ? Math.max(nextStep, proposed) : proposed;
+			} else {
+				rejectedSteps++;
+				nextStep = clamp((long) (h * scaleFactor(norm, 1.0)));
+			}
+		}
+
+		return state;
+	}
+
+	private long clamp(long step) {
+		return Math.max(minimumStep, Math.min(maximumStep, step));
+	}
+
+	private static double scaleFactor(double errorNorm, double maxScale) {
+		if(errorNorm == 0) {
+			return maxScale;
+		}
+
+		double scale = SAFETY * Math.pow(errorNorm, -0.2);
+		return Math.max(MIN_SCALE, Math.min(maxScale, scale));
+	}
+
+	/**
+	 * Takes one step of length h, writing the (position, velocity) error estimate into error.
+	 * The returned state is the fifth order solution.
+	 */
+	private State attemptStep(OrbitalSimulation simulation, State state, long h) {
+		double dt = h / NANOS_PER_SECOND;
+
+		load(state.position, state.velocity, y);
+		load(state.velocity, state.acceleration, k1);
+
+		for(int i = 0; i < 6; i++) {
+			stage[i] = y[i] + dt * (A21 * k1[i]);
+		}
+		derivative(simulation, state.time + (long) (h * C2), k2);
+
+		for(int i = 0; i < 6; i++) {
+			stage[i] = y[i] + dt * (A31 * k1[i] + A32 * k2[i]);
+		}
+		derivative(simulation, state.time + (long) (h * C3), k3);
+
+		for(int i = 0; i < 6; i++) {
+			stage[i] = y[i] + dt * (A41 * k1[i] + A42 * k2[i] + A43 * k3[i]);
+		}
+		derivative(simulation, state.time + (long) (h * C4), k4);
+
+		for(int i = 0; i < 6; i++) {
+			stage[i] = y[i] + dt * (A51 * k1[i] + A52 * k2[i] + A53 * k3[i] + A54 * k4[i]);
+		}
+		derivative(simulation, state.time + (long) (h * C5), k5);
+
+		for(int i = 0; i < 6; i++) {
+			stage[i] = y[i] + dt * (A61 * k1[i] + A62 * k2[i] + A63 * k3[i] + A64 * k4[i] + A65 * k5[i]);
+		}
+		derivative(simulation, state.time + h, k6);
+
+		for(int i = 0; i < 6; i++) {
+			stage[i] = y[i] + dt * (A71 * k1[i] + A73 * k3[i] + A74 * k4[i] + A75 * k5[i] + A76 * k6[i]);
+		}
+		State next = createState(simulation, state.time + h);
+		load(next.velocity, next.acceleration, k7);
+
+		for(int i = 0; i < 6; i++) {
+			error[i] = dt * (E1 * k1[i] + E3 * k3[i] + E4 * k4[i] + E5 * k5[i] + E6 * k6[i] + E7 * k7[i]);
+		}
+
+		return next;
+	}
+
+	/** The RMS of the error scaled by the tolerance of each component */
+	private double errorNorm(State start, State end) {
+		double positionScale = Math.max(start.position.length(), end.position.length());
+		double velocityScale = Math.max(start.velocity.length(), end.velocity.length());
+
+		double positionTolerance = positionAbsoluteTolerance + positionRelativeTolerance * positionScale;
+		double velocityTolerance = velocityAbsoluteTolerance + velocityRelativeTolerance * velocityScale;
+
+		double sum = 0;
+		for(int i = 0; i < 6; i++) {
+			double scaled = error[i] / (i < 3 ? positionTolerance : velocityTolerance);
+			sum += scaled * scaled;
+		}
+
+		return Math.sqrt(sum / 6);
+	}
+
+	private State createState(OrbitalSimulation simulation, long time) {
+		return simulation.createState(new Vec3(stage[0], stage[1], stage[2]), new Vec3(stage[3], stage[4], stage[5]), time);
+	}
+
+	/** Evaluates the derivative at the stage point, writing it into result */
+	private void derivative(OrbitalSimulation simulation, long time, double[] result) {
+		State s = createState(simulation, time);
+		load(s.velocity, s.acceleration, result);
+	}
+
+	private static void load(Vec3 first, Vec3 second, double[] result) {
+		result[0] = first.x;
+		result[1] = first.y;
+		result[2] = first.z;
+		result[3] = second.x;
+		result[4] = second.y;
+		result[5] = second.z;
+	}
+}
@@ -6,7 +6,9 @@ package brownshome.apss;
  * It handles the calculation of the voltage drop
  **/
 public class Emitter {
-	private static final double POWER_LIMIT = 1.5, CURRENT_LIMIT = 12e-3, BIAS_MAX = 200;
+	/** The limits of the thermionic cathode */
+	static final double POWER_LIMIT = 1.5, CURRENT_LIMIT = 12e-3;
+	private static final double BIAS_MAX = 200;
 
 	private static final double THERMAL_CATHODE_DROP = 200;
 
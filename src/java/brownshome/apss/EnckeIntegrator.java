@@ -0,0 +1,199 @@
+package brownshome.apss;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import brownshome.apss.OrbitalSimulation.State;
+
+/**
+ * Encke's method. The satellite follows a reference two body orbit that is propagated analytically, and only the
+ * small deviation from that orbit, caused by the tether and drag forces, is integrated. The deviation is integrated
+ * with fixed step fourth order Runge-Kutta using the time step of the simulation.
+ *
+ * When the deviation grows past a fraction of the orbital radius the reference orbit is rectified, replacing it with
+ * the osculating orbit of the current state.
+ */
+public class EnckeIntegrator implements Integrator {
+	private static final double NANOS_PER_SECOND = 1e9;
+
+	private final double rectificationThreshold;
+
+	/** The reference orbit, with its epoch at referenceTime */
+	private KeplerOrbit reference;
+	private long referenceTime;
+
+	/** The last state returned, and its deviation from the reference orbit */
+	private State lastState;
+	private final double[] deviation = new double[6];
+
+	private long rectifications = 0;
+
+	// Scratch space, reused so that the only allocations in a step are the states themselves
+	private final double[] stage = new double[6];
+	private final double[] k1 = new double[6], k2 = new double[6], k3 = new double[6], k4 = new double[6];
+	private final double[] startReference = new double[6], midReference = new double[6], endReference = new double[6];
+
+	/**
+	 * @param rectificationThreshold the size of the position deviation, as a fraction of the radius of the
+	 *                                  reference orbit, at which the reference orbit is replaced
+	 */
+	public EnckeIntegrator(double rectificationThreshold) {
+		assert rectificationThreshold > 0;
+
+		this.rectificationThreshold = rectificationThreshold;
+	}
+
+	public EnckeIntegrator() {
+		this(1e-4);
+	}
+
+	/** The number of reference orbits that have been used */
+	public long getRectifications() {
+		return rectifications;
+	}
+
+	/** Writes the reference orbit and the deviation from it, see {@link Checkpoint} */
+	void writeCheckpoint(DataOutput out) throws IOException {
+		out.writeDouble(rectificationThreshold);
+		out.writeLong(rectifications);
+		out.writeBoolean(reference != null);
+
+		if(reference != null) {
+			Checkpoint.writeVector(out, reference.position);
+			Checkpoint.writeVector(out, reference.velocity);
+			out.writeLong(referenceTime);
+
+			for(double d : deviation) {
+				out.writeDouble(d);
+			}
+		}
+	}
+
+	static EnckeIntegrator readCheckpoint(DataInput in) throws IOException {
+		EnckeIntegrator integrator = new EnckeIntegrator(in.readDouble());
+		integrator.rectifications = in.readLong();
+
+		if(in.readBoolean()) {
+			integrator.reference = new KeplerOrbit(Checkpoint.readVector(in), Checkpoint.readVector(in));
+			integrator.referenceTime = in.readLong();
+
+			for(int i = 0; i < 6; i++) {
+				integrator.deviation[i] = in.readDouble();
+			}
+		}
+
+		return integrator;
+	}
+
+	/**
+	 * Continues from the checkpointed reference orbit and deviation, instead of rectifying when the restored state is
+	 * first stepped.
+	 */
+	void resume(State state) {
+		if(reference != null) {
+			lastState = state;
+		}
+	}
+
+	@Override
+	public State step(OrbitalSimulation simulation, State state, long nanos) {
+		if(state != lastState) {
+			rectify(state);
+		}
+
+		long timeStep = simulation.getTimeStep();
+
+		while(nanos > timeStep) {
+			nanos -= timeStep;
+			stepImpl(simulation, timeStep);
+		}
+
+		stepImpl(simulation, nanos); //last step
+
+		return lastState;
+	}
+
+	private void rectify(State state) {
+		reference = new KeplerOrbit(state.position, state.velocity);
+		referenceTime = state.time;
+		lastState = state;
+		Arrays.fill(deviation, 0);
+		rectifications++;
+	}
+
+	/* Does a single step, starting from lastState */
+	private void stepImpl(OrbitalSimulation simulation, long nanos) {
+		double dt = nanos / NANOS_PER_SECOND;
+		long time = lastState.time;
+
+		double[] y = deviation;
+
+		reference.propagate(seconds(time), startReference);
+		derivative(lastState, startReference, y, k1);
+
+		for(int i = 0; i < 6; i++) {
+			stage[i] = y[i] + dt * 0.5 * k1[i];
+		}
+		reference.propagate(seconds(time + nanos / 2), midReference);
+		derivative(createState(simulation, midReference, stage, time + nanos / 2), midReference, stage, k2);
+
+		for(int i = 0; i < 6; i++) {
+			stage[i] = y[i] + dt * 0.5 * k2[i];
+		}
+		derivative(createState(simulation, midReference, stage, time + nanos / 2), midReference, stage, k3);
+
+		for(int i = 0; i < 6; i++) {
+			stage[i] = y[i] + dt * k3[i];
+		}
+		reference.propagate(seconds(time + nanos), endReference);
+		derivative(createState(simulation, endReference, stage, time + nanos), endReference, stage, k4);
+
+		for(int i = 0; i < 6; i++) {
+			y[i] += dt / 6.0 * (k1[i] + 2 * k2[i] + 2 * k3[i] + k4[i]);
+		}
+
+		lastState = createState(simulation, endReference, y, time + nanos);
+
+		double deviationLength = Math.sqrt(y[0] * y[0] + y[1] * y[1] + y[2] * y[2]);
+		double radius = Math.sqrt(endReference[0] * endReference[0] + endReference[1] * endReference[1] + endReference[2] * endReference[2]);
+		if(deviationLength > rectificationThreshold * radius) {
+			rectify(lastState);
+		}
+	}
+
+	private double seconds(long time) {
+		return (time - referenceTime) / NANOS_PER_SECOND;
+	}
+
+	private static State createState(OrbitalSimulation simulation, double[] reference, double[] deviation, long time) {
+		return simulation.createState(
+				new Vec3(reference[0] + deviation[0], reference[1] + deviation[1], reference[2] + deviation[2]),
+				new Vec3(reference[3] + deviation[3], reference[4] + deviation[4], reference[5] + deviation[5]),
+				time);
+	}
+
+	/**
+	 * The rate of change of the deviation. This is the difference between the point mass gravity at the state and at
+	 * the reference orbit, plus every other acceleration acting on the state.
+	 */
+	private static void derivative(State state, double[] reference, double[] deviation, double[] result) {
+		double δx = deviation[0], δy = deviation[1], δz = deviation[2];
+		Vec3 r = state.position;
+		double ρ = Math.sqrt(reference[0] * reference[0] + reference[1] * reference[1] + reference[2] * reference[2]);
+
+		// Battin's formulation avoids subtracting the two nearly equal gravity terms
+		double q = (δx * (δx - 2 * r.x) + δy * (δy - 2 * r.y) + δz * (δz - 2 * r.z)) / r.lengthSquared();
+		double f = q * (3 + 3 * q + q * q) / (1 + Math.pow(1 + q, 1.5));
+		double k = -UnderlyingModels.μE / (ρ * ρ * ρ);
+
+		// The gravity difference, plus the perturbing acceleration
+		result[0] = deviation[3];
+		result[1] = deviation[4];
+		result[2] = deviation[5];
+		result[3] = (r.x * f + δx) * k + (state.acceleration.x - state.gravity.x);
+		result[4] = (r.y * f + δy) * k + (state.acceleration.y - state.gravity.y);
+		result[5] = (r.z * f + δz) * k + (state.acceleration.z - state.gravity.z);
+	}
+}
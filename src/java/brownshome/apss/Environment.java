@@ -0,0 +1,18 @@
+package brownshome.apss;
+
+/**
+ * The conditions of the space environment that the satellite moves through.
+ *
+ * The velocity and time of the satellite are provided so that implementations may sample the underlying models
+ * along the trajectory instead of at every point.
+ */
+public interface Environment {
+	/** @return The vector of the magnetic field (T) */
+	Vec3 getMagneticFieldStrength(Vec3 position, Vec3 velocity, long time);
+
+	/** @return The electron density (e per m3) */
+	double getPlasmaDensity(Vec3 position, Vec3 velocity, long time);
+
+	/** @return The density of the atmosphere (kg per m3) */
+	double getAtmosphericDensity(Vec3 position, Vec3 velocity, long time);
+}
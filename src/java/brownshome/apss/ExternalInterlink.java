@@ -1,17 +1,35 @@
 package brownshome.apss;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.List;
 
+/**
+ * A link to another program over its standard input and output.
+ *
+ * By default values are sent as lines of text. Programs that support it can be switched to binary frames with
+ * {@link #negotiateBinary()}, where each message is a little endian int giving the length of the message in bytes,
+ * followed by the message. This avoids formatting and parsing the values, and doubles are sent exactly.
+ */
 public class ExternalInterlink {
+	private static final String BINARY_HANDSHAKE = "protocol binary";
+
 	private final Process process;
 
 	// IO streams from process
+	private final OutputStream output;
 	private final PrintWriter toProcess;
-	private final BufferedReader fromProcess;
+	private final InputStream fromProcess;
+
+	private boolean binary = false;
 
 	public ExternalInterlink(List<String> startupCall) {
 		ProcessBuilder processBuilder = new ProcessBuilder();
@@ -27,8 +45,38 @@ public class ExternalInterlink {
 			throw new IllegalStateException("Unable to start external program '" + startupCall + "'", e);
 		}
 
-		toProcess = new PrintWriter(process.getOutputStream());
-		fromProcess = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		output = new BufferedOutputStream(process.getOutputStream());
+		toProcess = new PrintWriter(output);
+		fromProcess = new BufferedInputStream(process.getInputStream());
+	}
+
+	/**
+	 * Asks the program to switch to binary frames. This must be the first thing sent to the program. A program that
+	 * supports binary frames replies with the same line, any other reply leaves the link sending text.
+	 *
+	 * @return true if frames should be used from now on
+	 */
+	public boolean negotiateBinary() throws IOException {
+		toProcess.println(BINARY_HANDSHAKE);
+		binary = BINARY_HANDSHAKE.equals(readString());
+
+		return binary;
+	}
+
+	/** @return true if the program agreed to binary frames */
+	public boolean isBinary() {
+		return binary;
+	}
+
+	/** @return false if the program has exited */
+	public boolean isAlive() {
+		return process.isAlive();
+	}
+
+	/** Stops the program */
+	public void close() {
+		toProcess.close();
+		process.destroy();
 	}
 
 	public void send(int i) {
@@ -51,11 +99,89 @@ public class ExternalInterlink {
 		toProcess.println(d);
 	}
 
+	/** Sends a line as it is, without waiting for the program to read it */
+	public void sendLine(CharSequence line) {
+		toProcess.append(line).println();
+	}
+
+	/** Makes sure that the program has received everything that has been sent, without waiting for a reply */
+	public void flush() {
+		toProcess.flush();
+	}
+
+	/**
+	 * Sends a binary frame without waiting for the program to read it.
+	 *
+	 * @param message the bytes from the position to the limit are sent
+	 */
+	public void sendFrame(ByteBuffer message) throws IOException {
+		assert binary;
+
+		toProcess.flush();
+
+		int length = message.remaining();
+		output.write(length);
+		output.write(length >>> 8);
+		output.write(length >>> 16);
+		output.write(length >>> 24);
+
+		if(message.hasArray()) {
+			output.write(message.array(), message.arrayOffset() + message.position(), length);
+		} else {
+			byte[] bytes = new byte[length];
+			message.duplicate().get(bytes);
+			output.write(bytes);
+		}
+	}
+
+	/** @return the next binary frame, as a little endian buffer */
+	public ByteBuffer readFrame() throws IOException {
+		assert binary;
+
+		flush();
+
+		byte[] header = readFully(new byte[4]);
+		int length = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).getInt();
+
+		if(length < 0) {
+			throw new IOException("Invalid frame length " + length);
+		}
+
+		return ByteBuffer.wrap(readFully(new byte[length])).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private byte[] readFully(byte[] bytes) throws IOException {
+		for(int read = 0; read < bytes.length; ) {
+			int count = fromProcess.read(bytes, read, bytes.length - read);
+
+			if(count < 0) {
+				throw new EOFException("The external program closed its output");
+			}
+
+			read += count;
+		}
+
+		return bytes;
+	}
+
+	/** @return the next line of text, or null if the program has closed its output */
 	public String readString() throws IOException {
 		// We flush to ensure that the program has received all commands before we wait for input
-		toProcess.flush();
+		flush();
+
+		// Read byte by byte from the shared stream, so that no bytes of a following frame are taken
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while((b = fromProcess.read()) != -1 && b != '\n') {
+			line.write(b);
+		}
 
-		return fromProcess.readLine();
+		if(b == -1 && line.size() == 0) {
+			return null;
+		}
+
+		String result = line.toString("UTF-8");
+		return result.endsWith("\r") ? result.substring(0, result.length() - 1) : result;
 	}
 
 	public int readInteger() throws IOException {
@@ -77,4 +203,28 @@ public class ExternalInterlink {
 	public double readDouble() throws IOException {
 		return Double.parseDouble(readString());
 	}
+
+	/**
+	 * Reads a line of values separated by spaces.
+	 *
+	 * @param result the values are written into this array, from the offset
+	 * @param count the number of values that the line must hold
+	 */
+	public void readDoubleArray(double[] result, int offset, int count) throws IOException {
+		String line = readString();
+
+		if(line == null) {
+			throw new IOException("The external program closed its output");
+		}
+
+		String[] splitLine = line.trim().split(" ");
+
+		if(count == 0 ? !line.trim().isEmpty() : splitLine.length != count) {
+			throw new IOException("Expected " + count + " values, got '" + line + "'");
+		}
+
+		for(int i = 0; i < count; i++) {
+			result[offset + i] = Double.parseDouble(splitLine[i]);
+		}
+	}
 }
\ No newline at end of file
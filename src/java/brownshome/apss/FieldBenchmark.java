@@ -0,0 +1,77 @@
+package brownshome.apss;
+
+/**
+ * Measures the speed of the magnetic field model, through single calls and through batched calls that cross into the
+ * native library once for many positions. The positions sweep around a shell in low earth orbit.
+ *
+ * This needs the native library and WMM.COF in the working directory.
+ *
+ * Usage: FieldBenchmark [positions per batch]
+ */
+public class FieldBenchmark {
+	private static final int WARMUP_POINTS = 200_000, MEASURED_POINTS = 1_000_000;
+
+	public static void main(String[] args) {
+		int batchSize = args.length > 0 ? Integer.parseInt(args[0]) : 2025;
+
+		double[] positions = new double[MEASURED_POINTS * 3];
+		for(int i = 0; i < MEASURED_POINTS; i++) {
+			double longitude = i * 0.001, latitude = 1.2 * Math.sin(i * 0.0007);
+			double r = UnderlyingModels.rE + 4e5;
+
+			positions[i * 3] = r * Math.cos(latitude) * Math.sin(longitude);
+			positions[i * 3 + 1] = r * Math.sin(latitude);
+			positions[i * 3 + 2] = -r * Math.cos(latitude) * Math.cos(longitude);
+		}
+
+		double[] field = new double[batchSize * 3];
+		double[] batch = new double[batchSize * 3];
+
+		single(positions, WARMUP_POINTS);
+		batched(positions, batch, field, WARMUP_POINTS);
+
+		long startTime = System.nanoTime();
+		double singleChecksum = single(positions, MEASURED_POINTS);
+		long singleNanos = System.nanoTime() - startTime;
+
+		startTime = System.nanoTime();
+		double batchedChecksum = batched(positions, batch, field, MEASURED_POINTS);
+		long batchedNanos = System.nanoTime() - startTime;
+
+		int crossings = (MEASURED_POINTS + batchSize - 1) / batchSize;
+
+		System.out.printf("Single: %.0f positions/s, %.0f JNI crossings/s, checksum: %e%n",
+				MEASURED_POINTS / (singleNanos / 1e9), MEASURED_POINTS / (singleNanos / 1e9), singleChecksum);
+		System.out.printf("Batches of %d: %.0f positions/s, %.0f JNI crossings/s, checksum: %e%n",
+				batchSize, MEASURED_POINTS / (batchedNanos / 1e9), crossings / (batchedNanos / 1e9), batchedChecksum);
+	}
+
+	private static double single(double[] positions, int count) {
+		double checksum = 0;
+
+		for(int i = 0; i < count; i++) {
+			Vec3 field = UnderlyingModels.getMagneticFieldStrength(new Vec3(positions[i * 3], positions[i * 3 + 1], positions[i * 3 + 2]));
+			checksum += field.x + field.y + field.z;
+		}
+
+		return checksum;
+	}
+
+	private static double batched(double[] positions, double[] batch, double[] field, int count) {
+		int batchSize = batch.length / 3;
+		double checksum = 0;
+
+		for(int start = 0; start < count; start += batchSize) {
+			int size = Math.min(batchSize, count - start);
+			System.arraycopy(positions, start * 3, batch, 0, size * 3);
+
+			UnderlyingModels.getMagneticFieldStrength(batch, field, size);
+
+			for(int i = 0; i < size * 3; i++) {
+				checksum += field[i];
+			}
+		}
+
+		return checksum;
+	}
+}
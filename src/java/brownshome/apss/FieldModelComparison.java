@@ -0,0 +1,90 @@
+package brownshome.apss;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reports the error and speed of the magnetic field models against the full World Magnetic Model, along circular
+ * orbits. The orbit is repeated with its ascending node moved around the earth, so that every longitude is crossed.
+ *
+ * This needs the native library and WMM.COF in the working directory.
+ *
+ * Usage: FieldModelComparison [semimajor axis (m)] [inclination] [comma separated models]
+ */
+public class FieldModelComparison {
+	private static final int ORBITS = 24, POINTS_PER_ORBIT = 500;
+	private static final int TIMING_REPEATS = 20;
+
+	public static void main(String[] args) {
+		double semimajorAxis = args.length > 0 ? Double.parseDouble(args[0]) : 6.771e6;
+		double inclination = args.length > 1 ? Double.parseDouble(args[1]) : 0.9;
+		String names = args.length > 2 ? args[2] : "grid,wmm:8,wmm:6,wmm:4,wmm:2,dipole";
+
+		double year = UnderlyingModels.toDecimalYear(DirectEnvironment.DEFAULT_EPOCH);
+
+		List<Vec3> positions = new ArrayList<>();
+		for(int orbit = 0; orbit < ORBITS; orbit++) {
+			OrbitCharacteristics start = new OrbitCharacteristics(0, semimajorAxis, inclination, 0, 0, orbit * 2 * Math.PI / ORBITS);
+			KeplerOrbit kepler = new KeplerOrbit(start.position, start.velocity);
+			double period = 2 * Math.PI * Math.sqrt(semimajorAxis * semimajorAxis * semimajorAxis / UnderlyingModels.μE);
+
+			for(int point = 0; point < POINTS_PER_ORBIT; point++) {
+				positions.add(kepler.propagate(point * period / POINTS_PER_ORBIT).position);
+			}
+		}
+
+		MagneticFieldModel reference = WorldMagneticModel.FULL;
+		List<Vec3> exact = new ArrayList<>();
+		for(Vec3 position : positions) {
+			exact.add(reference.getFieldStrength(position, year));
+		}
+
+		double referenceTime = time(reference, positions, year);
+
+		System.out.printf("%d points, semimajor axis %.0f m, inclination %.3f%n", positions.size(), semimajorAxis, inclination);
+		System.out.printf("%-8s %12s %12s %14s %12s %9s%n", "Model", "RMS (nT)", "Max (nT)", "Max relative", "ns/eval", "Speedup");
+		System.out.printf("%-8s %12s %12s %14s %12.0f %9s%n", reference.getName(), "-", "-", "-", referenceTime, "1.0");
+
+		for(String name : names.split(",")) {
+			MagneticFieldModel model = MagneticFieldModel.forName(name.trim());
+
+			double sumSquares = 0, maximum = 0, maximumRelative = 0;
+			for(int i = 0; i < positions.size(); i++) {
+				Vec3 field = model.getFieldStrength(positions.get(i), year);
+				double error = field.scaleAdd(exact.get(i), -1).length();
+
+				sumSquares += error * error;
+				maximum = Math.max(maximum, error);
+				maximumRelative = Math.max(maximumRelative, error / exact.get(i).length());
+			}
+
+			double modelTime = time(model, positions, year);
+
+			System.out.printf("%-8s %12.1f %12.1f %13.2f%% %12.0f %9.1f%n", model.getName(),
+					Math.sqrt(sumSquares / positions.size()) * 1e9, maximum * 1e9, maximumRelative * 100,
+					modelTime, referenceTime / modelTime);
+		}
+	}
+
+	/** The fastest time over several passes of evaluating the model at every position, in ns per evaluation */
+	private static double time(MagneticFieldModel model, List<Vec3> positions, double year) {
+		double best = Double.POSITIVE_INFINITY, checksum = 0;
+
+		for(int repeat = 0; repeat < TIMING_REPEATS; repeat++) {
+			long start = System.nanoTime();
+
+			for(Vec3 position : positions) {
+				checksum += model.getFieldStrength(position, year).x;
+			}
+
+			best = Math.min(best, (System.nanoTime() - start) / (double) positions.size());
+		}
+
+		// Keeps the evaluations from being optimised away
+		if(checksum == 0.1234) {
+			System.out.print("");
+		}
+
+		return best;
+	}
+}
@@ -0,0 +1,221 @@
+package brownshome.apss;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * The World Magnetic Model sampled on a grid of latitude, longitude and radius across the shell of low earth orbits,
+ * from 200 km to 2000 km altitude. Values between the nodes are found with a tricubic (Catmull-Rom) spline, without
+ * calling the native library.
+ *
+ * The coefficients of the model change linearly with time, so the field does too. Each node holds the field at the
+ * epoch of the model and its rate of change, so one grid covers every date. The field is stored in the simulation
+ * frame rather than as north, east and down, so that it is smooth across the poles. Positions outside of the shell are
+ * passed to the full model.
+ *
+ * Grids are stored in a file next to WMM.COF, keyed by the coefficients and the spacing, and memory mapped when they
+ * are loaded. They are shared by every simulation in the process, and the pages are shared by every process using the
+ * same file.
+ */
+public final class GriddedFieldModel implements MagneticFieldModel {
+	private static final long MAGIC = 0x415053534D475244L; // APSSMGRD
+	/** Changed whenever the layout of the grid changes, so that old files are rebuilt */
+	private static final int VERSION = 1;
+
+	/** The field (x, y, z) at the epoch, then its rate of change (per year) */
+	private static final int VALUES = 6;
+
+	private static final double MIN_RADIUS = UnderlyingModels.rE + 2e5, MAX_RADIUS = UnderlyingModels.rE + 2e6;
+	private static final double RADIUS_SPACING = 1e5;
+	/** One extra layer of nodes is kept on each side of the shell, so the spline does not need to repeat edge nodes */
+	private static final int RADIUS_NODES = (int) Math.round((MAX_RADIUS - MIN_RADIUS) / RADIUS_SPACING) + 3;
+
+	public static final double DEFAULT_SPACING = 2;
+
+	/** Grids that have already been loaded in this process, by key */
+	private static final Map<String, GriddedFieldModel> LOADED = new ConcurrentHashMap<>();
+
+	private final SphericalGrid grid;
+	private final double epoch;
+
+	/** Node values, indexed by (radius * layer size + node) * VALUES + value, see {@link SphericalGrid} */
+	private final DoubleBuffer nodes;
+
+	private GriddedFieldModel(SphericalGrid grid, double epoch, DoubleBuffer nodes) {
+		this.grid = grid;
+		this.epoch = epoch;
+		this.nodes = nodes;
+	}
+
+	/**
+	 * Gets the grid with a spacing, loading it from the file in the working directory or building it if there is none.
+	 *
+	 * @param spacing the spacing of the latitude and longitude nodes in degrees, this must divide 90
+	 */
+	public static GriddedFieldModel forSpacing(double spacing) {
+		SphericalGrid grid = new SphericalGrid(spacing);
+
+		try {
+			String key = key(spacing);
+			GriddedFieldModel model = LOADED.get(key);
+
+			if(model != null) {
+				return model;
+			}
+
+			Path file = Paths.get(String.format("field-grid-%08x.bin", key.hashCode()));
+
+			model = map(file, key, grid);
+			if(model == null) {
+				write(file, key, grid);
+				model = map(file, key, grid);
+			}
+
+			GriddedFieldModel existing = LOADED.putIfAbsent(key, model);
+			return existing == null ? model : existing;
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** Everything that the grid depends on */
+	private static String key(double spacing) throws IOException {
+		byte[] coefficients = Files.readAllBytes(Paths.get("WMM.COF"));
+		CRC32 crc = new CRC32();
+		crc.update(coefficients);
+
+		return String.format("v%d,%08x,%a,%d,%a,%a,%a,%d",
+				VERSION, crc.getValue(), modelEpoch(coefficients), UnderlyingModels.WMM_DEGREE,
+				spacing, MIN_RADIUS, MAX_RADIUS, RADIUS_NODES);
+	}
+
+	/** The epoch of the model, the first value in WMM.COF */
+	private static double modelEpoch(byte[] coefficients) {
+		return Double.parseDouble(new String(coefficients, StandardCharsets.US_ASCII).trim().split("\\s+")[0]);
+	}
+
+	/** Samples the model and writes the grid, see {@link SphericalGrid#write(Path, ByteBuffer)} */
+	private static void write(Path file, String key, SphericalGrid grid) throws IOException {
+		double epoch = modelEpoch(Files.readAllBytes(Paths.get("WMM.COF")));
+		int layer = grid.layerSize();
+
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		int header = SphericalGrid.align(8 + 4 + 4 + keyBytes.length + 8);
+
+		ByteBuffer buffer = SphericalGrid.allocate(header + (long) RADIUS_NODES * layer * VALUES * Double.BYTES);
+		buffer.putLong(MAGIC).putInt(header).putInt(keyBytes.length).put(keyBytes).putDouble(epoch);
+		buffer.position(header);
+
+		double[] positions = new double[layer * 3];
+		double[] now = new double[layer * 3];
+		double[] nextYear = new double[layer * 3];
+
+		for(int r = 0; r < RADIUS_NODES; r++) {
+			grid.positions(MIN_RADIUS + (r - 1) * RADIUS_SPACING, positions);
+
+			UnderlyingModels.getMagneticFieldStrength(positions, now, layer, epoch);
+			UnderlyingModels.getMagneticFieldStrength(positions, nextYear, layer, epoch + 1);
+
+			for(int node = 0; node < layer * 3; node += 3) {
+				buffer.putDouble(now[node]).putDouble(now[node + 1]).putDouble(now[node + 2]);
+				buffer.putDouble(nextYear[node] - now[node]).putDouble(nextYear[node + 1] - now[node + 1]).putDouble(nextYear[node + 2] - now[node + 2]);
+			}
+		}
+
+		buffer.flip();
+		SphericalGrid.write(file, buffer);
+	}
+
+	/** @return the grid, or null if there is no file or it holds a different grid */
+	private static GriddedFieldModel map(Path file, String key, SphericalGrid grid) throws IOException {
+		if(!Files.exists(file)) {
+			return null;
+		}
+
+		ByteBuffer buffer = SphericalGrid.map(file);
+
+		if(buffer.remaining() < 16 || buffer.getLong() != MAGIC) {
+			return null;
+		}
+
+		int header = buffer.getInt();
+		byte[] keyBytes = new byte[buffer.getInt()];
+		if(keyBytes.length > buffer.remaining()) {
+			return null;
+		}
+
+		buffer.get(keyBytes);
+		if(!new String(keyBytes, StandardCharsets.UTF_8).equals(key)) {
+			return null;
+		}
+
+		double epoch = buffer.getDouble();
+
+		long size = (long) RADIUS_NODES * grid.layerSize() * VALUES * Double.BYTES;
+		if(buffer.capacity() != header + size) {
+			return null;
+		}
+
+		return new GriddedFieldModel(grid, epoch, SphericalGrid.nodes(buffer, header).asDoubleBuffer());
+	}
+
+	@Override
+	public Vec3 getFieldStrength(Vec3 position, double decimalYear) {
+		double horizontal = Math.sqrt(position.x * position.x + position.z * position.z);
+		double radius = Math.sqrt(horizontal * horizontal + position.y * position.y);
+
+		// Also rejects NaN
+		if(!(radius >= MIN_RADIUS && radius <= MAX_RADIUS)) {
+			return WorldMagneticModel.FULL.getFieldStrength(position, decimalYear);
+		}
+
+		double r = (radius - MIN_RADIUS) / RADIUS_SPACING + 1;
+		int ri = Math.min((int) r, RADIUS_NODES - 3);
+
+		double[] wr = SphericalGrid.weights(r - ri);
+		SphericalGrid.Stencil stencil = grid.stencil(position, horizontal);
+		int layer = grid.layerSize();
+		double years = decimalYear - epoch;
+
+		double x = 0, y = 0, z = 0;
+
+		for(int a = 0; a < 4; a++) {
+			int layerBase = (ri + a - 1) * layer;
+
+			for(int n = 0; n < 16; n++) {
+				int index = (layerBase + stencil.nodes[n]) * VALUES;
+				double w = wr[a] * stencil.weights[n];
+
+				x += w * (nodes.get(index) + years * nodes.get(index + 3));
+				y += w * (nodes.get(index + 1) + years * nodes.get(index + 4));
+				z += w * (nodes.get(index + 2) + years * nodes.get(index + 5));
+			}
+		}
+
+		return new Vec3(x, y, z);
+	}
+
+	/** The spacing of the latitude and longitude nodes in degrees */
+	public double getSpacing() {
+		return grid.spacing;
+	}
+
+	@Override
+	public String getName() {
+		return grid.spacing == DEFAULT_SPACING ? "grid" : "grid:" + grid.spacing;
+	}
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+}
@@ -0,0 +1,240 @@
+package brownshome.apss;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The International Reference Ionosphere sampled on a grid of latitude, longitude and altitude, so that the density can
+ * be found without running the Python program. The plasma model is evaluated at a fixed date, so the density only
+ * depends on the position and one grid covers the whole of a run.
+ *
+ * The density changes by orders of magnitude with altitude, so each node holds the log of the density as a float, and
+ * values between the nodes are found with a tricubic (Catmull-Rom) spline of the log. Densities below one electron per
+ * cubic metre, which the model gives where it has no answer, are stored as one. Positions outside of the altitudes of
+ * the grid are passed to the full model.
+ *
+ * Grids are built ahead of time by {@link PlasmaGridBuilder}, and memory mapped when they are loaded. They are shared
+ * by every simulation in the process, and the pages are shared by every process using the same file.
+ */
+public final class GriddedPlasmaModel implements PlasmaModel {
+	private static final long MAGIC = 0x4150535350475244L; // APSSPGRD
+	/** Changed whenever the layout of the grid changes */
+	private static final int VERSION = 1;
+
+	public static final String DEFAULT_FILE = "plasma-grid.bin";
+
+	/** Grids that have already been loaded in this process, by file */
+	private static final Map<Path, GriddedPlasmaModel> LOADED = new ConcurrentHashMap<>();
+
+	private final Path file;
+	private final SphericalGrid grid;
+	private final double minAltitude, altitudeSpacing;
+	private final int altitudeNodes;
+
+	/** The log10 of the density at each node, indexed by altitude * layer size + node, see {@link SphericalGrid} */
+	private final FloatBuffer nodes;
+
+	private GriddedPlasmaModel(Path file, SphericalGrid grid, double minAltitude, double altitudeSpacing, int altitudeNodes, FloatBuffer nodes) {
+		this.file = file;
+		this.grid = grid;
+		this.minAltitude = minAltitude;
+		this.altitudeSpacing = altitudeSpacing;
+		this.altitudeNodes = altitudeNodes;
+		this.nodes = nodes;
+	}
+
+	/**
+	 * Loads the grid in a file.
+	 *
+	 * @throws IllegalArgumentException if there is no file, or it does not hold a grid for the date of the plasma model
+	 */
+	public static GriddedPlasmaModel open(Path file) {
+		GriddedPlasmaModel model = LOADED.get(file);
+
+		if(model != null) {
+			return model;
+		}
+
+		if(!Files.exists(file)) {
+			throw new IllegalArgumentException("No plasma grid found at " + file + ", one can be built with PlasmaGridBuilder");
+		}
+
+		try {
+			model = map(file);
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		GriddedPlasmaModel existing = LOADED.putIfAbsent(file, model);
+		return existing == null ? model : existing;
+	}
+
+	/**
+	 * Samples the full model and writes the grid, see {@link SphericalGrid#write(Path, ByteBuffer)}.
+	 *
+	 * @param spacing the spacing of the latitude and longitude nodes in degrees, this must divide 90
+	 * @param minAltitude the lowest altitude of the grid (km)
+	 * @param maxAltitude the highest altitude of the grid (km), this is moved up to a whole number of altitude steps
+	 * @param altitudeSpacing the spacing of the altitude nodes (km)
+	 * @param progress called with the number of altitudes that have been sampled, and the total
+	 */
+	static void build(Path file, double spacing, double minAltitude, double maxAltitude, double altitudeSpacing, Progress progress) throws IOException {
+		SphericalGrid grid = new SphericalGrid(spacing);
+
+		if(!(altitudeSpacing > 0) || !(maxAltitude > minAltitude)) {
+			throw new IllegalArgumentException("The altitude range and spacing must be positive");
+		}
+
+		int altitudeNodes = (int) Math.ceil((maxAltitude - minAltitude) / altitudeSpacing - 1e-9) + 1;
+		int layer = grid.layerSize();
+
+		int header = SphericalGrid.align(8 + 4 + 4 + 8 * 3 + 4 + 4 * IriPlasmaModel.DATE.length);
+
+		ByteBuffer buffer = SphericalGrid.allocate(header + (long) altitudeNodes * layer * Float.BYTES);
+		buffer.putLong(MAGIC).putInt(header).putInt(VERSION);
+		buffer.putDouble(spacing).putDouble(minAltitude).putDouble(altitudeSpacing).putInt(altitudeNodes);
+		for(int date : IriPlasmaModel.DATE) {
+			buffer.putInt(date);
+		}
+
+		buffer.position(header);
+
+		double[] positions = new double[layer * 3];
+		double[] densities = new double[layer];
+
+		for(int a = 0; a < altitudeNodes; a++) {
+			grid.positions(UnderlyingModels.rE + (minAltitude + a * altitudeSpacing) * 1e3, positions);
+			IriPlasmaModel.getInstance().getDensities(positions, densities, layer);
+
+			for(double density : densities) {
+				// Also replaces NaN
+				buffer.putFloat((float) Math.log10(density > 1 ? density : 1));
+			}
+
+			progress.update(a + 1, altitudeNodes);
+		}
+
+		buffer.flip();
+		SphericalGrid.write(file, buffer);
+		LOADED.remove(file);
+	}
+
+	/** Reports the progress of building a grid */
+	interface Progress {
+		void update(int done, int total);
+	}
+
+	private static GriddedPlasmaModel map(Path file) throws IOException {
+		ByteBuffer buffer = SphericalGrid.map(file);
+
+		if(buffer.remaining() < 16 || buffer.getLong() != MAGIC) {
+			throw new IllegalArgumentException(file + " is not a plasma grid");
+		}
+
+		int header = buffer.getInt();
+		int version = buffer.getInt();
+		if(version != VERSION) {
+			throw new IllegalArgumentException("Unsupported plasma grid version " + version + " in " + file);
+		}
+
+		SphericalGrid grid = new SphericalGrid(buffer.getDouble());
+		double minAltitude = buffer.getDouble();
+		double altitudeSpacing = buffer.getDouble();
+		int altitudeNodes = buffer.getInt();
+
+		int[] date = new int[IriPlasmaModel.DATE.length];
+		for(int i = 0; i < date.length; i++) {
+			date[i] = buffer.getInt();
+		}
+
+		if(!Arrays.equals(date, IriPlasmaModel.DATE)) {
+			throw new IllegalArgumentException(file + " was built for the date " + Arrays.toString(date)
+					+ ", the plasma model is evaluated at " + Arrays.toString(IriPlasmaModel.DATE));
+		}
+
+		long size = (long) altitudeNodes * grid.layerSize() * Float.BYTES;
+		if(buffer.capacity() != header + size) {
+			throw new IllegalArgumentException(file + " is not a complete plasma grid");
+		}
+
+		return new GriddedPlasmaModel(file, grid, minAltitude, altitudeSpacing, altitudeNodes,
+				SphericalGrid.nodes(buffer, header).asFloatBuffer());
+	}
+
+	@Override
+	public double getDensity(Vec3 position) {
+		double horizontal = Math.sqrt(position.x * position.x + position.z * position.z);
+		double radius = Math.sqrt(horizontal * horizontal + position.y * position.y);
+		double altitude = ((radius - UnderlyingModels.rE) * 1e-3 - minAltitude) / altitudeSpacing;
+
+		// Also rejects NaN
+		if(!(altitude >= 0 && altitude <= altitudeNodes - 1)) {
+			return IriPlasmaModel.getInstance().getDensity(position);
+		}
+
+		int ai = Math.min((int) altitude, altitudeNodes - 2);
+
+		double[] wa = SphericalGrid.weights(altitude - ai);
+		SphericalGrid.Stencil stencil = grid.stencil(position, horizontal);
+
+		double logDensity = 0;
+
+		for(int n = 0; n < 16; n++) {
+			for(int a = 0; a < 4; a++) {
+				logDensity += stencil.weights[n] * wa[a] * node(ai + a - 1, stencil.nodes[n]);
+			}
+		}
+
+		return Math.pow(10, logDensity);
+	}
+
+	/** The log of the density at a node, the grid is extended in a straight line past the top and bottom altitudes */
+	private double node(int altitude, int column) {
+		int layer = grid.layerSize();
+
+		if(altitude < 0) {
+			return 2 * nodes.get(column) - nodes.get(layer + column);
+		} else if(altitude >= altitudeNodes) {
+			return 2 * nodes.get((altitudeNodes - 1) * layer + column) - nodes.get((altitudeNodes - 2) * layer + column);
+		} else {
+			return nodes.get(altitude * layer + column);
+		}
+	}
+
+	/** The spacing of the latitude and longitude nodes in degrees */
+	public double getSpacing() {
+		return grid.spacing;
+	}
+
+	/** The lowest altitude of the grid (km) */
+	public double getMinAltitude() {
+		return minAltitude;
+	}
+
+	/** The highest altitude of the grid (km) */
+	public double getMaxAltitude() {
+		return minAltitude + (altitudeNodes - 1) * altitudeSpacing;
+	}
+
+	/** The spacing of the altitude nodes (km) */
+	public double getAltitudeSpacing() {
+		return altitudeSpacing;
+	}
+
+	@Override
+	public String getName() {
+		return file.toString().equals(DEFAULT_FILE) ? "grid" : "grid:" + file;
+	}
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+}
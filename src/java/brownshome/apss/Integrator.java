@@ -0,0 +1,20 @@
+package brownshome.apss;
+
+import brownshome.apss.OrbitalSimulation.State;
+
+/**
+ * A method of advancing the equations of motion of an {@link OrbitalSimulation}.
+ *
+ * Integrators may keep state between calls, so each simulation should be given its own instance.
+ */
+public interface Integrator {
+	/**
+	 * Advances the state by exactly the given amount of time.
+	 *
+	 * @param simulation the simulation that owns the state, used to construct new states
+	 * @param state the state at the start of the interval
+	 * @param nanos the length of the interval in nanoseconds
+	 * @return the state at the end of the interval
+	 */
+	State step(OrbitalSimulation simulation, State state, long nanos);
+}
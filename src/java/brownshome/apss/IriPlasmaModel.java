@@ -0,0 +1,481 @@
+package brownshome.apss;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.Math.atan2;
+import static java.lang.Math.sqrt;
+
+/**
+ * The electron density from the International Reference Ionosphere, found by getElectronDensity.py through pyglow.
+ *
+ * Points are sent to the program in batches, one message holding the points of each request and one holding the
+ * densities of each reply, so the cost of a round trip to the program is paid once per batch. Requests are pipelined:
+ * several may be sent with {@link #submit} before the first reply is read with {@link Request#await}.
+ *
+ * The program reads a whole request before it writes the reply, and blocks writing the reply if the replies before it
+ * have not been read. If the request that is being written did not fit in the pipe at the same time, both programs
+ * would wait for each other. So while any replies are unread, requests are only written while every unanswered request
+ * fits in {@link #PIPE_BUFFER} bytes. Replies are read to make room, and a request that is larger than the pipe is
+ * only written once every earlier reply has been read.
+ *
+ * Requests are shared out between a pool of copies of the program, each request going to the copy with the fewest
+ * points in flight. The copies are started when they are first needed, so a single thread only ever starts one. A
+ * copy that exits or sends a reply that cannot be read is restarted, and the requests that it had not answered are
+ * sent again.
+ *
+ * Unless it is turned off with {@link #setBinaryProtocol}, each copy is asked to switch to binary frames when it is
+ * started, so that the positions and densities are sent as doubles rather than being formatted and parsed as text.
+ */
+public final class IriPlasmaModel implements PlasmaModel {
+	private static final List<String> COMMAND = Arrays.asList("python3", "getElectronDensity.py");
+
+	/** The date that the model is evaluated at: year, month, day, hour and minute */
+	static final int[] DATE = { 2013, 1, 1, 2, 30 };
+
+	/** The most points in one request */
+	private static final int MAX_BATCH_SIZE = 1024;
+
+	/**
+	 * The smallest buffer of a pipe to a child process on the platforms that the simulator runs on. The JDK asks for
+	 * the default size on Windows, which is 4 KB, while Linux gives 64 KB and macOS at least 16 KB.
+	 */
+	static final int PIPE_BUFFER = 4096;
+
+	/** The number of times in a row that a worker may fail before giving up */
+	private static final int MAX_RESTARTS = 3;
+
+	private static int workerCount = Runtime.getRuntime().availableProcessors();
+	private static boolean binaryProtocol = true;
+	private static IriPlasmaModel instance;
+
+	private final Worker[] workers;
+
+	/** A batch of points sent to the program, whose densities can be read when they are needed */
+	public static final class Request {
+		private final Worker worker;
+		private final int count;
+		/** The latitude (rad), longitude (rad) and altitude (km) of each point, kept so that the request can be sent again if the worker is restarted */
+		private final double[] coordinates;
+		private double[] densities;
+		/** The size of the request as it was last written, which depends on the protocol of the worker */
+		private int bytes;
+
+		private Request(Worker worker, int count, double[] coordinates) {
+			this.worker = worker;
+			this.count = count;
+			this.coordinates = coordinates;
+		}
+
+		/**
+		 * Waits for the densities, reading the replies to any earlier requests sent to the same worker first.
+		 *
+		 * @param result the density (e per m3) at each point is written into this array
+		 */
+		public void await(double[] result) {
+			synchronized(worker) {
+				while(densities == null) {
+					worker.readOldest();
+				}
+			}
+
+			System.arraycopy(densities, 0, result, 0, count);
+		}
+	}
+
+	/** One copy of the program, and the requests that it has not yet answered */
+	private static final class Worker {
+		final int index;
+		private ExternalInterlink link;
+
+		/** Requests that have been written and not yet read, oldest first, and the number of bytes in them */
+		private final Queue<Request> inFlight = new ArrayDeque<>();
+		private int bytesInFlight = 0;
+
+		/** Requests that are waiting for room in the pipe, these are always newer than the requests in flight */
+		private final Queue<Request> waiting = new ArrayDeque<>();
+
+		/** Points that have been given to this worker and not yet read, used to share out the requests */
+		final AtomicInteger load = new AtomicInteger();
+
+		private int failures = 0;
+
+		/** Cleared if the program does not answer the request for binary frames, so that later copies are not asked */
+		private boolean negotiate = binaryProtocol;
+
+		// Statistics, read without the lock so they may be slightly out of date
+		volatile long requests = 0, points = 0, busyNanos = 0;
+		volatile int restarts = 0;
+		private long busySince;
+
+		Worker(int index) {
+			this.index = index;
+		}
+
+		/** Must hold the lock on this worker */
+		Request send(double[] coordinates, int count) {
+			if(link == null) {
+				start();
+			} else if(!link.isAlive()) {
+				restart();
+			}
+
+			if(inFlight.isEmpty() && waiting.isEmpty()) {
+				busySince = System.nanoTime();
+			}
+
+			Request request = new Request(this, count, coordinates);
+			waiting.add(request);
+
+			// Make room by reading the oldest replies, they are kept until they are waited for
+			while(!waiting.isEmpty()) {
+				if(!writeWaiting()) {
+					readOldest();
+				}
+			}
+
+			return request;
+		}
+
+		/**
+		 * Writes the waiting requests, oldest first, while every unanswered request fits in the pipe or nothing is in
+		 * flight, so that the program cannot be blocked on a reply while a request is being written.
+		 *
+		 * @return false if a request is still waiting
+		 */
+		private boolean writeWaiting() {
+			boolean written = false;
+
+			while(!waiting.isEmpty()) {
+				Request request = waiting.peek();
+				int bytes = size(request);
+
+				if(!inFlight.isEmpty() && bytesInFlight + bytes > PIPE_BUFFER) {
+					break;
+				}
+
+				write(request);
+				request.bytes = bytes;
+
+				waiting.remove();
+				inFlight.add(request);
+				bytesInFlight += bytes;
+				written = true;
+			}
+
+			if(written) {
+				link.flush();
+			}
+
+			return waiting.isEmpty();
+		}
+
+		/** Must hold the lock on this worker */
+		void readOldest() {
+			Request request = inFlight.peek();
+			double[] densities = new double[request.count];
+
+			while(true) {
+				try {
+					if(link.isBinary()) {
+						ByteBuffer reply = link.readFrame();
+
+						if(reply.remaining() != request.count * Double.BYTES) {
+							throw new IOException("Expected " + request.count + " values, got " + reply.remaining() + " bytes");
+						}
+
+						reply.asDoubleBuffer().get(densities);
+					} else {
+						link.readDoubleArray(densities, 0, request.count);
+					}
+
+					break;
+				} catch(IOException | NumberFormatException e) {
+					if(failures >= MAX_RESTARTS) {
+						throw new UncheckedIOException(new IOException("Plasma model worker " + index + " failed " + failures + " times in a row", e));
+					}
+
+					restart();
+				}
+			}
+
+			// Convert from cm^-3 to m^-3
+			for(int i = 0; i < densities.length; i++) {
+				densities[i] *= 1e6;
+			}
+
+			inFlight.remove();
+			bytesInFlight -= request.bytes;
+			load.addAndGet(-request.count);
+			failures = 0;
+
+			requests++;
+			points += request.count;
+
+			// Counted at every reply, as a worker that is kept busy may never run out of requests
+			long now = System.nanoTime();
+			busyNanos += now - busySince;
+			busySince = now;
+
+			request.densities = densities;
+
+			// The reply has made room for requests that are waiting
+			writeWaiting();
+		}
+
+		private void start() {
+			link = new ExternalInterlink(COMMAND);
+
+			if(negotiate) {
+				try {
+					negotiate = link.negotiateBinary();
+				} catch(IOException e) {
+					// The program has failed, this is found and handled when the reply to the first request is read
+				}
+			}
+		}
+
+		/**
+		 * Starts a new copy of the program, and sends it the requests that the old one did not answer. As many are sent
+		 * as fit in the pipe, the rest are sent as the replies are read.
+		 */
+		private void restart() {
+			link.close();
+			start();
+
+			failures++;
+			restarts++;
+
+			Queue<Request> unanswered = new ArrayDeque<>(inFlight);
+			unanswered.addAll(waiting);
+
+			inFlight.clear();
+			waiting.clear();
+			waiting.addAll(unanswered);
+			bytesInFlight = 0;
+
+			writeWaiting();
+		}
+
+		/**
+		 * The number of bytes that a request is sent as, in the format agreed with the current copy of the program. Text
+		 * is not formatted to find its length, so it is counted as the longest that each number can be.
+		 */
+		private int size(Request request) {
+			if(link.isBinary()) {
+				return Integer.BYTES + binaryLength(request);
+			}
+
+			// An int takes at most 11 characters and a double 24, each with a space before it
+			return 12 * (1 + DATE.length) + 25 * request.coordinates.length + System.lineSeparator().length();
+		}
+
+		private static int binaryLength(Request request) {
+			return Integer.BYTES * (1 + DATE.length) + Double.BYTES * request.coordinates.length;
+		}
+
+		private static StringBuilder text(Request request) {
+			StringBuilder line = new StringBuilder(request.count * 64 + 32).append(request.count);
+			for(int date : DATE) {
+				line.append(' ').append(date);
+			}
+
+			for(double coordinate : request.coordinates) {
+				line.append(' ').append(coordinate);
+			}
+
+			return line;
+		}
+
+		/** Sends a request in the format agreed with the current copy of the program, without flushing it */
+		private void write(Request request) {
+			if(!link.isBinary()) {
+				link.sendLine(text(request));
+				return;
+			}
+
+			ByteBuffer message = ByteBuffer.allocate(binaryLength(request)).order(ByteOrder.LITTLE_ENDIAN);
+
+			message.putInt(request.count);
+			for(int date : DATE) {
+				message.putInt(date);
+			}
+
+			for(double coordinate : request.coordinates) {
+				message.putDouble(coordinate);
+			}
+
+			message.flip();
+
+			try {
+				link.sendFrame(message);
+			} catch(IOException e) {
+				// The program has failed, this is found and handled when the reply is read
+			}
+		}
+	}
+
+	private IriPlasmaModel(int workers) {
+		this.workers = new Worker[workers];
+
+		for(int i = 0; i < workers; i++) {
+			this.workers[i] = new Worker(i);
+		}
+	}
+
+	/**
+	 * Sets the number of copies of the program that the shared model may start. This must be called before the model
+	 * is first used.
+	 */
+	public static synchronized void setWorkerCount(int count) {
+		if(count < 1) {
+			throw new IllegalArgumentException("There must be at least one worker");
+		}
+
+		if(instance != null) {
+			throw new IllegalStateException("The plasma model has already been started");
+		}
+
+		workerCount = count;
+	}
+
+	/**
+	 * Sets whether the copies of the program are asked to use binary frames, or always sent text. This must be called
+	 * before the model is first used.
+	 */
+	public static synchronized void setBinaryProtocol(boolean binary) {
+		if(instance != null) {
+			throw new IllegalStateException("The plasma model has already been started");
+		}
+
+		binaryProtocol = binary;
+	}
+
+	/** The model backed by the program in the working directory, shared by every simulation */
+	public static synchronized IriPlasmaModel getInstance() {
+		if(instance == null) {
+			instance = new IriPlasmaModel(workerCount);
+		}
+
+		return instance;
+	}
+
+	/** @return the shared model, or null if it has not been used */
+	static synchronized IriPlasmaModel getInstanceIfStarted() {
+		return instance;
+	}
+
+	@Override
+	public double getDensity(Vec3 position) {
+		double[] result = new double[1];
+		submit(new double[] { position.x, position.y, position.z }, 1).await(result);
+
+		return result[0];
+	}
+
+	/**
+	 * Finds the electron density at many points with one round trip to the program for each {@link #getMaxBatchSize()}
+	 * points. Batches are spread over the workers.
+	 *
+	 * @param positions the positions, packed as x, y, z triples
+	 * @param densities the density (e per m3) at each position is written here
+	 */
+	public void getDensities(double[] positions, double[] densities, int count) {
+		Request[] requests = new Request[(count + MAX_BATCH_SIZE - 1) / MAX_BATCH_SIZE];
+		double[] result = new double[MAX_BATCH_SIZE];
+
+		// One request per worker is kept in flight, the oldest is read before the next is sent so that it goes to
+		// the worker that has just finished
+		for(int i = 0; i < requests.length + workers.length; i++) {
+			if(i >= workers.length) {
+				int done = i - workers.length;
+				requests[done].await(result);
+				System.arraycopy(result, 0, densities, done * MAX_BATCH_SIZE, requests[done].count);
+			}
+
+			if(i < requests.length) {
+				int start = i * MAX_BATCH_SIZE;
+				int size = Math.min(MAX_BATCH_SIZE, count - start);
+
+				requests[i] = submit(Arrays.copyOfRange(positions, start * 3, (start + size) * 3), size);
+			}
+		}
+	}
+
+	/**
+	 * Sends a batch of points to the least loaded worker without waiting for the reply.
+	 *
+	 * @param positions the positions, packed as x, y, z triples
+	 * @param count the number of positions, at most {@link #getMaxBatchSize()}
+	 */
+	public Request submit(double[] positions, int count) {
+		if(count > MAX_BATCH_SIZE) {
+			throw new IllegalArgumentException("At most " + MAX_BATCH_SIZE + " points can be sent at once");
+		}
+
+		double[] coordinates = new double[count * 3];
+		for(int i = 0; i < count * 3; i += 3) {
+			double x = positions[i], y = positions[i + 1], z = positions[i + 2];
+
+			coordinates[i] = atan2(y, sqrt(x * x + z * z));
+			coordinates[i + 1] = atan2(x, -z);
+			coordinates[i + 2] = (sqrt(x * x + y * y + z * z) - UnderlyingModels.rE) * 1e-3;
+		}
+
+		// The first of the least loaded, so that workers are only started when the others are busy
+		Worker worker = workers[0];
+		for(Worker candidate : workers) {
+			if(candidate.load.get() < worker.load.get()) {
+				worker = candidate;
+			}
+		}
+
+		worker.load.addAndGet(count);
+
+		synchronized(worker) {
+			return worker.send(coordinates, count);
+		}
+	}
+
+	/** The largest number of points that can be sent in one request */
+	public int getMaxBatchSize() {
+		return MAX_BATCH_SIZE;
+	}
+
+	@Override
+	public String getName() {
+		return "iri";
+	}
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+
+	public int getWorkerCount() {
+		return workers.length;
+	}
+
+	/** A line for each worker that has been used, with the number of requests and points that it has answered */
+	public String getReport() {
+		StringBuilder report = new StringBuilder();
+
+		for(Worker worker : workers) {
+			if(worker.requests == 0 && worker.restarts == 0) {
+				continue;
+			}
+
+			report.append(String.format("Plasma model worker %d: %d requests, %d points, %.0f points/s while busy, %d restarts%n",
+					worker.index, worker.requests, worker.points, worker.points / (worker.busyNanos / 1e9), worker.restarts));
+		}
+
+		return report.toString();
+	}
+}
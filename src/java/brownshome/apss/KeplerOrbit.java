@@ -0,0 +1,136 @@
+package brownshome.apss;
+
+import static java.lang.Math.abs;
+import static java.lang.Math.cos;
+import static java.lang.Math.cosh;
+import static java.lang.Math.sin;
+import static java.lang.Math.sinh;
+import static java.lang.Math.sqrt;
+
+/**
+ * An unperturbed two body orbit around the Earth. This is propagated analytically using the universal variable
+ * formulation of Kepler's equation, so it is valid for any conic.
+ */
+public final class KeplerOrbit {
+	private static final double SQRT_μE = sqrt(UnderlyingModels.μE);
+	private static final int MAX_ITERATIONS = 50;
+	private static final double TOLERANCE = 1e-13;
+
+	/** The state at the epoch of the orbit */
+	public final Vec3 position, velocity;
+
+	private final double r0;
+	/** r0 . v0 / sqrt(μ) */
+	private final double σ0;
+	/** The reciprocal of the semimajor axis */
+	private final double α;
+
+	public KeplerOrbit(Vec3 position, Vec3 velocity) {
+		this.position = position;
+		this.velocity = velocity;
+
+		r0 = position.length();
+		σ0 = position.dot(velocity) / SQRT_μE;
+		α = 2.0 / r0 - velocity.lengthSquared() / UnderlyingModels.μE;
+	}
+
+	/**
+	 * @param seconds the time since the epoch of the orbit, this may be negative
+	 * @return the position and velocity on the orbit at that time
+	 */
+	public OrbitCharacteristics propagate(double seconds) {
+		double[] result = new double[6];
+		propagate(seconds, result);
+
+		return new OrbitCharacteristics(new Vec3(result[0], result[1], result[2]), new Vec3(result[3], result[4], result[5]));
+	}
+
+	/**
+	 * Propagates the orbit without allocating.
+	 *
+	 * @param seconds the time since the epoch of the orbit, this may be negative
+	 * @param result an array that the position and then the velocity at that time are written into
+	 */
+	public void propagate(double seconds, double[] result) {
+		double f, g, fDot, gDot;
+
+		if(seconds == 0) {
+			f = 1; g = 0; fDot = 0; gDot = 1;
+		} else {
+			double χ = solveUniversalAnomaly(seconds);
+			double χ2 = χ * χ;
+			double z = α * χ2;
+			double c = stumpffC(z), s = stumpffS(z);
+
+			f = 1 - χ2 / r0 * c;
+			g = seconds - χ2 * χ / SQRT_μE * s;
+
+			double x = position.x * f + velocity.x * g;
+			double y = position.y * f + velocity.y * g;
+			double w = position.z * f + velocity.z * g;
+			double r = Math.sqrt(x * x + y * y + w * w);
+
+			fDot = SQRT_μE / (r * r0) * (z * χ * s - χ);
+			gDot = 1 - χ2 / r * c;
+		}
+
+		result[0] = position.x * f + velocity.x * g;
+		result[1] = position.y * f + velocity.y * g;
+		result[2] = position.z * f + velocity.z * g;
+		result[3] = position.x * fDot + velocity.x * gDot;
+		result[4] = position.y * fDot + velocity.y * gDot;
+		result[5] = position.z * fDot + velocity.z * gDot;
+	}
+
+	/** Solves the universal Kepler equation using Newton's method */
+	private double solveUniversalAnomaly(double seconds) {
+		double χ = SQRT_μE * abs(α) * seconds;
+
+		// Parabolic and hyperbolic orbits need a starting guess that does not depend on the semimajor axis
+		if(α <= 0 || !Double.isFinite(χ)) {
+			χ = SQRT_μE * seconds / r0;
+		}
+
+		double target = SQRT_μE * seconds;
+
+		for(int i = 0; i < MAX_ITERATIONS; i++) {
+			double χ2 = χ * χ;
+			double z = α * χ2;
+			double c = stumpffC(z), s = stumpffS(z);
+
+			double F = σ0 * χ2 * c + (1 - α * r0) * χ2 * χ * s + r0 * χ - target;
+			double dFdχ = σ0 * χ * (1 - z * s) + (1 - α * r0) * χ2 * c + r0;
+
+			double delta = F / dFdχ;
+			χ -= delta;
+
+			if(abs(delta) <= TOLERANCE * (abs(χ) + 1)) {
+				break;
+			}
+		}
+
+		return χ;
+	}
+
+	private static double stumpffC(double z) {
+		if(abs(z) < 1e-2) {
+			return 1.0 / 2 - z / 24 + z * z / 720 - z * z * z / 40320;
+		} else if(z > 0) {
+			return (1 - cos(sqrt(z))) / z;
+		} else {
+			return (cosh(sqrt(-z)) - 1) / -z;
+		}
+	}
+
+	private static double stumpffS(double z) {
+		if(abs(z) < 1e-2) {
+			return 1.0 / 6 - z / 120 + z * z / 5040 - z * z * z / 362880;
+		} else if(z > 0) {
+			double sz = sqrt(z);
+			return (sz - sin(sz)) / (sz * sz * sz);
+		} else {
+			double sz = sqrt(-z);
+			return (sinh(sz) - sz) / (sz * sz * sz);
+		}
+	}
+}
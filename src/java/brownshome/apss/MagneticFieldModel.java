@@ -0,0 +1,57 @@
+package brownshome.apss;
+
+/**
+ * A model of the magnetic field of the earth. The models trade accuracy for speed: the full World Magnetic Model is
+ * the most accurate, truncating it to a lower degree or sampling it on a grid is faster, and the tilted dipole is very
+ * fast but only follows the large scale shape of the field.
+ */
+public interface MagneticFieldModel {
+	/**
+	 * @param position a position (m) in the simulation frame
+	 * @param decimalYear the date, see {@link UnderlyingModels#toDecimalYear}
+	 * @return the field (T) in the simulation frame
+	 */
+	Vec3 getFieldStrength(Vec3 position, double decimalYear);
+
+	/** The name of the model, as read by {@link #forName(String)} */
+	String getName();
+
+	/**
+	 * Reads the name of a model.
+	 *
+	 * @param name "wmm" for the full World Magnetic Model, "wmm:n" for the model truncated to degree n, "grid" or
+	 *             "grid:d" for the model sampled on a grid with a spacing of d degrees, or "dipole"
+	 * @throws IllegalArgumentException if the name is not a model
+	 */
+	static MagneticFieldModel forName(String name) {
+		if(name.equals("dipole")) {
+			return DipoleFieldModel.INSTANCE;
+		}
+
+		if(name.equals("wmm")) {
+			return WorldMagneticModel.FULL;
+		}
+
+		if(name.equals("grid")) {
+			return GriddedFieldModel.forSpacing(GriddedFieldModel.DEFAULT_SPACING);
+		}
+
+		if(name.startsWith("grid:")) {
+			try {
+				return GriddedFieldModel.forSpacing(Double.parseDouble(name.substring(5)));
+			} catch(NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid grid spacing: " + name, e);
+			}
+		}
+
+		if(name.startsWith("wmm:")) {
+			try {
+				return new WorldMagneticModel(Integer.parseInt(name.substring(4)));
+			} catch(NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid degree: " + name, e);
+			}
+		}
+
+		throw new IllegalArgumentException("No field model found: " + name + ", expected wmm, wmm:<degree>, grid, grid:<spacing> or dipole");
+	}
+}
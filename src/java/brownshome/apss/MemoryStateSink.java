@@ -0,0 +1,30 @@
+package brownshome.apss;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import brownshome.apss.OrbitalSimulation.State;
+
+/** Keeps every state in a list. The memory used grows with the length of the run, so this is meant for short runs. */
+public class MemoryStateSink implements StateSink {
+	private final List<State> states = new ArrayList<>();
+
+	@Override
+	public void write(State state) {
+		states.add(state);
+	}
+
+	/** @return the number of states */
+	@Override
+	public long flush() {
+		return states.size();
+	}
+
+	@Override
+	public void close() { }
+
+	/** The list that the states are added to, in the order that they were written */
+	public List<State> getStates() {
+		return states;
+	}
+}
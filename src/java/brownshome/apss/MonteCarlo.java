@@ -0,0 +1,236 @@
+package brownshome.apss;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import brownshome.apss.OrbitalSimulation.State;
+import brownshome.apss.ParameterSweep.DesignPoint;
+import brownshome.apss.ParameterSweep.Parameter;
+
+/**
+ * Runs many simulations with the satellite and orbit parameters drawn from normal distributions around a nominal
+ * design point. The altitude loss and power usage at each sample time are folded into streaming statistics as each
+ * run finishes, so the memory used does not depend on the number of runs.
+ *
+ * The parameters of each run only depend on the seed and the index of the run, so a set of runs can be repeated
+ * exactly with any number of threads.
+ */
+public class MonteCarlo {
+	private static final double[] PERCENTILES = { 0.05, 0.5, 0.95 };
+	private static final int MAX_DRAWS = 1000;
+
+	private final DesignPoint nominal;
+	private final long seed;
+	private final EnumMap<Parameter, Double> standardDeviations = new EnumMap<>(Parameter.class);
+
+	/** The statistics for each sample time, these are only accessed while holding the lock on this object */
+	private StreamingStatistics[] altitudeLoss, powerUsage;
+	private long runs = 0, impacts = 0;
+
+	public MonteCarlo(DesignPoint nominal, long seed) {
+		this.nominal = nominal;
+		this.seed = seed;
+	}
+
+	public void setStandardDeviation(Parameter parameter, double standardDeviation) {
+		assert standardDeviation >= 0;
+
+		standardDeviations.put(parameter, standardDeviation);
+	}
+
+	/**
+	 * Draws the parameters for a run. Parameters that must be positive are redrawn until they are, giving a truncated
+	 * normal distribution.
+	 */
+	public DesignPoint getSample(int index) {
+		// Spread the index over the seed space so that neighbouring runs get unrelated generators
+		Random random = new Random(new SplittableRandom(seed + index * 0x9E3779B97F4A7C15L).nextLong());
+
+		Parameter[] parameters = Parameter.values();
+		double[] values = new double[parameters.length];
+
+		for(Parameter parameter : parameters) {
+			double mean = nominal.get(parameter);
+			double standardDeviation = standardDeviations.getOrDefault(parameter, 0.0);
+
+			if(standardDeviation == 0) {
+				values[parameter.ordinal()] = mean;
+				continue;
+			}
+
+			int draws = 0;
+			double value;
+			do {
+				if(++draws > MAX_DRAWS) {
+					throw new IllegalArgumentException("The distribution of " + parameter.option + " has almost no positive values");
+				}
+
+				value = mean + random.nextGaussian() * standardDeviation;
+			} while(mustBePositive(parameter) && value < 0);
+
+			values[parameter.ordinal()] = value;
+		}
+
+		return new DesignPoint(index, nominal.cableFunction, values);
+	}
+
+	private static boolean mustBePositive(Parameter parameter) {
+		switch(parameter) {
+			case MASS:
+			case DIAMETER:
+			case CONDUCTIVITY:
+			case ECCENTRICITY:
+			case SEMIMAJOR_AXIS:
+			case POWER_LIMIT:
+			case CURRENT_LIMIT:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Runs the samples and writes the statistics for each sample time as CSV.
+	 *
+	 * @param simulationFactory creates the simulation for a set of parameters. Each call must return a new simulation
+	 *                          with its own integrator and environment, as these are not shared between threads.
+	 * @param threads the number of runs to perform at once
+	 */
+	public void run(Function<DesignPoint, OrbitalSimulation> simulationFactory, int samples, Duration length,
+	                Duration sampleFrequency, int threads, Writer output) throws IOException {
+		int sampleTimes = (int) (length.toNanos() / sampleFrequency.toNanos()) + 1;
+
+		altitudeLoss = new StreamingStatistics[sampleTimes];
+		powerUsage = new StreamingStatistics[sampleTimes];
+		for(int i = 0; i < sampleTimes; i++) {
+			altitudeLoss[i] = new StreamingStatistics(PERCENTILES);
+			powerUsage[i] = new StreamingStatistics(PERCENTILES);
+		}
+
+		runs = 0;
+		impacts = 0;
+
+		AtomicInteger nextIndex = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+
+			// Each worker takes the next index until they are all done, so only one run per thread is in memory
+			for(int t = 0; t < threads; t++) {
+				futures.add(executor.submit(() -> {
+					double[] runAltitudeLoss = new double[sampleTimes];
+					double[] runPowerUsage = new double[sampleTimes];
+
+					for(int index; (index = nextIndex.getAndIncrement()) < samples; ) {
+						boolean impacted = runSample(simulationFactory.apply(getSample(index)), length, sampleFrequency, runAltitudeLoss, runPowerUsage);
+						fold(runAltitudeLoss, runPowerUsage, impacted);
+					}
+				}));
+			}
+
+			for(Future<?> future : futures) {
+				future.get();
+			}
+		} catch(InterruptedException | ExecutionException e) {
+			throw new RuntimeException(e);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		writeStatistics(sampleFrequency, output);
+	}
+
+	/** @return true if the satellite hit the Earth */
+	private static boolean runSample(OrbitalSimulation simulation, Duration length, Duration sampleFrequency,
+	                                 double[] runAltitudeLoss, double[] runPowerUsage) {
+		long sampleNanos = sampleFrequency.toNanos();
+		double startRadius = simulation.getState().position.length();
+
+		// Sample times that the run does not reach are left as NaN and skipped
+		Arrays.fill(runAltitudeLoss, Double.NaN);
+		Arrays.fill(runPowerUsage, Double.NaN);
+
+		APSSSimulator.runHeadlessSimulation(simulation, length, sampleFrequency, (State state) -> {
+			int sample = (int) (state.time / sampleNanos);
+
+			if(sample < runAltitudeLoss.length) {
+				runAltitudeLoss[sample] = startRadius - state.position.length();
+				runPowerUsage[sample] = state.emitterResult.powerUsage;
+			}
+		}, false);
+
+		return simulation.getState().position.length() < UnderlyingModels.rE;
+	}
+
+	private synchronized void fold(double[] runAltitudeLoss, double[] runPowerUsage, boolean impacted) {
+		for(int i = 0; i < runAltitudeLoss.length; i++) {
+			if(!Double.isNaN(runAltitudeLoss[i])) {
+				altitudeLoss[i].add(runAltitudeLoss[i]);
+				powerUsage[i].add(runPowerUsage[i]);
+			}
+		}
+
+		runs++;
+		if(impacted) {
+			impacts++;
+		}
+
+		if(runs % 10 == 0) {
+			System.out.println("Completed " + runs + " runs");
+		}
+	}
+
+	public synchronized long getRuns() {
+		return runs;
+	}
+
+	/** The number of runs that hit the Earth before the end of the simulation */
+	public synchronized long getImpacts() {
+		return impacts;
+	}
+
+	private synchronized void writeStatistics(Duration sampleFrequency, Writer output) throws IOException {
+		StringBuilder header = new StringBuilder("\"Time\",\"Runs\"");
+		for(String quantity : new String[] { "Altitude Loss", "Power" }) {
+			header.append(",\"").append(quantity).append(" Mean\",\"").append(quantity).append(" Std Dev\"");
+
+			for(double percentile : PERCENTILES) {
+				header.append(",\"").append(quantity).append(String.format(" P%.0f\"", percentile * 100));
+			}
+		}
+		output.write(header.append("\n").toString());
+
+		for(int i = 0; i < altitudeLoss.length; i++) {
+			if(altitudeLoss[i].getCount() == 0) {
+				continue;
+			}
+
+			StringBuilder row = new StringBuilder(String.format("%.3f,%d", i * sampleFrequency.toNanos() / 1e9, altitudeLoss[i].getCount()));
+			for(StreamingStatistics statistics : new StreamingStatistics[] { altitudeLoss[i], powerUsage[i] }) {
+				row.append(String.format(",%e,%e", statistics.getMean(), statistics.getStandardDeviation()));
+
+				for(int p = 0; p < PERCENTILES.length; p++) {
+					row.append(String.format(",%e", statistics.getPercentile(p)));
+				}
+			}
+
+			output.write(row.append("\n").toString());
+		}
+
+		output.flush();
+	}
+}
@@ -0,0 +1,264 @@
+package brownshome.apss;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Samples the slowly varying terms of another environment at a coarse cadence and interpolates between the samples.
+ *
+ * Samples are taken at multiples of the cadence along the trajectory predicted by a two body orbit from the most
+ * recent state, and the values in between are found with a cubic Hermite (Catmull-Rom) spline over the four
+ * surrounding samples. This means that each sample costs one evaluation of the underlying models, instead of one
+ * evaluation per integrator stage.
+ *
+ * The interpolation error is estimated by comparing the spline against a direct evaluation at the middle of an
+ * interval, where the error of the spline is largest.
+ */
+public class MultiRateEnvironment implements Environment {
+	private static final double NANOS_PER_SECOND = 1e9;
+
+	/** The field (x, y, z), plasma density and atmospheric density */
+	private static final int VALUES = 5;
+
+	private final Environment source;
+	private final long cadence;
+
+	/** The index of the first of the four samples, sample i is at time i * cadence */
+	private long firstSample;
+	private final double[][] samples = new double[4][];
+	private final double[] interpolated = new double[VALUES];
+
+	private int errorCheckInterval = 1;
+	private long intervals = 0, sampleCount = 0, errorChecks = 0;
+
+	private double maximumFieldError = 0, maximumPlasmaDensityError = 0, maximumAtmosphericDensityError = 0;
+
+	/**
+	 * @param source the environment to sample
+	 * @param cadence the time between samples in nanoseconds
+	 */
+	public MultiRateEnvironment(Environment source, long cadence) {
+		assert cadence > 0;
+
+		this.source = source;
+		this.cadence = cadence;
+	}
+
+	/**
+	 * Sets how often the interpolation error is checked. The check costs one extra evaluation of the underlying
+	 * models. Zero disables the checks.
+	 *
+	 * @param intervals the number of sample intervals between checks
+	 */
+	public void setErrorCheckInterval(int intervals) {
+		assert intervals >= 0;
+
+		this.errorCheckInterval = intervals;
+	}
+
+	/** The environment that is sampled */
+	public Environment getSource() {
+		return source;
+	}
+
+	public long getCadence() {
+		return cadence;
+	}
+
+	/** The largest difference in field strength between the spline and the direct evaluation seen so far (T) */
+	public double getMaximumFieldError() {
+		return maximumFieldError;
+	}
+
+	/** The largest relative difference in plasma density seen so far */
+	public double getMaximumPlasmaDensityError() {
+		return maximumPlasmaDensityError;
+	}
+
+	/** The largest relative difference in atmospheric density seen so far */
+	public double getMaximumAtmosphericDensityError() {
+		return maximumAtmosphericDensityError;
+	}
+
+	/** The number of times the underlying models have been evaluated */
+	public long getSampleCount() {
+		return sampleCount;
+	}
+
+	public String getErrorReport() {
+		return String.format("Multi-rate environment: %d samples over %d intervals, %d error checks%n"
+				+ "Maximum field error: %.3e T%n"
+				+ "Maximum plasma density error: %.3e (relative)%n"
+				+ "Maximum atmospheric density error: %.3e (relative)",
+				sampleCount, intervals, errorChecks, maximumFieldError, maximumPlasmaDensityError, maximumAtmosphericDensityError);
+	}
+
+	/** Writes the loaded samples and the error statistics, but not the source environment, see {@link Checkpoint} */
+	void writeCheckpoint(DataOutput out) throws IOException {
+		out.writeLong(cadence);
+		out.writeInt(errorCheckInterval);
+		out.writeLong(intervals);
+		out.writeLong(sampleCount);
+		out.writeLong(errorChecks);
+		out.writeDouble(maximumFieldError);
+		out.writeDouble(maximumPlasmaDensityError);
+		out.writeDouble(maximumAtmosphericDensityError);
+		out.writeBoolean(samples[0] != null);
+
+		if(samples[0] != null) {
+			out.writeLong(firstSample);
+
+			for(double[] sample : samples) {
+				for(double value : sample) {
+					out.writeDouble(value);
+				}
+			}
+		}
+	}
+
+	static MultiRateEnvironment readCheckpoint(DataInput in, Environment source) throws IOException {
+		MultiRateEnvironment environment = new MultiRateEnvironment(source, in.readLong());
+		environment.errorCheckInterval = in.readInt();
+		environment.intervals = in.readLong();
+		environment.sampleCount = in.readLong();
+		environment.errorChecks = in.readLong();
+		environment.maximumFieldError = in.readDouble();
+		environment.maximumPlasmaDensityError = in.readDouble();
+		environment.maximumAtmosphericDensityError = in.readDouble();
+
+		if(in.readBoolean()) {
+			environment.firstSample = in.readLong();
+
+			for(int i = 0; i < environment.samples.length; i++) {
+				environment.samples[i] = new double[VALUES];
+
+				for(int j = 0; j < VALUES; j++) {
+					environment.samples[i][j] = in.readDouble();
+				}
+			}
+		}
+
+		return environment;
+	}
+
+	@Override
+	public Vec3 getMagneticFieldStrength(Vec3 position, Vec3 velocity, long time) {
+		double[] values = interpolate(position, velocity, time);
+		return new Vec3(values[0], values[1], values[2]);
+	}
+
+	@Override
+	public double getPlasmaDensity(Vec3 position, Vec3 velocity, long time) {
+		return Math.max(0, interpolate(position, velocity, time)[3]);
+	}
+
+	@Override
+	public double getAtmosphericDensity(Vec3 position, Vec3 velocity, long time) {
+		return Math.max(0, interpolate(position, velocity, time)[4]);
+	}
+
+	private double[] interpolate(Vec3 position, Vec3 velocity, long time) {
+		long interval = Math.floorDiv(time, cadence);
+		updateSamples(interval, position, velocity, time);
+
+		double t = (time - interval * cadence) / (double) cadence;
+		return spline(t);
+	}
+
+	/** Makes sure that samples interval - 1 to interval + 2 are loaded. */
+	private void updateSamples(long interval, Vec3 position, Vec3 velocity, long time) {
+		long first = interval - 1;
+
+		if(samples[0] != null && first == firstSample) {
+			return;
+		}
+
+		KeplerOrbit prediction = new KeplerOrbit(position, velocity);
+
+		if(samples[0] != null && first == firstSample + 1) {
+			// The usual case, moving forward by one interval
+			System.arraycopy(samples, 1, samples, 0, 3);
+			samples[3] = sample(prediction, first + 3, time);
+		} else {
+			for(int i = 0; i < 4; i++) {
+				samples[i] = sample(prediction, first + i, time);
+			}
+		}
+
+		firstSample = first;
+		intervals++;
+
+		if(errorCheckInterval != 0 && intervals % errorCheckInterval == 0) {
+			checkError(prediction, interval, time);
+		}
+	}
+
+	private double[] sample(KeplerOrbit prediction, long index, long time) {
+		long sampleTime = index * cadence;
+		OrbitCharacteristics predicted = prediction.propagate((sampleTime - time) / NANOS_PER_SECOND);
+
+		return evaluate(predicted, sampleTime);
+	}
+
+	private double[] evaluate(OrbitCharacteristics point, long time) {
+		sampleCount++;
+
+		Vec3 field = source.getMagneticFieldStrength(point.position, point.velocity, time);
+
+		return new double[] {
+				field.x, field.y, field.z,
+				source.getPlasmaDensity(point.position, point.velocity, time),
+				source.getAtmosphericDensity(point.position, point.velocity, time)
+		};
+	}
+
+	private void checkError(KeplerOrbit prediction, long interval, long time) {
+		errorChecks++;
+
+		long midpoint = interval * cadence + cadence / 2;
+		double[] exact = evaluate(prediction.propagate((midpoint - time) / NANOS_PER_SECOND), midpoint);
+		double[] estimate = spline((midpoint - interval * cadence) / (double) cadence);
+
+		double fieldError = new Vec3(exact[0] - estimate[0], exact[1] - estimate[1], exact[2] - estimate[2]).length();
+
+		maximumFieldError = Math.max(maximumFieldError, fieldError);
+		maximumPlasmaDensityError = Math.max(maximumPlasmaDensityError, relativeError(exact[3], estimate[3]));
+		maximumAtmosphericDensityError = Math.max(maximumAtmosphericDensityError, relativeError(exact[4], estimate[4]));
+	}
+
+	private static double relativeError(double exact, double interpolated) {
+		if(exact == interpolated) {
+			return 0;
+		}
+
+		return Math.abs(exact - interpolated) / Math.abs(exact);
+	}
+
+	/**
+	 * Evaluates the Catmull-Rom spline between samples 1 and 2.
+	 *
+	 * @param t the fraction of the way from sample 1 to sample 2
+	 * @return the interpolated values, this array is reused by the next call
+	 */
+	private double[] spline(double t) {
+		double t2 = t * t, t3 = t2 * t;
+
+		// Hermite basis functions, with the tangents taken from the neighbouring samples
+		double h00 = 2 * t3 - 3 * t2 + 1;
+		double h10 = t3 - 2 * t2 + t;
+		double h01 = -2 * t3 + 3 * t2;
+		double h11 = t3 - t2;
+
+		for(int i = 0; i < VALUES; i++) {
+			double p0 = samples[0][i], p1 = samples[1][i], p2 = samples[2][i], p3 = samples[3][i];
+
+			double m1 = (p2 - p0) * 0.5;
+			double m2 = (p3 - p1) * 0.5;
+
+			interpolated[i] = h00 * p1 + h10 * m1 + h01 * p2 + h11 * m2;
+		}
+
+		return interpolated;
+	}
+}
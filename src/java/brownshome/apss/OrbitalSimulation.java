@@ -9,27 +9,16 @@ import javafx.application.Application;
  * @author James
  */
 public class OrbitalSimulation {
-	private static final double NANOS_PER_SECOND = 1e9;
+	/** Shared by the states for the forces and torques that are zero, as Vec3 is immutable */
+	private static final Vec3 ZERO = new Vec3();
 	
 	public final Satellite satellite;
 	
 	private long timeStep;
 	private long currentTime;
-	
-	private class Derivative {
-		public final Vec3 dp;
-		public final Vec3 dv;
-		
-		public Derivative(State state) {
-			dp = state.velocity;
-			dv = state.acceleration;
-		}
-
-		public Derivative(Derivative a, Derivative b, Derivative c, Derivative d) {
-			dp = a.dp.scaleAdd(b.dp, 2.0).scaleAdd(c.dp, 2.0).add(d.dp).scale(1.0 / 6.0);
-			dv = a.dv.scaleAdd(b.dv, 2.0).scaleAdd(c.dv, 2.0).add(d.dv).scale(1.0 / 6.0);
-		}
-	}
+	private Integrator integrator;
+	private Environment environment = new DirectEnvironment();
+	private final TetherSolver tetherSolver;
 	
 	public class State {
 		public final Vec3 position;
@@ -47,6 +36,8 @@ public class OrbitalSimulation {
 		public final double plasmaDensity;
         public final double atmosphericDensity;
 		public double current;
+		/** The number of times the tether was integrated to find the current */
+		public int tetherEvaluations;
 		public final long time;
 		public Emitter.EmitterResult emitterResult;
 		
@@ -54,21 +45,24 @@ public class OrbitalSimulation {
 			this.position = position;
 			this.time = time;
 			this.velocity = velocity;
-			magneticField = UnderlyingModels.getMagneticFieldStrength(position);
-			plasmaDensity = UnderlyingModels.getPlasmaDensity(position);
-            atmosphericDensity = UnderlyingModels.getAtmosphericDensity(position);
+			magneticField = environment.getMagneticFieldStrength(position, velocity, time);
+			plasmaDensity = environment.getPlasmaDensity(position, velocity, time);
+            atmosphericDensity = environment.getAtmosphericDensity(position, velocity, time);
 			gravity = UnderlyingModels.getGravitationalAcceleration(position);
 			cableVector = OrbitalSimulation.this.satellite.cableVector.apply(this);
-			lorentzForce = new Vec3();
-			lorentzTorque = new Vec3();
-			emitterResult = new Emitter.EmitterResult();
             lorentzCalculation(); // calculate Lorentz force and torque
-			dragForce = new Vec3();
-			dragTorque = new Vec3();
 			dragCalculation();
-			netTorque = dragTorque.add(lorentzTorque);
+			netTorque = new Vec3(
+					dragTorque.x + lorentzTorque.x,
+					dragTorque.y + lorentzTorque.y,
+					dragTorque.z + lorentzTorque.z);
 			gravityGradientTorque = gravityGradientTorque();
-			acceleration = gravity.scaleAdd(lorentzForce.add(dragForce), 1.0 / OrbitalSimulation.this.satellite.mass);
+			
+			double inverseMass = 1.0 / OrbitalSimulation.this.satellite.mass;
+			acceleration = new Vec3(
+					gravity.x + (lorentzForce.x + dragForce.x) * inverseMass,
+					gravity.y + (lorentzForce.y + dragForce.y) * inverseMass,
+					gravity.z + (lorentzForce.z + dragForce.z) * inverseMass);
 		}
 
 		public State(OrbitCharacteristics orbit, long time) {
@@ -76,126 +70,43 @@ public class OrbitalSimulation {
 		}
 
 		private void lorentzCalculation() {
+			// The vector arithmetic in this method is done on components, as it runs for every state
 			double cableLength = cableVector.length();
 
-			Vec3 cableUnitVector = cableVector.scale(1 / cableLength);
+			double ux = cableVector.x / cableLength, uy = cableVector.y / cableLength, uz = cableVector.z / cableLength;
+			double bx = magneticField.x, by = magneticField.y, bz = magneticField.z;
 			
 			// Em = (B x v) . dl
 			// This is the voltage gradient due to the Earth's magnetic field.
-			double voltageGradient = velocity.cross(magneticField).dot(cableUnitVector);
+			double voltageGradient = 
+					(velocity.y * bz - velocity.z * by) * ux +
+					(velocity.z * bx - velocity.x * bz) * uy +
+					(velocity.x * by - velocity.y * bx) * uz;
 
 			if(voltageGradient < 0) {
+				lorentzForce = ZERO;
+				lorentzTorque = ZERO;
+				emitterResult = new Emitter.EmitterResult();
 				return;
 			}
 			
-			// Eq (3)
-			// This is a scalar that is used to convert the voltage between the plasma and the tether to a dIdl value.
-			double dIdlConstant = -UnderlyingModels.e * plasmaDensity * OrbitalSimulation.this.satellite.cableDiameter * 
-					Math.sqrt(-2 * UnderlyingModels.e / UnderlyingModels.me);
+			tetherSolver.solve(cableLength, voltageGradient, plasmaDensity);
+			tetherEvaluations = tetherSolver.getEvaluations();
+
+			current = tetherSolver.getEndCurrent();
+			this.emitterResult = satellite.emitter.calculateFinalResult(current, -tetherSolver.getEndVoltage());
 			
-			// Eq (4)
-			// This is the resistance of the cable in ohm / m
-			double resistivity = 1.0 / (Math.PI * OrbitalSimulation.this.satellite.cableDiameter
-					* OrbitalSimulation.this.satellite.cableDiameter / 4 * OrbitalSimulation.this.satellite.cableConductivity);
+			// u x B, and u x (u x B)
+			double fx = uy * bz - uz * by, fy = uz * bx - ux * bz, fz = ux * by - uy * bx;
+			double tx = uy * fz - uz * fy, ty = uz * fx - ux * fz, tz = ux * fy - uy * fx;
 			
-			//Keep iterating with different starting voltages to find the voltage where Vc + RI + Ve = Vemf * l, this should be findable with a binary search.
-			class Result {
-				/** The integral of Il */
-				double currentLength = 0;
-
-				/** The integral of Ilr where r is the displacement from the COM of the satellite. */
-				double currentLengthRadius = 0;
-
-				/** This is the current at the satellite end of the tether. */
-				double endCurrent;
-
-				/** The is the voltage relative to the plasma at the satellite end of the tether. */
-				double endVoltage;
-
-				/*
-				 * @param startingVoltage is the voltage of the free end of the tether
-				 */
-				Result(double startingVoltage, int iterations) {
-					double current = 0;
-					double voltage = startingVoltage;
-					double dl = cableLength / iterations;
-					
-					// Euler integration of the system.
-					//
-					for (int i = 0; i < iterations; i++) {
-						double radius = i * dl;
-
-						// Voltage compared to the plasma
-						double deltaV = voltage - radius * voltageGradient;
-						
-						voltage += current * resistivity * dl;
-						
-						if (deltaV > 0) {
-							current += Math.sqrt(deltaV) * dIdlConstant * dl;
-						}
-
-						double changeInCurrentLength = current * dl;
-
-						currentLength += changeInCurrentLength;
-						currentLengthRadius += changeInCurrentLength * (satellite.centreOfMass - radius);
-					}
-					
-					endCurrent = current;
-					endVoltage = voltage - cableLength * voltageGradient;
-				}
-			}
-
-			Result initialGuess = new Result(0, 10);
-			double requiredVoltageDrop;
-
-			double low, high;
-
-			requiredVoltageDrop = satellite.emitter.calculateRequiredVoltageDrop(initialGuess.endCurrent);
-
-			Result r;
-
-			if(requiredVoltageDrop < -initialGuess.endVoltage) {
-				low = 0;
-				high = 10;
-
-				do {
-					high *= 2;
-					r = new Result(high, 10);
-					requiredVoltageDrop = satellite.emitter.calculateRequiredVoltageDrop(r.endCurrent);
-				} while(requiredVoltageDrop < -r.endVoltage);
-			} else {
-				low = -10;
-				high = 0;
-
-				do {
-					low *= 2;
-					r = new Result(low, 10);
-					requiredVoltageDrop = satellite.emitter.calculateRequiredVoltageDrop(r.endCurrent);
-				} while(requiredVoltageDrop < -r.endVoltage);
-			}
-
-			for(int i = 0; i < 250; i++) {
-				double mid = (low + high) * 0.5;
-				r = new Result(mid, 100);
-
-				requiredVoltageDrop = satellite.emitter.calculateRequiredVoltageDrop(r.endCurrent);
-
-				if(requiredVoltageDrop < -r.endVoltage) {
-					low = mid;
-				} else {
-					high = mid;
-				}
-			}
-
-			r = new Result(low, 100);
-			this.emitterResult = satellite.emitter.calculateFinalResult(r.endCurrent, -r.endVoltage);
-			current = r.endCurrent;
-			lorentzForce = cableUnitVector.cross(magneticField).scale(r.currentLength);
-			lorentzTorque = cableUnitVector.cross(cableUnitVector.cross(magneticField)).scale(r.currentLengthRadius);
+			double currentLength = tetherSolver.getCurrentLength(), currentLengthRadius = tetherSolver.getCurrentLengthRadius();
+			lorentzForce = new Vec3(fx * currentLength, fy * currentLength, fz * currentLength);
+			lorentzTorque = new Vec3(tx * currentLengthRadius, ty * currentLengthRadius, tz * currentLengthRadius);
 		}
 
         private Vec3 gravityGradientTorque() {
-            return new Vec3(); // needs to be calculated
+            return ZERO; // needs to be calculated
 		}
 
         /**
@@ -206,40 +117,60 @@ public class OrbitalSimulation {
             double rTether1 = -(satellite.cableVector.cableLength - satellite.centreOfMass)/2;
             double rTether2 = satellite.centreOfMass/2;
 
-		    double velocityScalar = cableVector.dot(velocity)/Math.pow(velocity.length(),2);
-		    Vec3 scaledVelocity = velocity.scale(velocityScalar);
-		    double effectiveAreaRatio = cableVector.add(scaledVelocity).length();
+		    double speed = velocity.length();
+		    double velocityScalar = cableVector.dot(velocity)/Math.pow(speed,2);
+		    double effectiveAreaRatio = Math.sqrt(
+		            Math.pow(cableVector.x + velocity.x*velocityScalar, 2) +
+		            Math.pow(cableVector.y + velocity.y*velocityScalar, 2) +
+		            Math.pow(cableVector.z + velocity.z*velocityScalar, 2));
 
             double fCubeSat = -0.5 * atmosphericDensity * Satellite.CUBESAT_DRAG_COEFFICIENT * velocity.lengthSquared()
                     * Math.pow(Satellite.CUBESAT_DIMENSION, 2);
 
             double fTether = -0.5 * atmosphericDensity * Satellite.TETHER_DRAG_COEFFICIENT *
-                    Math.pow(velocity.length(),2)*effectiveAreaRatio*satellite.cableDiameter;
+                    Math.pow(speed,2)*effectiveAreaRatio*satellite.cableDiameter;
             double fTether1 = ((satellite.cableVector.cableLength-satellite.centreOfMass)/
                     satellite.cableVector.cableLength)*fTether;
             double fTether2 = (satellite.centreOfMass/satellite.cableVector.cableLength)*fTether;
 
-            dragForce = velocity.withLength(fCubeSat + fTether);
-            dragTorque = cableVector.withLength(1).cross(velocity.withLength(1))
-                    .scale(rCubeSat*fCubeSat + rTether1*fTether1 + rTether2*fTether2);
-		}
+            dragForce = velocity.scale((fCubeSat + fTether)/speed);
 
-		public State scaleAdd(Derivative dSdt, long nanos) {
-			return new State(position.scaleAdd(dSdt.dp, nanos / NANOS_PER_SECOND), velocity.scaleAdd(dSdt.dv, nanos / NANOS_PER_SECOND), currentTime);
+            // (c / |c|) x (v / |v|) * torque
+            double torqueScale = (rCubeSat*fCubeSat + rTether1*fTether1 + rTether2*fTether2)/(cableVector.length()*speed);
+            dragTorque = new Vec3(
+                    (cableVector.y*velocity.z - cableVector.z*velocity.y)*torqueScale,
+                    (cableVector.z*velocity.x - cableVector.x*velocity.z)*torqueScale,
+                    (cableVector.x*velocity.y - cableVector.y*velocity.x)*torqueScale);
 		}
 	}
 	
+	private final OrbitCharacteristics startingOrbit;
 	private State state;
 	
 	/**
 	 * Takes a function that converts a position to a cable vector
 	 */
 	public OrbitalSimulation(OrbitCharacteristics startingOrbit, Satellite satellite, long timeStep) {
+		this(startingOrbit, satellite, timeStep, new RK4Integrator());
+	}
+	
+	public OrbitalSimulation(OrbitCharacteristics startingOrbit, Satellite satellite, long timeStep, Integrator integrator) {
+		this(startingOrbit, satellite, timeStep, integrator, 0);
+	}
+	
+	/** Starts the simulation part way through, used when resuming from a {@link Checkpoint} */
+	OrbitalSimulation(OrbitCharacteristics startingOrbit, Satellite satellite, long timeStep, Integrator integrator, long startTime) {
 		this.satellite = satellite;
 		this.timeStep = timeStep;
-		currentTime = 0;
-		
-		state = new State(startingOrbit, timeStep);
+		this.integrator = integrator;
+		this.startingOrbit = startingOrbit;
+		this.tetherSolver = new TetherSolver(satellite);
+		currentTime = startTime;
+	}
+	
+	/** Creates a state of this simulation, used by the integrators to evaluate intermediate points */
+	public State createState(Vec3 position, Vec3 velocity, long time) {
+		return new State(position, velocity, time);
 	}
 	
 	public long getCurrentTime() {
@@ -254,11 +185,32 @@ public class OrbitalSimulation {
 		this.timeStep = timeStep;
 	}
 	
+	public Integrator getIntegrator() {
+		return integrator;
+	}
+	
+	public void setIntegrator(Integrator integrator) {
+		this.integrator = integrator;
+	}
+	
+	public TetherSolver getTetherSolver() {
+		return tetherSolver;
+	}
+	
+	public Environment getEnvironment() {
+		return environment;
+	}
+	
+	/** Sets the environment used by the states created after this call */
+	public void setEnvironment(Environment environment) {
+		this.environment = environment;
+	}
+	
 	/**
 	 * Steps one timestep
 	 */
 	public void step() {
-		stepImpl(timeStep);
+		step(timeStep);
 	}
 	
 	public void step(Duration amount) {
@@ -266,26 +218,7 @@ public class OrbitalSimulation {
 	}
 	
 	public void step(long nanos) {
-		while(nanos > timeStep) {
-			nanos -= timeStep;
-			stepImpl(timeStep);
-		}
-		
-		stepImpl(nanos); //last step
-	}
-	
-	/* Does a single step */
-	private void stepImpl(long nanos) {
-		//Uses RK4 integration to simulate step
-		Derivative a, b, c, d;
-		
-		a = new Derivative(state);
-		b = new Derivative(state.scaleAdd(a, nanos / 2));
-		c = new Derivative(state.scaleAdd(b, nanos / 2));
-		d = new Derivative(state.scaleAdd(c, nanos));
-		
-		Derivative dSdt = new Derivative(a, b, c, d);
-		state = state.scaleAdd(dSdt, nanos);
+		state = integrator.step(this, getState(), nanos);
 		currentTime += nanos;
 	}
 	
@@ -293,7 +226,12 @@ public class OrbitalSimulation {
 		Application.launch(Display.class, args);
 	}
 
+	/** The starting state is evaluated on first use, so that the models of the simulation can be set up first */
 	public State getState() {
+		if(state == null) {
+			state = new State(startingOrbit, currentTime);
+		}
+		
 		return state;
 	}
 }
@@ -0,0 +1,256 @@
+package brownshome.apss;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import brownshome.apss.OrbitalSimulation.State;
+
+/**
+ * Runs headless simulations over the cartesian product of a set of satellite and orbit parameters on a pool of
+ * worker threads, writing one summary row for each design point.
+ */
+public class ParameterSweep {
+	/** The parameters that can be swept, with the name of the matching command line option */
+	public enum Parameter {
+		MASS("mass", 1.0),
+		DIAMETER("diam", 0.001),
+		CONDUCTIVITY("cond", UnderlyingModels.σAluminium),
+		/** NaN for the emitter parameters means that they were not given, see {@link DesignPoint#createEmitter()} */
+		POWER_LIMIT("power", Double.NaN),
+		CURRENT_LIMIT("currentlimit", Double.NaN),
+		BIAS("bias", Double.NaN),
+		ECCENTRICITY("e", 0.0),
+		SEMIMAJOR_AXIS("height", 6.771e6),
+		INCLINATION("inc", 0.0),
+		ARGUMENT_OF_PERIAPSIS("argp", 0.0),
+		TRUE_ANOMALY("anomaly", 0.0),
+		ASCENDING_NODE("raan", 0.0);
+
+		public final String option;
+		public final double defaultValue;
+
+		Parameter(String option, double defaultValue) {
+			this.option = option;
+			this.defaultValue = defaultValue;
+		}
+	}
+
+	/** One combination of the swept parameters */
+	public static final class DesignPoint {
+		public final int index;
+		public final CableFunction cableFunction;
+		private final double[] values;
+
+		/** @param values the value of each parameter, in the order of {@link Parameter#values()} */
+		DesignPoint(int index, CableFunction cableFunction, double[] values) {
+			this.index = index;
+			this.cableFunction = cableFunction;
+			this.values = values;
+		}
+
+		public double get(Parameter parameter) {
+			return values[parameter.ordinal()];
+		}
+
+		/**
+		 * Creates a thermionic cathode. A limit that was not given takes the default of the cathode, and an infinite
+		 * limit is no limit. If no bias was given the bias is adjusted to the limits.
+		 */
+		public Emitter createEmitter() {
+			double powerLimit = get(Parameter.POWER_LIMIT);
+			double currentLimit = get(Parameter.CURRENT_LIMIT);
+			double bias = get(Parameter.BIAS);
+
+			if(Double.isNaN(powerLimit)) {
+				powerLimit = Emitter.POWER_LIMIT;
+			}
+
+			if(Double.isNaN(currentLimit)) {
+				currentLimit = Emitter.CURRENT_LIMIT;
+			}
+
+			if(Double.isNaN(bias)) {
+				if(!Double.isFinite(powerLimit) && !Double.isFinite(currentLimit)) {
+					throw new IllegalArgumentException("An emitter without a bias needs a power or current limit");
+				}
+
+				return Emitter.createThermionicCathode(powerLimit, currentLimit);
+			} else {
+				return Emitter.createThermionicCathode(powerLimit, currentLimit, bias);
+			}
+		}
+
+		public Satellite createSatellite() {
+			return new Satellite(cableFunction, createEmitter(), get(Parameter.MASS), get(Parameter.DIAMETER), get(Parameter.CONDUCTIVITY));
+		}
+
+		public OrbitCharacteristics createOrbit() {
+			return new OrbitCharacteristics(get(Parameter.ECCENTRICITY), get(Parameter.SEMIMAJOR_AXIS), get(Parameter.INCLINATION),
+					get(Parameter.ARGUMENT_OF_PERIAPSIS), get(Parameter.TRUE_ANOMALY), get(Parameter.ASCENDING_NODE));
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder(cableFunction.toString());
+
+			for(Parameter parameter : Parameter.values()) {
+				builder.append(", ").append(parameter.option).append("=").append(get(parameter));
+			}
+
+			return builder.toString();
+		}
+	}
+
+	private final List<CableFunction> cableFunctions;
+	private final EnumMap<Parameter, double[]> values = new EnumMap<>(Parameter.class);
+
+	public ParameterSweep(List<CableFunction> cableFunctions) {
+		assert !cableFunctions.isEmpty();
+
+		this.cableFunctions = cableFunctions;
+
+		for(Parameter parameter : Parameter.values()) {
+			values.put(parameter, new double[] { parameter.defaultValue });
+		}
+	}
+
+	public void setValues(Parameter parameter, double... parameterValues) {
+		assert parameterValues.length > 0;
+
+		values.put(parameter, parameterValues.clone());
+	}
+
+	/** Every combination of the parameters, with the last parameter changing fastest */
+	public List<DesignPoint> getDesignPoints() {
+		Parameter[] parameters = Parameter.values();
+		List<DesignPoint> points = new ArrayList<>();
+		int[] counters = new int[parameters.length];
+
+		for(CableFunction cableFunction : cableFunctions) {
+			while(true) {
+				double[] point = new double[parameters.length];
+				for(int i = 0; i < parameters.length; i++) {
+					point[i] = values.get(parameters[i])[counters[i]];
+				}
+
+				points.add(new DesignPoint(points.size(), cableFunction, point));
+
+				// Advance the counters like an odometer
+				int i = parameters.length - 1;
+				while(i >= 0 && ++counters[i] == values.get(parameters[i]).length) {
+					counters[i] = 0;
+					i--;
+				}
+
+				if(i < 0) {
+					break;
+				}
+			}
+		}
+
+		return points;
+	}
+
+	/**
+	 * Runs every design point, writing a CSV summary row as each run finishes. The rows are not in order, the index
+	 * column gives the position of the point in {@link #getDesignPoints()}.
+	 *
+	 * @param simulationFactory creates the simulation for a design point. Each call must return a new simulation with its
+	 *                          own integrator and environment, as these are not shared between threads.
+	 * @param threads the number of runs to perform at once
+	 */
+	public void run(Function<DesignPoint, OrbitalSimulation> simulationFactory, Duration length, Duration sampleFrequency,
+	                int threads, Writer output) throws IOException {
+		List<DesignPoint> points = getDesignPoints();
+
+		output.write(csvHeader());
+		output.flush();
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		AtomicInteger completed = new AtomicInteger();
+
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+
+			for(DesignPoint point : points) {
+				futures.add(executor.submit(() -> {
+					String row = runPoint(point, simulationFactory.apply(point), length, sampleFrequency);
+
+					synchronized(output) {
+						try {
+							output.write(row);
+							output.flush();
+						} catch(IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					}
+
+					System.out.println("Completed " + completed.incrementAndGet() + " / " + points.size() + ": " + point);
+				}));
+			}
+
+			for(Future<?> future : futures) {
+				future.get();
+			}
+		} catch(InterruptedException | ExecutionException e) {
+			throw new RuntimeException(e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static String csvHeader() {
+		StringBuilder builder = new StringBuilder("\"Index\",\"Cable\"");
+
+		for(Parameter parameter : Parameter.values()) {
+			builder.append(",\"").append(parameter.option).append("\"");
+		}
+
+		return builder.append(",\"Altitude Loss\",\"Mean Current\",\"Mean Power\",\"Simulated Time\",\"Impacted\",\"Runtime\"\n").toString();
+	}
+
+	private static String runPoint(DesignPoint point, OrbitalSimulation simulation, Duration length, Duration sampleFrequency) {
+		long start = System.nanoTime();
+		double startRadius = simulation.getState().position.length();
+
+		double[] sums = new double[2];
+		int[] samples = new int[1];
+
+		APSSSimulator.runHeadlessSimulation(simulation, length, sampleFrequency, (State state) -> {
+			sums[0] += state.current;
+			sums[1] += state.emitterResult.powerUsage;
+			samples[0]++;
+		}, false);
+
+		State end = simulation.getState();
+		double runtime = (System.nanoTime() - start) / 1e9;
+
+		StringBuilder builder = new StringBuilder();
+		builder.append(point.index).append(",\"").append(point.cableFunction).append("\"");
+
+		for(Parameter parameter : Parameter.values()) {
+			builder.append(",").append(point.get(parameter));
+		}
+
+		builder.append(String.format(",%e,%e,%e,%.3f,%b,%.3f%n",
+				startRadius - end.position.length(),
+				samples[0] == 0 ? 0.0 : sums[0] / samples[0],
+				samples[0] == 0 ? 0.0 : sums[1] / samples[0],
+				end.time / 1e9,
+				end.position.length() < UnderlyingModels.rE,
+				runtime));
+
+		return builder.toString();
+	}
+}
@@ -0,0 +1,62 @@
+package brownshome.apss;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Samples the International Reference Ionosphere onto a grid for {@link GriddedPlasmaModel}, and then reports the
+ * error of the grid against the full model at random points, and the speed of both. Building the grid runs the plasma
+ * model at every node, spread over -plasmaworkers copies of the program, so it can take some time.
+ *
+ * This needs getElectronDensity.py in the working directory.
+ *
+ * Usage: PlasmaGridBuilder [file] [spacing (degrees)] [min altitude (km)] [max altitude (km)] [altitude spacing (km)] [workers]
+ */
+public class PlasmaGridBuilder {
+	private static final int CHECK_POINTS = 20_000;
+
+	public static void main(String[] args) throws IOException {
+		Path file = Paths.get(args.length > 0 ? args[0] : GriddedPlasmaModel.DEFAULT_FILE);
+		double spacing = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+		double minAltitude = args.length > 2 ? Double.parseDouble(args[2]) : 100;
+		double maxAltitude = args.length > 3 ? Double.parseDouble(args[3]) : 2000;
+		double altitudeSpacing = args.length > 4 ? Double.parseDouble(args[4]) : 20;
+
+		if(args.length > 5) {
+			IriPlasmaModel.setWorkerCount(Integer.parseInt(args[5]));
+		}
+
+		long start = System.nanoTime();
+		GriddedPlasmaModel.build(file, spacing, minAltitude, maxAltitude, altitudeSpacing,
+				(done, total) -> System.out.printf("\rSampled %d of %d altitudes", done, total));
+		System.out.printf("%nBuilt %s in %.1f s%n", file, (System.nanoTime() - start) / 1e9);
+
+		GriddedPlasmaModel grid = GriddedPlasmaModel.open(file);
+
+		// Random points inside the grid, away from the nodes
+		PlasmaSamples samples = new PlasmaSamples(CHECK_POINTS, grid.getMinAltitude(), grid.getMaxAltitude());
+
+		double sumSquares = 0, maximum = 0;
+		int counted = 0;
+		for(int i = 0; i < CHECK_POINTS; i++) {
+			// Where the model has no answer the grid holds a floor, so the error is meaningless
+			if(!(samples.exact[i] > 1)) {
+				continue;
+			}
+
+			double error = Math.abs(grid.getDensity(samples.positions[i]) / samples.exact[i] - 1);
+			sumSquares += error * error;
+			maximum = Math.max(maximum, error);
+			counted++;
+		}
+
+		double gridTime = samples.time(grid);
+
+		System.out.printf("Spacing %.3g degrees, altitudes %.0f to %.0f km every %.3g km%n",
+				grid.getSpacing(), grid.getMinAltitude(), grid.getMaxAltitude(), grid.getAltitudeSpacing());
+		System.out.printf("Relative error at %d random points: RMS %.2e, max %.2e%n", counted, Math.sqrt(sumSquares / counted), maximum);
+		System.out.printf("Full model: %.0f ns per point (batched), grid: %.0f ns per point (checksum %e)%n", samples.exactTime, gridTime, samples.getChecksum());
+		System.out.print(IriPlasmaModel.getInstance().getReport());
+	}
+}
@@ -0,0 +1,64 @@
+package brownshome.apss;
+
+import java.nio.file.Paths;
+
+/**
+ * A model of the electron density of the ionosphere. The International Reference Ionosphere is found by running a
+ * Python program, which is slow, so it can also be sampled ahead of time onto a grid that is read without the program,
+ * or replaced with an analytic model that is fitted to it.
+ */
+public interface PlasmaModel {
+	/**
+	 * @param position a position (m) in the simulation frame
+	 * @return the electron density (e per m3)
+	 */
+	double getDensity(Vec3 position);
+
+	/** The name of the model, as read by {@link #forName(String)} */
+	String getName();
+
+	/**
+	 * Reads the name of a model.
+	 *
+	 * @param name "iri" for the International Reference Ionosphere, "grid" for the grid in
+	 *             {@value GriddedPlasmaModel#DEFAULT_FILE}, "grid:file" for the grid in another file, see
+	 *             {@link PlasmaGridBuilder}, "chapman" for the analytic model with the default parameters, or
+	 *             "chapman:a,b,c,d,e,f" for the analytic model with the given parameters, see
+	 *             {@link PlasmaModelCalibration}
+	 * @throws IllegalArgumentException if the name is not a model
+	 */
+	static PlasmaModel forName(String name) {
+		if(name.equals("iri")) {
+			return IriPlasmaModel.getInstance();
+		}
+
+		if(name.equals("grid")) {
+			return GriddedPlasmaModel.open(Paths.get(GriddedPlasmaModel.DEFAULT_FILE));
+		}
+
+		if(name.startsWith("grid:")) {
+			return GriddedPlasmaModel.open(Paths.get(name.substring(5)));
+		}
+
+		if(name.equals("chapman")) {
+			return ChapmanPlasmaModel.DEFAULT;
+		}
+
+		if(name.startsWith("chapman:")) {
+			String[] values = name.substring(8).split(",");
+			double[] parameters = new double[values.length];
+
+			try {
+				for(int i = 0; i < values.length; i++) {
+					parameters[i] = Double.parseDouble(values[i]);
+				}
+			} catch(NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid parameters: " + name, e);
+			}
+
+			return ChapmanPlasmaModel.withParameters(parameters);
+		}
+
+		throw new IllegalArgumentException("No plasma model found: " + name + ", expected iri, grid, grid:<file>, chapman or chapman:<parameters>");
+	}
+}
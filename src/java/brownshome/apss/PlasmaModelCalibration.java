@@ -0,0 +1,267 @@
+package brownshome.apss;
+
+import java.util.Arrays;
+
+/**
+ * Fits the parameters of {@link ChapmanPlasmaModel} to samples of the International Reference Ionosphere, and reports
+ * the error of the fit and the speed of both models. The samples are taken at random over the sphere between two
+ * altitudes. Half of them are used for the fit, and the error is also reported on the other half.
+ *
+ * The fit minimises the mean squared log of the ratio between the models, with the Nelder-Mead method, so that the
+ * error counts as much where the density is low as where it is high. The fitted model is printed as a name that can be
+ * given to -plasma.
+ *
+ * This needs getElectronDensity.py in the working directory.
+ *
+ * Usage: PlasmaModelCalibration [samples] [min altitude (km)] [max altitude (km)]
+ */
+public class PlasmaModelCalibration {
+	private static final int MAX_EVALUATIONS = 5000;
+	private static final int RESTARTS = 3;
+
+	/** The range of altitudes (km) that the peak of the layer is searched over */
+	private static final double MIN_PEAK_ALTITUDE = 150, MAX_PEAK_ALTITUDE = 600;
+
+	public static void main(String[] args) {
+		int samples = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+		double minAltitude = args.length > 1 ? Double.parseDouble(args[1]) : 200;
+		double maxAltitude = args.length > 2 ? Double.parseDouble(args[2]) : 1500;
+
+		PlasmaSamples sampled = new PlasmaSamples(samples, minAltitude, maxAltitude);
+		Vec3[] positions = sampled.positions;
+		double[] exact = sampled.exact;
+
+		// The even samples are fitted, and the odd ones are kept back to check the fit
+		Vec3[] fitPositions = new Vec3[(samples + 1) / 2], checkPositions = new Vec3[samples / 2];
+		double[] fitExact = new double[fitPositions.length], checkExact = new double[checkPositions.length];
+		for(int i = 0; i < samples; i++) {
+			if(i % 2 == 0) {
+				fitPositions[i / 2] = positions[i];
+				fitExact[i / 2] = exact[i];
+			} else {
+				checkPositions[i / 2] = positions[i];
+				checkExact[i / 2] = exact[i];
+			}
+		}
+
+		// Start from the default shape, scaled to the mean density of the samples
+		double[] best = toSearch(ChapmanPlasmaModel.DEFAULT);
+		best[0] -= meanError(ChapmanPlasmaModel.DEFAULT, fitPositions, fitExact) * Math.log(10);
+		double bestError = meanSquareError(fromSearch(best), fitPositions, fitExact);
+
+		for(int restart = 0; restart < RESTARTS; restart++) {
+			double[] result = minimise(point -> meanSquareError(fromSearch(point), fitPositions, fitExact), best);
+			double error = meanSquareError(fromSearch(result), fitPositions, fitExact);
+
+			if(error < bestError) {
+				best = result;
+				bestError = error;
+			}
+		}
+
+		ChapmanPlasmaModel fitted = fromSearch(best);
+
+		System.out.printf("%d samples from %.0f to %.0f km, IRI: %.0f ns per point (batched)%n", samples, minAltitude, maxAltitude, sampled.exactTime);
+		System.out.printf("%-8s %14s %14s %14s %14s%n", "", "Fit RMS", "Fit max", "Check RMS", "Check max");
+		report("Default", ChapmanPlasmaModel.DEFAULT, fitPositions, fitExact, checkPositions, checkExact);
+		report("Fitted", fitted, fitPositions, fitExact, checkPositions, checkExact);
+		System.out.println("Errors are factors between the models, the RMS is taken over the log of the ratio");
+
+		double fittedTime = sampled.time(fitted);
+		System.out.printf("Chapman model: %.0f ns per point (checksum %e)%n", fittedTime, sampled.getChecksum());
+		System.out.println("-plasma " + fitted.getName());
+	}
+
+	private static void report(String label, ChapmanPlasmaModel model, Vec3[] fitPositions, double[] fitExact, Vec3[] checkPositions, double[] checkExact) {
+		System.out.printf("%-8s %14.3f %14.3f %14.3f %14.3f%n", label,
+				Math.pow(10, Math.sqrt(meanSquareError(model, fitPositions, fitExact))), Math.pow(10, maximumError(model, fitPositions, fitExact)),
+				Math.pow(10, Math.sqrt(meanSquareError(model, checkPositions, checkExact))), Math.pow(10, maximumError(model, checkPositions, checkExact)));
+	}
+
+	/** The mean square of the log10 of the ratio between the models, over the points where the reference has a density */
+	private static double meanSquareError(ChapmanPlasmaModel model, Vec3[] positions, double[] exact) {
+		double sum = 0;
+		int count = 0;
+
+		for(int i = 0; i < positions.length; i++) {
+			if(exact[i] > 1) {
+				double error = logRatio(model, positions[i], exact[i]);
+				sum += error * error;
+				count++;
+			}
+		}
+
+		return sum / count;
+	}
+
+	/** The mean of the log10 of the ratio between the models */
+	private static double meanError(ChapmanPlasmaModel model, Vec3[] positions, double[] exact) {
+		double sum = 0;
+		int count = 0;
+
+		for(int i = 0; i < positions.length; i++) {
+			if(exact[i] > 1) {
+				sum += logRatio(model, positions[i], exact[i]);
+				count++;
+			}
+		}
+
+		return sum / count;
+	}
+
+	private static double maximumError(ChapmanPlasmaModel model, Vec3[] positions, double[] exact) {
+		double maximum = 0;
+
+		for(int i = 0; i < positions.length; i++) {
+			if(exact[i] > 1) {
+				maximum = Math.max(maximum, Math.abs(logRatio(model, positions[i], exact[i])));
+			}
+		}
+
+		return maximum;
+	}
+
+	/** The log10 of the ratio between the models, found from the log of the density so that it stays finite */
+	private static double logRatio(ChapmanPlasmaModel model, Vec3 position, double exact) {
+		return (model.getLogDensity(position) - Math.log(exact)) / Math.log(10);
+	}
+
+	/**
+	 * The parameters are searched over a space where every point is a valid model: the logs of the density and scale
+	 * heights, and the logits of the ratios. The peak altitude is kept between the limits of the F layer, as the scale
+	 * heights cannot be found from samples that are all on one side of the peak.
+	 */
+	private static double[] toSearch(ChapmanPlasmaModel model) {
+		double[] p = model.getParameters();
+
+		return new double[] {
+				Math.log(p[0]),
+				logit((p[1] - MIN_PEAK_ALTITUDE) / (MAX_PEAK_ALTITUDE - MIN_PEAK_ALTITUDE)),
+				Math.log(p[2]), Math.log(p[3]), logit(p[4]), logit(p[5])
+		};
+	}
+
+	private static ChapmanPlasmaModel fromSearch(double[] u) {
+		return new ChapmanPlasmaModel(
+				Math.exp(u[0]),
+				MIN_PEAK_ALTITUDE + (MAX_PEAK_ALTITUDE - MIN_PEAK_ALTITUDE) * logistic(u[1]),
+				Math.exp(u[2]), Math.exp(u[3]), logistic(u[4]), logistic(u[5]));
+	}
+
+	private static double logit(double p) {
+		return Math.log(p / (1 - p));
+	}
+
+	private static double logistic(double x) {
+		return 1 / (1 + Math.exp(-x));
+	}
+
+	private interface Objective {
+		double evaluate(double[] point);
+	}
+
+	/** The Nelder-Mead simplex method, starting from a simplex of unit steps around a point */
+	private static double[] minimise(Objective objective, double[] start) {
+		int n = start.length;
+		double[][] simplex = new double[n + 1][];
+		double[] values = new double[n + 1];
+
+		for(int i = 0; i <= n; i++) {
+			simplex[i] = start.clone();
+			if(i > 0) {
+				simplex[i][i - 1] += 1;
+			}
+
+			values[i] = objective.evaluate(simplex[i]);
+		}
+
+		for(int evaluations = n + 1; evaluations < MAX_EVALUATIONS; ) {
+			// Sort from best to worst
+			Integer[] order = new Integer[n + 1];
+			for(int i = 0; i <= n; i++) {
+				order[i] = i;
+			}
+
+			Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+
+			double[][] sortedSimplex = new double[n + 1][];
+			double[] sortedValues = new double[n + 1];
+			for(int i = 0; i <= n; i++) {
+				sortedSimplex[i] = simplex[order[i]];
+				sortedValues[i] = values[order[i]];
+			}
+
+			System.arraycopy(sortedSimplex, 0, simplex, 0, n + 1);
+			System.arraycopy(sortedValues, 0, values, 0, n + 1);
+
+			if(values[n] - values[0] < 1e-12) {
+				break;
+			}
+
+			double[] centroid = new double[n];
+			for(int i = 0; i < n; i++) {
+				for(int j = 0; j < n; j++) {
+					centroid[j] += simplex[i][j] / n;
+				}
+			}
+
+			double[] reflected = along(centroid, simplex[n], -1);
+			double reflectedValue = objective.evaluate(reflected);
+			evaluations++;
+
+			if(reflectedValue < values[0]) {
+				double[] expanded = along(centroid, simplex[n], -2);
+				double expandedValue = objective.evaluate(expanded);
+				evaluations++;
+
+				if(expandedValue < reflectedValue) {
+					simplex[n] = expanded;
+					values[n] = expandedValue;
+				} else {
+					simplex[n] = reflected;
+					values[n] = reflectedValue;
+				}
+			} else if(reflectedValue < values[n - 1]) {
+				simplex[n] = reflected;
+				values[n] = reflectedValue;
+			} else {
+				double[] contracted = along(centroid, simplex[n], 0.5);
+				double contractedValue = objective.evaluate(contracted);
+				evaluations++;
+
+				if(contractedValue < values[n]) {
+					simplex[n] = contracted;
+					values[n] = contractedValue;
+				} else {
+					// Shrink towards the best point
+					for(int i = 1; i <= n; i++) {
+						simplex[i] = along(simplex[0], simplex[i], 0.5);
+						values[i] = objective.evaluate(simplex[i]);
+					}
+
+					evaluations += n;
+				}
+			}
+		}
+
+		int best = 0;
+		for(int i = 1; i <= n; i++) {
+			if(values[i] < values[best]) {
+				best = i;
+			}
+		}
+
+		return simplex[best];
+	}
+
+	/** @return origin + t * (point - origin) */
+	private static double[] along(double[] origin, double[] point, double t) {
+		double[] result = new double[origin.length];
+
+		for(int i = 0; i < origin.length; i++) {
+			result[i] = origin[i] + t * (point[i] - origin[i]);
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,71 @@
+package brownshome.apss;
+
+import java.util.Random;
+
+/**
+ * Random positions spread evenly over a shell around the earth, and the density of the International Reference
+ * Ionosphere at each of them. {@link PlasmaGridBuilder} and {@link PlasmaModelCalibration} check their models against
+ * these, so that both are checked in the same way. The positions are the same on every run.
+ */
+final class PlasmaSamples {
+	private static final int TIMING_REPEATS = 20;
+
+	final Vec3[] positions;
+	final double[] exact;
+
+	/** The time taken by the full model for each point (ns), with every point in one batch */
+	final double exactTime;
+
+	/** The sum of the densities found while timing a model, printed so that the work is not optimised away */
+	private double checksum = 0;
+
+	/**
+	 * Samples the full model, this needs getElectronDensity.py in the working directory.
+	 *
+	 * @param minAltitude the lowest altitude of the shell (km)
+	 * @param maxAltitude the highest altitude of the shell (km)
+	 */
+	PlasmaSamples(int count, double minAltitude, double maxAltitude) {
+		Random random = new Random(0);
+		positions = new Vec3[count];
+		double[] packed = new double[count * 3];
+
+		for(int i = 0; i < count; i++) {
+			double radius = UnderlyingModels.rE + (minAltitude + random.nextDouble() * (maxAltitude - minAltitude)) * 1e3;
+			double latitude = Math.asin(2 * random.nextDouble() - 1);
+			double longitude = (2 * random.nextDouble() - 1) * Math.PI;
+
+			// 0-longitude is -z, as in the simulation frame
+			positions[i] = new Vec3(
+					radius * Math.cos(latitude) * Math.sin(longitude),
+					radius * Math.sin(latitude),
+					-radius * Math.cos(latitude) * Math.cos(longitude));
+
+			packed[i * 3] = positions[i].x;
+			packed[i * 3 + 1] = positions[i].y;
+			packed[i * 3 + 2] = positions[i].z;
+		}
+
+		long start = System.nanoTime();
+		exact = new double[count];
+		IriPlasmaModel.getInstance().getDensities(packed, exact, count);
+		exactTime = (System.nanoTime() - start) / (double) count;
+	}
+
+	/** @return the mean time that a model takes to find the density at one of the positions (ns) */
+	double time(PlasmaModel model) {
+		long start = System.nanoTime();
+
+		for(int repeat = 0; repeat < TIMING_REPEATS; repeat++) {
+			for(Vec3 position : positions) {
+				checksum += model.getDensity(position);
+			}
+		}
+
+		return (System.nanoTime() - start) / (double) (TIMING_REPEATS * positions.length);
+	}
+
+	double getChecksum() {
+		return checksum;
+	}
+}
@@ -0,0 +1,281 @@
+package brownshome.apss;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Requests the plasma density along the predicted trajectory ahead of the satellite, so that the round trip to the
+ * plasma model overlaps with the rest of the step instead of holding it up. The magnetic field and atmospheric density
+ * are passed straight to the source environment.
+ *
+ * The density is sampled at multiples of the cadence along the trajectory predicted by a two body orbit, and the values
+ * in between are found with the same cubic Hermite (Catmull-Rom) spline as {@link MultiRateEnvironment}. Samples are
+ * requested in batches, keeping up to {@link #LOOKAHEAD} samples ahead of the satellite. Each time the satellite moves
+ * into a new interval the samples it needs are checked against a prediction from its current state. If they are further
+ * away than the tolerance, such as after a large burn, the buffer is thrown away and the samples are requested again
+ * and waited for.
+ *
+ * The samples only depend on the states that the simulation passes through, not on when the replies arrive, so the
+ * results are the same from run to run.
+ */
+public class PrefetchingEnvironment implements Environment {
+	private static final double NANOS_PER_SECOND = 1e9;
+
+	/** The number of samples that are requested at once */
+	private static final int BATCH = 16;
+	/** The number of samples that are kept requested ahead of the satellite */
+	public static final int LOOKAHEAD = 64;
+
+	public static final double DEFAULT_TOLERANCE = 100;
+
+	/** A run of samples that were requested together */
+	private static final class Batch {
+		final long firstSample;
+		final double[] positions = new double[BATCH * 3];
+		double[] densities;
+		IriPlasmaModel.Request request;
+
+		Batch(long firstSample) {
+			this.firstSample = firstSample;
+		}
+	}
+
+	private final DirectEnvironment source;
+	private final IriPlasmaModel plasmaModel;
+	private final long cadence;
+	private final double tolerance;
+
+	/** Consecutive batches, oldest first */
+	private final List<Batch> batches = new ArrayList<>();
+
+	/** The interval that the window was loaded for, and the densities of samples interval - 1 to interval + 2 */
+	private long interval = Long.MIN_VALUE;
+	private final double[] window = new double[4];
+
+	private long sampleCount = 0, misses = 0, waitNanos = 0;
+
+	private final double[] predicted = new double[6];
+
+	/**
+	 * @param source the environment to sample, this must use the International Reference Ionosphere
+	 * @param cadence the time between samples in nanoseconds
+	 * @param tolerance the distance (m) that a sample may be from the predicted trajectory before it is requested again
+	 */
+	public PrefetchingEnvironment(DirectEnvironment source, long cadence, double tolerance) {
+		if(!(source.getPlasmaModel() instanceof IriPlasmaModel)) {
+			throw new IllegalArgumentException("Only the iri plasma model can be prefetched, not " + source.getPlasmaModel().getName());
+		}
+
+		if(cadence <= 0 || !(tolerance > 0)) {
+			throw new IllegalArgumentException("The prefetch cadence and tolerance must be positive");
+		}
+
+		this.source = source;
+		this.plasmaModel = (IriPlasmaModel) source.getPlasmaModel();
+		this.cadence = cadence;
+		this.tolerance = tolerance;
+	}
+
+	/** The environment that is sampled */
+	public DirectEnvironment getSource() {
+		return source;
+	}
+
+	public long getCadence() {
+		return cadence;
+	}
+
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	public String getReport() {
+		return String.format("Prefetching environment: %d samples requested, %d misses, %.3f s waiting for the plasma model",
+				sampleCount, misses, waitNanos / 1e9);
+	}
+
+	@Override
+	public Vec3 getMagneticFieldStrength(Vec3 position, Vec3 velocity, long time) {
+		return source.getMagneticFieldStrength(position, velocity, time);
+	}
+
+	@Override
+	public double getAtmosphericDensity(Vec3 position, Vec3 velocity, long time) {
+		return source.getAtmosphericDensity(position, velocity, time);
+	}
+
+	@Override
+	public double getPlasmaDensity(Vec3 position, Vec3 velocity, long time) {
+		long current = Math.floorDiv(time, cadence);
+
+		if(current != interval) {
+			advance(current, position, velocity, time);
+		}
+
+		double t = (time - current * cadence) / (double) cadence;
+		double t2 = t * t, t3 = t2 * t;
+
+		double m1 = (window[2] - window[0]) * 0.5;
+		double m2 = (window[3] - window[1]) * 0.5;
+
+		return Math.max(0, (2 * t3 - 3 * t2 + 1) * window[1] + (t3 - 2 * t2 + t) * m1 + (-2 * t3 + 3 * t2) * window[2] + (t3 - t2) * m2);
+	}
+
+	/** Loads the window for a new interval, checking the buffer and topping it up */
+	private void advance(long current, Vec3 position, Vec3 velocity, long time) {
+		KeplerOrbit prediction = new KeplerOrbit(position, velocity);
+		long first = current - 1, last = current + 2;
+
+		// Samples that are behind the satellite are no longer needed
+		while(!batches.isEmpty() && batches.get(0).firstSample + BATCH <= first) {
+			batches.remove(0);
+		}
+
+		if(!batches.isEmpty() && (batches.get(0).firstSample > first || !isOnTrajectory(prediction, last, time))) {
+			// Any replies that are still to come are read and dropped by the plasma model
+			batches.clear();
+			misses++;
+		}
+
+		long end = batches.isEmpty() ? first : batches.get(batches.size() - 1).firstSample + BATCH;
+		while(end < first + LOOKAHEAD) {
+			request(prediction, end, time);
+			end += BATCH;
+		}
+
+		for(int i = 0; i < 4; i++) {
+			window[i] = density(first + i);
+		}
+
+		interval = current;
+	}
+
+	/** @return true if the sample has been requested at a position within the tolerance of the predicted trajectory */
+	private boolean isOnTrajectory(KeplerOrbit prediction, long sample, long time) {
+		Batch batch = find(sample);
+
+		if(batch == null) {
+			return false;
+		}
+
+		prediction.propagate((sample * cadence - time) / NANOS_PER_SECOND, predicted);
+
+		int i = (int) (sample - batch.firstSample) * 3;
+		double dx = batch.positions[i] - predicted[0];
+		double dy = batch.positions[i + 1] - predicted[1];
+		double dz = batch.positions[i + 2] - predicted[2];
+
+		return dx * dx + dy * dy + dz * dz <= tolerance * tolerance;
+	}
+
+	private void request(KeplerOrbit prediction, long firstSample, long time) {
+		Batch batch = new Batch(firstSample);
+
+		for(int i = 0; i < BATCH; i++) {
+			prediction.propagate(((firstSample + i) * cadence - time) / NANOS_PER_SECOND, predicted);
+			System.arraycopy(predicted, 0, batch.positions, i * 3, 3);
+		}
+
+		batch.request = plasmaModel.submit(batch.positions, BATCH);
+		batches.add(batch);
+		sampleCount += BATCH;
+	}
+
+	/** @return the batch holding a sample, or null if it has not been requested */
+	private Batch find(long sample) {
+		if(batches.isEmpty() || sample < batches.get(0).firstSample) {
+			return null;
+		}
+
+		int index = (int) ((sample - batches.get(0).firstSample) / BATCH);
+		return index < batches.size() ? batches.get(index) : null;
+	}
+
+	/** The density of a sample that has been requested, waiting for it if the reply has not been read */
+	private double density(long sample) {
+		Batch batch = find(sample);
+		resolve(batch);
+
+		return batch.densities[(int) (sample - batch.firstSample)];
+	}
+
+	private void resolve(Batch batch) {
+		if(batch.densities == null) {
+			long start = System.nanoTime();
+
+			batch.densities = new double[BATCH];
+			batch.request.await(batch.densities);
+			batch.request = null;
+
+			waitNanos += System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * Writes the requested samples and the window, but not the source environment, see {@link Checkpoint}. This waits
+	 * for every sample that is still to come.
+	 */
+	void writeCheckpoint(DataOutput out) throws IOException {
+		out.writeLong(cadence);
+		out.writeDouble(tolerance);
+		out.writeLong(sampleCount);
+		out.writeLong(misses);
+		out.writeLong(interval);
+
+		for(double value : window) {
+			out.writeDouble(value);
+		}
+
+		out.writeInt(batches.size());
+		for(Batch batch : batches) {
+			resolve(batch);
+
+			out.writeLong(batch.firstSample);
+			for(double value : batch.positions) {
+				out.writeDouble(value);
+			}
+
+			for(double value : batch.densities) {
+				out.writeDouble(value);
+			}
+		}
+	}
+
+	static PrefetchingEnvironment readCheckpoint(DataInput in, DirectEnvironment source) throws IOException {
+		PrefetchingEnvironment environment;
+		try {
+			environment = new PrefetchingEnvironment(source, in.readLong(), in.readDouble());
+		} catch(IllegalArgumentException e) {
+			throw new IOException(e);
+		}
+
+		environment.sampleCount = in.readLong();
+		environment.misses = in.readLong();
+		environment.interval = in.readLong();
+
+		for(int i = 0; i < environment.window.length; i++) {
+			environment.window[i] = in.readDouble();
+		}
+
+		int batches = in.readInt();
+		for(int b = 0; b < batches; b++) {
+			Batch batch = new Batch(in.readLong());
+
+			for(int i = 0; i < batch.positions.length; i++) {
+				batch.positions[i] = in.readDouble();
+			}
+
+			batch.densities = new double[BATCH];
+			for(int i = 0; i < BATCH; i++) {
+				batch.densities[i] = in.readDouble();
+			}
+
+			environment.batches.add(batch);
+		}
+
+		return environment;
+	}
+}
@@ -0,0 +1,68 @@
+package brownshome.apss;
+
+import brownshome.apss.OrbitalSimulation.State;
+
+/**
+ * Classic fixed step fourth order Runge-Kutta integration. The step length is the time step of the simulation.
+ */
+public class RK4Integrator implements Integrator {
+	private static final double NANOS_PER_SECOND = 1e9;
+
+	// Scratch space, reused so that the only allocations in a step are the states themselves
+	private final double[] y = new double[6], stage = new double[6];
+	private final double[] a = new double[6], b = new double[6], c = new double[6], d = new double[6];
+
+	@Override
+	public State step(OrbitalSimulation simulation, State state, long nanos) {
+		long timeStep = simulation.getTimeStep();
+
+		while(nanos > timeStep) {
+			nanos -= timeStep;
+			state = stepImpl(simulation, state, timeStep);
+		}
+
+		return stepImpl(simulation, state, nanos); //last step
+	}
+
+	/* Does a single step */
+	private State stepImpl(OrbitalSimulation simulation, State state, long nanos) {
+		double halfStep = (nanos / 2) / NANOS_PER_SECOND;
+		double fullStep = nanos / NANOS_PER_SECOND;
+
+		load(state.position, state.velocity, y);
+		load(state.velocity, state.acceleration, a);
+
+		derivative(simulation, state.time + nanos / 2, a, halfStep, b);
+		derivative(simulation, state.time + nanos / 2, b, halfStep, c);
+		derivative(simulation, state.time + nanos, c, fullStep, d);
+
+		for(int i = 0; i < 6; i++) {
+			stage[i] = y[i] + (((a[i] + b[i] * 2.0) + c[i] * 2.0) + d[i]) * (1.0 / 6.0) * fullStep;
+		}
+
+		return createState(simulation, state.time + nanos);
+	}
+
+	/** Evaluates the derivative at y + dSdt * dt, writing it into result */
+	private void derivative(OrbitalSimulation simulation, long time, double[] dSdt, double dt, double[] result) {
+		for(int i = 0; i < 6; i++) {
+			stage[i] = y[i] + dSdt[i] * dt;
+		}
+
+		State s = createState(simulation, time);
+		load(s.velocity, s.acceleration, result);
+	}
+
+	private State createState(OrbitalSimulation simulation, long time) {
+		return simulation.createState(new Vec3(stage[0], stage[1], stage[2]), new Vec3(stage[3], stage[4], stage[5]), time);
+	}
+
+	private static void load(Vec3 first, Vec3 second, double[] result) {
+		result[0] = first.x;
+		result[1] = first.y;
+		result[2] = first.z;
+		result[3] = second.x;
+		result[4] = second.y;
+		result[5] = second.z;
+	}
+}
@@ -0,0 +1,169 @@
+package brownshome.apss;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The latitude and longitude nodes of a grid over the earth, shared by {@link GriddedFieldModel} and
+ * {@link GriddedPlasmaModel}. Each layer of the grid holds a node at every multiple of the spacing, from the south pole
+ * to the north pole and from -180 degrees longitude up to but not including 180 degrees, indexed by
+ * latitude * longitudeNodes + longitude.
+ *
+ * Values between the nodes are found with a Catmull-Rom spline on each axis. Past a pole the spline continues down the
+ * other side of the earth, and the longitude wraps around, so the grid is smooth everywhere.
+ *
+ * Grid files are little endian, so that reading the nodes does not need to swap bytes on common machines.
+ */
+final class SphericalGrid {
+	final double spacing;
+	final int latitudeNodes, longitudeNodes;
+
+	/**
+	 * @param spacing the spacing of the nodes in degrees, this must divide 90
+	 * @throws IllegalArgumentException if the spacing does not divide 90
+	 */
+	SphericalGrid(double spacing) {
+		if(!(spacing > 0) || Math.abs(90 / spacing - Math.round(90 / spacing)) > 1e-9) {
+			throw new IllegalArgumentException("The grid spacing must divide 90 degrees");
+		}
+
+		this.spacing = spacing;
+		this.latitudeNodes = (int) Math.round(180 / spacing) + 1;
+		this.longitudeNodes = (int) Math.round(360 / spacing);
+	}
+
+	/** The number of nodes in each layer */
+	int layerSize() {
+		return latitudeNodes * longitudeNodes;
+	}
+
+	/**
+	 * Finds the positions of the nodes of a layer.
+	 *
+	 * @param positions filled with the x, y and z of each node, in the order of the nodes
+	 */
+	void positions(double radius, double[] positions) {
+		for(int lat = 0; lat < latitudeNodes; lat++) {
+			double latitude = Math.toRadians(lat * spacing - 90);
+
+			for(int lon = 0; lon < longitudeNodes; lon++) {
+				double longitude = Math.toRadians(lon * spacing - 180);
+				int i = (lat * longitudeNodes + lon) * 3;
+
+				// y is up, x is right, z is forward. 0-longitude is (0, 0, -rE)
+				positions[i] = radius * Math.cos(latitude) * Math.sin(longitude);
+				positions[i + 1] = radius * Math.sin(latitude);
+				positions[i + 2] = -radius * Math.cos(latitude) * Math.cos(longitude);
+			}
+		}
+	}
+
+	/** The sixteen nodes of a layer around a position, and the weight of each */
+	static final class Stencil {
+		final int[] nodes = new int[16];
+		final double[] weights = new double[16];
+	}
+
+	/**
+	 * Finds the nodes of a layer that the spline at a position is made from. The same nodes are used in every layer.
+	 *
+	 * @param horizontal the distance of the position from the y axis
+	 */
+	Stencil stencil(Vec3 position, double horizontal) {
+		double latitude = (Math.toDegrees(Math.atan2(position.y, horizontal)) + 90) / spacing;
+		double longitude = (Math.toDegrees(Math.atan2(position.x, -position.z)) + 180) / spacing;
+
+		int lati = Math.min((int) latitude, latitudeNodes - 2);
+		int loni = Math.min((int) longitude, longitudeNodes - 1);
+
+		double[] wlat = weights(latitude - lati), wlon = weights(longitude - loni);
+
+		Stencil stencil = new Stencil();
+
+		for(int b = 0; b < 4; b++) {
+			int lat = lati + b - 1, halfTurn = 0;
+
+			// Past a pole, continue down the other side of the earth
+			if(lat < 0) {
+				lat = -lat;
+				halfTurn = longitudeNodes / 2;
+			} else if(lat >= latitudeNodes) {
+				lat = 2 * (latitudeNodes - 1) - lat;
+				halfTurn = longitudeNodes / 2;
+			}
+
+			for(int c = 0; c < 4; c++) {
+				// Longitude wraps around
+				int lon = loni + c - 1 + halfTurn;
+				lon = lon < 0 ? lon + longitudeNodes : lon >= longitudeNodes ? lon - longitudeNodes : lon;
+
+				stencil.nodes[b * 4 + c] = lat * longitudeNodes + lon;
+				stencil.weights[b * 4 + c] = wlat[b] * wlon[c];
+			}
+		}
+
+		return stencil;
+	}
+
+	/** The weights of the four samples of a Catmull-Rom spline at t between the middle two */
+	static double[] weights(double t) {
+		double t2 = t * t, t3 = t2 * t;
+
+		return new double[] {
+				0.5 * (-t3 + 2 * t2 - t),
+				0.5 * (3 * t3 - 5 * t2 + 2),
+				0.5 * (-3 * t3 + 4 * t2 + t),
+				0.5 * (t3 - t2)
+		};
+	}
+
+	/** Rounds the length of a header up so that the nodes after it are aligned */
+	static int align(int bytes) {
+		return (bytes + 7) & ~7;
+	}
+
+	static ByteBuffer allocate(long bytes) {
+		if(bytes > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("The grid is too large to write, use a larger spacing");
+		}
+
+		return ByteBuffer.allocate((int) bytes).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Writes a grid to a file next to the destination and then moves it into place, so that a grid is never read while
+	 * it is half written. Another process may be writing the same grid, so each writes to its own file.
+	 */
+	static void write(Path file, ByteBuffer buffer) throws IOException {
+		Path temporary = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+		try(FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** Maps the whole of a grid file */
+	static ByteBuffer map(Path file) throws IOException {
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			// The mapping stays valid after the channel is closed
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+	/** The nodes after a header, as a little endian buffer */
+	static ByteBuffer nodes(ByteBuffer file, int header) {
+		ByteBuffer nodes = file.duplicate();
+		nodes.position(header);
+
+		return nodes.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+}
@@ -0,0 +1,49 @@
+package brownshome.apss;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import brownshome.apss.OrbitalSimulation.State;
+
+/**
+ * Receives the sampled states of a simulation as they are produced, so that a run does not need to hold its whole
+ * history in memory. See {@link CsvStateSink}, {@link BinaryStateSink}, {@link ColumnarStateSink} and
+ * {@link MemoryStateSink}, and {@link AsyncStateSink} to write on another thread.
+ */
+public interface StateSink extends Closeable {
+	void write(State state) throws IOException;
+
+	/**
+	 * Passes every state written so far on to the destination.
+	 *
+	 * @return the position in the output after the last state, such as the length of a file, so that a resumed run can
+	 *         drop anything written after it
+	 */
+	long flush() throws IOException;
+
+	/** Flushes the states and releases the destination */
+	@Override
+	void close() throws IOException;
+
+	/**
+	 * Opens a file to write states to, dropping anything after a position.
+	 *
+	 * @param position the length to cut the file to, zero to start a new file
+	 */
+	static FileChannel openForWriting(Path file, long position) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+		try {
+			channel.truncate(position);
+			channel.position(position);
+		} catch(IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		return channel;
+	}
+}
@@ -0,0 +1,186 @@
+package brownshome.apss;
+
+import java.util.Arrays;
+
+/**
+ * Summary statistics of a stream of values, kept in constant memory. The mean and variance use Welford's algorithm,
+ * and the percentiles are estimated with the P² algorithm of Jain and Chlamtac, which tracks five markers per
+ * percentile instead of storing the values.
+ *
+ * The percentile estimates depend slightly on the order in which the values are added.
+ */
+public class StreamingStatistics {
+	private final double[] percentiles;
+	private final P2Quantile[] quantiles;
+
+	private long count = 0;
+	private double mean = 0, m2 = 0;
+	private double minimum = Double.POSITIVE_INFINITY, maximum = Double.NEGATIVE_INFINITY;
+
+	/**
+	 * @param percentiles the percentiles to estimate, as fractions between 0 and 1
+	 */
+	public StreamingStatistics(double... percentiles) {
+		this.percentiles = percentiles.clone();
+		this.quantiles = new P2Quantile[percentiles.length];
+
+		for(int i = 0; i < percentiles.length; i++) {
+			assert percentiles[i] > 0 && percentiles[i] < 1;
+
+			quantiles[i] = new P2Quantile(percentiles[i]);
+		}
+	}
+
+	public void add(double value) {
+		count++;
+
+		double delta = value - mean;
+		mean += delta / count;
+		m2 += delta * (value - mean);
+
+		minimum = Math.min(minimum, value);
+		maximum = Math.max(maximum, value);
+
+		for(P2Quantile quantile : quantiles) {
+			quantile.add(value);
+		}
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getMean() {
+		return count == 0 ? Double.NaN : mean;
+	}
+
+	/** The sample variance */
+	public double getVariance() {
+		return count < 2 ? Double.NaN : m2 / (count - 1);
+	}
+
+	public double getStandardDeviation() {
+		return Math.sqrt(getVariance());
+	}
+
+	public double getMinimum() {
+		return count == 0 ? Double.NaN : minimum;
+	}
+
+	public double getMaximum() {
+		return count == 0 ? Double.NaN : maximum;
+	}
+
+	public double[] getPercentiles() {
+		return percentiles.clone();
+	}
+
+	/** @param index the index of the percentile in the list given to the constructor */
+	public double getPercentile(int index) {
+		return quantiles[index].get();
+	}
+
+	/** A single P² percentile estimator */
+	private static final class P2Quantile {
+		private final double p;
+
+		/** Marker heights, actual positions and desired positions */
+		private final double[] q = new double[5];
+		private final int[] n = new int[5];
+		private final double[] desired = new double[5];
+		private final double[] increment;
+
+		private int count = 0;
+
+		P2Quantile(double p) {
+			this.p = p;
+			this.increment = new double[] { 0, p / 2, p, (1 + p) / 2, 1 };
+		}
+
+		void add(double x) {
+			if(count < 5) {
+				q[count++] = x;
+
+				if(count == 5) {
+					Arrays.sort(q);
+
+					for(int i = 0; i < 5; i++) {
+						n[i] = i;
+					}
+
+					desired[0] = 0;
+					desired[1] = 2 * p;
+					desired[2] = 4 * p;
+					desired[3] = 2 + 2 * p;
+					desired[4] = 4;
+				}
+
+				return;
+			}
+
+			count++;
+
+			// Find the cell containing x, extending the extreme markers if needed
+			int k;
+			if(x < q[0]) {
+				q[0] = x;
+				k = 0;
+			} else if(x >= q[4]) {
+				q[4] = x;
+				k = 3;
+			} else {
+				k = 0;
+				while(x >= q[k + 1]) {
+					k++;
+				}
+			}
+
+			for(int i = k + 1; i < 5; i++) {
+				n[i]++;
+			}
+
+			for(int i = 0; i < 5; i++) {
+				desired[i] += increment[i];
+			}
+
+			// Move the middle markers towards their desired positions
+			for(int i = 1; i < 4; i++) {
+				double d = desired[i] - n[i];
+
+				if((d >= 1 && n[i + 1] - n[i] > 1) || (d <= -1 && n[i - 1] - n[i] < -1)) {
+					int sign = d > 0 ? 1 : -1;
+					double parabolic = parabolic(i, sign);
+
+					if(q[i - 1] < parabolic && parabolic < q[i + 1]) {
+						q[i] = parabolic;
+					} else {
+						q[i] = q[i] + sign * (q[i + sign] - q[i]) / (n[i + sign] - n[i]);
+					}
+
+					n[i] += sign;
+				}
+			}
+		}
+
+		private double parabolic(int i, int sign) {
+			return q[i] + sign / (double) (n[i + 1] - n[i - 1]) * (
+					(n[i] - n[i - 1] + sign) * (q[i + 1] - q[i]) / (n[i + 1] - n[i])
+					+ (n[i + 1] - n[i] - sign) * (q[i] - q[i - 1]) / (n[i] - n[i - 1]));
+		}
+
+		double get() {
+			if(count == 0) {
+				return Double.NaN;
+			}
+
+			if(count < 5) {
+				// Too few values for the markers, use the nearest rank of the values seen so far
+				double[] sorted = Arrays.copyOf(q, count);
+				Arrays.sort(sorted);
+				return sorted[(int) Math.min(count - 1, Math.round(p * (count - 1)))];
+			}
+
+			return q[2];
+		}
+	}
+}
@@ -0,0 +1,835 @@
+package brownshome.apss;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Finds the current in the tether. The voltage of the free end of the tether is chosen so that the voltage at the
+ * satellite end matches the voltage drop that the emitter needs to emit the collected current.
+ *
+ * The mismatch between those voltages is bracketed by doubling, and then the root is found with Brent's method, which
+ * falls back to bisection when interpolation is not making progress, or when the mismatch is infinite because the
+ * emitter cannot emit the current at all. The solve stops once the mismatch is within a tolerance, or the bracket can
+ * not be narrowed any further. When the bracket reaches over the current limit of the emitter the voltage at the limit
+ * is found first, see {@link #solveNearCurrentLimit()}.
+ *
+ * Each solve is warm started from the root found by the previous one, as the free end voltage changes very little
+ * between the stages of a step. The mismatch at the previous root and the slope of the mismatch found by the previous
+ * solve give a Newton estimate of the new root, which is usually accurate enough to stop at. Otherwise a bracket a
+ * little wider than the Newton step is tried, and widened a few times before falling back to bracketing from zero.
+ *
+ * The tether is integrated from the free end with the fifth order Runge-Kutta method of Dormand and Prince, as used by
+ * {@link DormandPrinceIntegrator}. The collected current goes as the square root of the voltage above the plasma, which
+ * has an infinite slope where the tether crosses the plasma potential, so in the collecting region the square root of
+ * that voltage is integrated over instead of the distance along the tether, which makes the equations smooth. Beyond
+ * the crossing nothing is collected and the rest of the tether is found exactly.
+ *
+ * The collecting region is split into equal steps, so that the mismatch is a smooth function of the free end voltage
+ * for the root finder. The number of steps is chosen from the embedded error estimate of the last integration of each
+ * solve: it is raised and the solve repeated if the error is above the tolerance, and lowered by one step at a time
+ * when fewer steps would still meet the tolerance. If the voltage above the plasma does not fall along the tether,
+ * which only happens when the EMF is tiny, the tether is integrated over distance with adaptive steps instead.
+ *
+ * If a {@link TetherSurrogate} is set, the solution is looked up in that table where the table is accurate enough.
+ *
+ * The results of the last solve are held in this object, so each simulation should have its own solver.
+ */
+public class TetherSolver {
+	/** The allowed local error of each step along the tether, relative to the size of the integrated values */
+	private static final double DEFAULT_TOLERANCE = 1e-5;
+
+	/** The number of steps that the collecting region is split into by the first solve, and the limits on it */
+	private static final int INITIAL_STEPS = 4, MIN_STEPS = 1, MAX_STEPS = 1000;
+
+	/** The length of the first step of an adaptive integration, as a fraction of the length of the tether */
+	private static final double INITIAL_STEP = 0.25;
+
+	/**
+	 * Steps shorter than this fraction of the tether are accepted whatever the error, so that a kink in the collected
+	 * current can not stall an adaptive integration
+	 */
+	private static final double MINIMUM_STEP = 1e-9;
+
+	/** The end of the tether is located to within this fraction of its length */
+	private static final double LENGTH_TOLERANCE = 1e-12;
+	private static final int MAX_LANDING_ITERATIONS = 8;
+
+	/** The smallest current that the error is measured relative to (A) */
+	private static final double CURRENT_FLOOR = 1e-15;
+
+	private static final double SAFETY = 0.9, MIN_SCALE = 0.2, MAX_SCALE = 5.0;
+
+	// Butcher tableau, see Dormand & Prince (1980)
+	private static final double C2 = 1.0 / 5, C3 = 3.0 / 10, C4 = 4.0 / 5, C5 = 8.0 / 9;
+
+	private static final double
+			A21 = 1.0 / 5,
+			A31 = 3.0 / 40, A32 = 9.0 / 40,
+			A41 = 44.0 / 45, A42 = -56.0 / 15, A43 = 32.0 / 9,
+			A51 = 19372.0 / 6561, A52 = -25360.0 / 2187, A53 = 64448.0 / 6561, A54 = -212.0 / 729,
+			A61 = 9017.0 / 3168, A62 = -355.0 / 33, A63 = 46732.0 / 5247, A64 = 49.0 / 176, A65 = -5103.0 / 18656,
+			A71 = 35.0 / 384, A73 = 500.0 / 1113, A74 = 125.0 / 192, A75 = -2187.0 / 6784, A76 = 11.0 / 84;
+
+	/** The difference between the fifth and fourth order weights, used for the error estimate */
+	private static final double
+			E1 = 71.0 / 57600, E3 = -71.0 / 16695, E4 = 71.0 / 1920, E5 = -17253.0 / 339200, E6 = 22.0 / 525, E7 = -1.0 / 40;
+
+	/** The number of values integrated along the tether */
+	private static final int VALUES = 4;
+
+	/** The solve stops when the voltage drop the emitter needs matches the available voltage to this accuracy (V) */
+	private static final double MISMATCH_TOLERANCE = 1e-6;
+
+	/**
+	 * The solve also stops when the bracket is narrower than this, relative to the free end voltage plus the absolute
+	 * bracket tolerance (V). The bracket has to get very narrow when the plasma is dense, as the current then changes
+	 * from zero to its final value within a tiny voltage.
+	 */
+	private static final double RELATIVE_BRACKET_TOLERANCE = 1e-12, ABSOLUTE_BRACKET_TOLERANCE = 1e-12;
+
+	private static final int MAX_ITERATIONS = 100;
+
+	/** The number of times the warm start bracket is widened before bracketing from zero */
+	private static final int WARM_EXPANSIONS = 3;
+	private static final double WARM_EXPANSION_FACTOR = 8;
+
+	private final Satellite satellite;
+	private final double tolerance;
+
+	private TetherSurrogate surrogate = null;
+	private final double[] surrogateResult = new double[TetherSurrogate.VALUES];
+
+	// The inputs of the current solve
+	private double cableLength, voltageGradient, dIdlConstant, resistivity;
+
+	/** The integral of Il */
+	private double currentLength;
+
+	/** The integral of Ilr where r is the displacement from the COM of the satellite. */
+	private double currentLengthRadius;
+
+	/** This is the current at the satellite end of the tether. */
+	private double endCurrent;
+
+	/** The is the voltage relative to the plasma at the satellite end of the tether. */
+	private double endVoltage;
+
+	/** The free end voltage that the results above are for */
+	private double evaluatedVoltage;
+
+	/** The bracket of the current solve, with f(low) < 0 <= f(high) */
+	private double low, high, fLow, fHigh;
+
+	/** The root of the last exact solve, or NaN if there is none, and the slope of the mismatch near it */
+	private double lastRoot = Double.NaN, lastSlope = Double.NaN;
+
+	/** The slope of the mismatch between the last two points tried by the root finder */
+	private double rootSlope;
+
+	/** The slope of the current near the current limit of the emitter found by the last solve that reached it */
+	private double lastCurrentSlope = Double.NaN;
+
+	/** The free end voltage and end current of the integration before the last one */
+	private double previousVoltage = Double.NaN, previousCurrent;
+
+	/**
+	 * The values being integrated. In the collecting region these are the distance along the tether, the current, and
+	 * the integrals of Il and Ilr. Elsewhere the first value is the voltage of the tether instead of the distance.
+	 */
+	private final double[] values = new double[VALUES], next = new double[VALUES], stage = new double[VALUES];
+	private final double[] k2 = new double[VALUES], k3 = new double[VALUES], k4 = new double[VALUES],
+			k5 = new double[VALUES], k6 = new double[VALUES];
+
+	/** The first and last stages are swapped after each step, as the last stage is the first of the next step */
+	private double[] k1 = new double[VALUES], k7 = new double[VALUES];
+	private final double[] absoluteTolerance = new double[VALUES];
+
+	/** The number of steps the collecting region is split into */
+	private int steps = INITIAL_STEPS;
+
+	/** The largest local error estimate of the last integration, relative to the tolerance */
+	private double stepError;
+
+	private int evaluations;
+	private long totalSolves = 0, totalEvaluations = 0, surrogateLookups = 0, warmStartFailures = 0;
+	private long derivativeEvaluations = 0;
+
+	public TetherSolver(Satellite satellite) {
+		this(satellite, DEFAULT_TOLERANCE);
+	}
+
+	/**
+	 * @param tolerance the allowed local error of each step along the tether, relative to the size of the integrated
+	 *                  values. Tight tolerances are useful as a reference for the default.
+	 */
+	public TetherSolver(Satellite satellite, double tolerance) {
+		assert tolerance > 0;
+
+		this.satellite = satellite;
+		this.tolerance = tolerance;
+	}
+
+	/** Sets the table to look solutions up in, or null to always solve exactly. The table must be for this satellite. */
+	public void setSurrogate(TetherSurrogate surrogate) {
+		this.surrogate = surrogate;
+	}
+
+	public TetherSurrogate getSurrogate() {
+		return surrogate;
+	}
+
+	/** Writes the warm start state and the number of steps, see {@link Checkpoint} */
+	void writeCheckpoint(DataOutput out) throws IOException {
+		out.writeDouble(lastRoot);
+		out.writeDouble(lastSlope);
+		out.writeDouble(lastCurrentSlope);
+		out.writeInt(steps);
+	}
+
+	void readCheckpoint(DataInput in) throws IOException {
+		lastRoot = in.readDouble();
+		lastSlope = in.readDouble();
+		lastCurrentSlope = in.readDouble();
+		steps = in.readInt();
+	}
+
+	/**
+	 * Solves for the current in the tether.
+	 *
+	 * @param cableLength the length of the tether (m)
+	 * @param voltageGradient the EMF along the tether (V/m), this must not be negative
+	 * @param plasmaDensity the electron density around the tether (e/m3)
+	 */
+	public void solve(double cableLength, double voltageGradient, double plasmaDensity) {
+		totalSolves++;
+		evaluations = 0;
+
+		// The table is only valid for the length of the tether of the satellite
+		if(surrogate != null && cableLength == satellite.cableVector.cableLength
+				&& surrogate.interpolate(voltageGradient, plasmaDensity, surrogateResult)) {
+			endCurrent = surrogateResult[0];
+			endVoltage = surrogateResult[1];
+			currentLength = surrogateResult[2];
+			currentLengthRadius = surrogateResult[3];
+			evaluatedVoltage = Double.NaN;
+			surrogateLookups++;
+			return;
+		}
+
+		this.cableLength = cableLength;
+		this.voltageGradient = voltageGradient;
+
+		// Eq (3)
+		// This is a scalar that is used to convert the voltage between the plasma and the tether to a dIdl value.
+		dIdlConstant = -UnderlyingModels.e * plasmaDensity * satellite.cableDiameter *
+				Math.sqrt(-2 * UnderlyingModels.e / UnderlyingModels.me);
+
+		// Eq (4)
+		// This is the resistance of the cable in ohm / m
+		resistivity = 1.0 / (Math.PI * satellite.cableDiameter * satellite.cableDiameter / 4 * satellite.cableConductivity);
+
+		while(true) {
+			// Kept if the root finder does not try two finite points
+			rootSlope = lastSlope;
+
+			if(Double.isNaN(lastRoot) || !warmBracket()) {
+				if(!Double.isNaN(lastRoot)) {
+					warmStartFailures++;
+				}
+
+				bracket();
+			}
+
+			double root = fHigh == Double.POSITIVE_INFINITY ? solveNearCurrentLimit() : brent(low, fLow, high, fHigh, false);
+
+			if(evaluatedVoltage != root) {
+				evaluate(root);
+			}
+
+			lastRoot = root;
+			lastSlope = rootSlope;
+
+			// The error shrinks as the fifth power of the step
+			if(stepError > 1 && steps < MAX_STEPS) {
+				steps = (int) Math.min(MAX_STEPS, Math.ceil(steps * Math.pow(stepError, 0.2) / SAFETY));
+				continue;
+			}
+
+			if(steps > MIN_STEPS && stepError * Math.pow(steps / (steps - 1.0), 5) < SAFETY) {
+				steps--;
+			}
+
+			break;
+		}
+
+		totalEvaluations += evaluations;
+	}
+
+	/**
+	 * Brackets the root starting near the last root.
+	 *
+	 * @return false if the root was not found near the last root
+	 */
+	private boolean warmBracket() {
+		double start = lastRoot;
+		double f = mismatch(start);
+
+		if(Math.abs(f) <= MISMATCH_TOLERANCE) {
+			// The last root is still good enough, the root finder returns it straight away
+			low = high = start;
+			fLow = fHigh = f;
+			return true;
+		}
+
+		double width = 1e-9 + 1e-9 * Math.abs(lastRoot);
+
+		if(f == Double.POSITIVE_INFINITY && lastCurrentSlope > 0 && Double.isFinite(lastCurrentSlope)) {
+			// Over the current limit, the slope of the current gives a Newton estimate of the way back under it
+			width = Math.max(width, 1.5 * (endCurrent - satellite.emitter.currentLimit) / lastCurrentSlope);
+		}
+
+		if(lastSlope > 0 && Double.isFinite(lastSlope) && Double.isFinite(f)) {
+			// The mismatch is close to linear over the distance the root moves, so the Newton step is usually good enough
+			double newton = start - f / lastSlope;
+			double fNewton = mismatch(newton);
+
+			double slope = (fNewton - f) / (newton - start);
+			if(slope > 0 && Double.isFinite(slope)) {
+				rootSlope = slope;
+			}
+
+			if(Math.abs(fNewton) <= MISMATCH_TOLERANCE) {
+				low = high = newton;
+				fLow = fHigh = fNewton;
+				return true;
+			}
+
+			if((fNewton < 0) != (f < 0)) {
+				if(f < 0) {
+					low = start;
+					fLow = f;
+					high = newton;
+					fHigh = fNewton;
+				} else {
+					low = newton;
+					fLow = fNewton;
+					high = start;
+					fHigh = f;
+				}
+
+				return true;
+			}
+
+			// The root is beyond the Newton step, search on from there
+			start = newton;
+			f = fNewton;
+			width = Math.max(width, 1.5 * Math.abs(f / rootSlope));
+		}
+
+		if(f < 0) {
+			low = start;
+			fLow = f;
+
+			for(int i = 0; i <= WARM_EXPANSIONS; i++, width *= WARM_EXPANSION_FACTOR) {
+				high = start + width;
+
+				if((fHigh = mismatch(high)) >= 0) {
+					return true;
+				}
+
+				low = high;
+				fLow = fHigh;
+			}
+		} else {
+			high = start;
+			fHigh = f;
+
+			for(int i = 0; i <= WARM_EXPANSIONS; i++, width *= WARM_EXPANSION_FACTOR) {
+				low = start - width;
+
+				if((fLow = mismatch(low)) < 0) {
+					return true;
+				}
+
+				high = low;
+				fHigh = fLow;
+			}
+		}
+
+		return false;
+	}
+
+	/** Brackets the root by doubling outwards from zero, the mismatch increases with the free end voltage */
+	private void bracket() {
+		double f = mismatch(0);
+
+		if(f < 0) {
+			low = 0;
+			fLow = f;
+			high = 10;
+
+			while((fHigh = mismatch(high *= 2)) < 0) {
+				low = high;
+				fLow = fHigh;
+			}
+		} else {
+			high = 0;
+			fHigh = f;
+			low = -10;
+
+			while((fLow = mismatch(low *= 2)) >= 0) {
+				high = low;
+				fHigh = fLow;
+			}
+		}
+	}
+
+	/**
+	 * Solves on a bracket where the high end is over the current limit of the emitter, so the mismatch there is infinite.
+	 * The root is often the jump in the mismatch at the limit, and closing in on a jump takes one bisection per bit of
+	 * the free end voltage. Instead the voltage at which the current reaches the limit is found from the current itself,
+	 * which is smooth. If the mismatch there is still negative then that is the root, otherwise the root is below the
+	 * limit, where the mismatch is finite.
+	 */
+	private double solveNearCurrentLimit() {
+		double atLimit = brent(low, currentExcess(low), high, currentExcess(high), true);
+
+		double f = evaluatedVoltage == atLimit ? evaluatedMismatch() : mismatch(atLimit);
+
+		if(Math.abs(f) <= MISMATCH_TOLERANCE || f < 0) {
+			return atLimit;
+		}
+
+		high = atLimit;
+		fHigh = f;
+
+		return brent(low, fLow, high, fHigh, false);
+	}
+
+	/**
+	 * Brent's method on a bracket with f(low) < 0 <= f(high). The best estimate is kept in b, and c is the other end of
+	 * the bracket.
+	 *
+	 * @param currentLimit if true the function is the amount by which the current exceeds the limit of the emitter,
+	 *                     otherwise it is the mismatch
+	 * @return the free end voltage at the root. This is taken from the low side of the bracket, so that if the mismatch
+	 *         jumps across zero, as it does at the current limit of the emitter, the current that is returned can be
+	 *         emitted.
+	 */
+	private double brent(double a, double fa, double b, double fb, boolean currentLimit) {
+		double functionTolerance = currentLimit ? 0 : MISMATCH_TOLERANCE;
+
+		double c = a, fc = fa;
+		double d = b - a, e = d;
+
+		for(int i = 0; i < MAX_ITERATIONS; i++) {
+			if((fb > 0) == (fc > 0)) {
+				// Keep the root between b and c
+				c = a;
+				fc = fa;
+				d = e = b - a;
+			}
+
+			if(Math.abs(fc) < Math.abs(fb)) {
+				a = b; b = c; c = a;
+				fa = fb; fb = fc; fc = fa;
+			}
+
+			double tolerance = 2 * Math.ulp(b) + 0.5 * (RELATIVE_BRACKET_TOLERANCE * Math.abs(b) + ABSOLUTE_BRACKET_TOLERANCE);
+			double m = 0.5 * (c - b);
+
+			if(Math.abs(fb) <= functionTolerance || Math.abs(m) <= tolerance) {
+				// a is the previous point tried, and c is the other end of the bracket
+				double other = a != b && Double.isFinite(fa) ? a : c;
+				double fOther = a != b && Double.isFinite(fa) ? fa : fc;
+
+				if(other != b && Double.isFinite(fOther) && Double.isFinite(fb)) {
+					if(currentLimit) {
+						lastCurrentSlope = (fOther - fb) / (other - b);
+					} else {
+						rootSlope = (fOther - fb) / (other - b);
+					}
+				}
+
+				return Math.abs(fb) <= functionTolerance || fb < 0 ? b : c;
+			}
+
+			boolean finite = Double.isFinite(fa) && Double.isFinite(fb) && Double.isFinite(fc);
+
+			if(finite && Math.abs(e) >= tolerance && Math.abs(fa) > Math.abs(fb)) {
+				double p, q, s = fb / fa;
+
+				if(a == c) {
+					// Secant
+					p = 2 * m * s;
+					q = 1 - s;
+				} else {
+					// Inverse quadratic interpolation
+					double r = fb / fc, t = fa / fc;
+					p = s * (2 * m * t * (t - r) - (b - a) * (r - 1));
+					q = (t - 1) * (r - 1) * (s - 1);
+				}
+
+				if(p > 0) {
+					q = -q;
+				} else {
+					p = -p;
+				}
+
+				if(2 * p < Math.min(3 * m * q - Math.abs(tolerance * q), Math.abs(e * q))) {
+					e = d;
+					d = p / q;
+				} else {
+					d = m;
+					e = m;
+				}
+			} else {
+				d = m;
+				e = m;
+			}
+
+			a = b;
+			fa = fb;
+			b += Math.abs(d) > tolerance ? d : Math.copySign(tolerance, m);
+			fb = currentLimit ? currentExcess(b) : mismatch(b);
+		}
+
+		return b;
+	}
+
+	/** The difference between the voltage drop the emitter needs and the voltage drop available */
+	private double mismatch(double startingVoltage) {
+		evaluate(startingVoltage);
+
+		return evaluatedMismatch();
+	}
+
+	/** The mismatch of the last integration */
+	private double evaluatedMismatch() {
+		return satellite.emitter.calculateRequiredVoltageDrop(endCurrent) + endVoltage;
+	}
+
+	/** The amount by which the current exceeds the limit of the emitter, reusing the last two integrations */
+	private double currentExcess(double startingVoltage) {
+		if(startingVoltage == previousVoltage) {
+			return previousCurrent - satellite.emitter.currentLimit;
+		}
+
+		if(startingVoltage != evaluatedVoltage) {
+			evaluate(startingVoltage);
+		}
+
+		return endCurrent - satellite.emitter.currentLimit;
+	}
+
+	/**
+	 * Integrates along the tether from the free end.
+	 *
+	 * @param startingVoltage is the voltage of the free end of the tether
+	 */
+	private void evaluate(double startingVoltage) {
+		evaluations++;
+		previousVoltage = evaluatedVoltage;
+		previousCurrent = endCurrent;
+		evaluatedVoltage = startingVoltage;
+		stepError = 0;
+
+		if(startingVoltage <= 0) {
+			// The voltage above the plasma only falls along the tether, so nothing is collected
+			endCurrent = 0;
+			endVoltage = startingVoltage - cableLength * voltageGradient;
+			currentLength = 0;
+			currentLengthRadius = 0;
+			return;
+		}
+
+		if(!integrateCollectingRegion(startingVoltage)) {
+			integrateAlongTether(startingVoltage);
+		}
+	}
+
+	/**
+	 * Integrates over the square root of the voltage above the plasma, w, from the free end down to zero, and then
+	 * finds the rest of the tether exactly.
+	 *
+	 * @return false if the voltage above the plasma stopped falling, in which case w can not be integrated over
+	 */
+	private boolean integrateCollectingRegion(double startingVoltage) {
+		double startW = Math.sqrt(startingVoltage);
+
+		Arrays.fill(values, 0);
+		absoluteTolerance[0] = tolerance * cableLength;
+		absoluteTolerance[1] = tolerance * CURRENT_FLOOR;
+		absoluteTolerance[2] = tolerance * CURRENT_FLOOR * cableLength;
+		absoluteTolerance[3] = tolerance * CURRENT_FLOOR * cableLength * cableLength;
+
+		if(!collectingDerivative(startW, values, k1)) {
+			return false;
+		}
+
+		double w = startW;
+		for(int i = 1; i <= steps; i++) {
+			double endW = i == steps ? 0 : startW * (steps - i) / steps;
+			double h = endW - w;
+
+			double error = attemptStep(true, w, h);
+			if(Double.isNaN(error)) {
+				return false;
+			}
+
+			stepError = Math.max(stepError, error);
+
+			if(next[0] > cableLength) {
+				// The whole of the rest of the tether is collecting, find the w where the step reaches the end of it
+				landOnEnd(w, h);
+				return true;
+			}
+
+			acceptStep();
+			w = endW;
+		}
+
+		// Beyond the crossing there is no collection, so the current is constant and the voltage rises linearly
+		double crossing = values[0], current = values[1];
+		double remaining = cableLength - crossing;
+
+		endCurrent = current;
+		endVoltage = (current * resistivity - voltageGradient) * remaining;
+		currentLength = values[2] + current * remaining;
+		currentLengthRadius = values[3] + current * (satellite.centreOfMass * remaining
+				- (cableLength * cableLength - crossing * crossing) / 2);
+
+		return true;
+	}
+
+	/** Shortens a step in w that overshot the end of the tether so that it lands on the end, with the secant method */
+	private void landOnEnd(double w, double h) {
+		// The distance along the tether is close to linear in w squared, the voltage above the plasma
+		double voltageA = w * w, overshootA = values[0] - cableLength;
+		double voltageB = (w + h) * (w + h), overshootB = next[0] - cableLength;
+
+		for(int i = 0; i < MAX_LANDING_ITERATIONS && Math.abs(overshootB) > LENGTH_TOLERANCE * cableLength; i++) {
+			double voltageC = voltageB - overshootB * (voltageB - voltageA) / (overshootB - overshootA);
+			voltageA = voltageB;
+			overshootA = overshootB;
+			voltageB = Math.max(0, voltageC);
+
+			attemptStep(true, w, Math.sqrt(voltageB) - w);
+			overshootB = next[0] - cableLength;
+		}
+
+		endCurrent = next[1];
+		endVoltage = voltageB;
+		currentLength = next[2];
+		currentLengthRadius = next[3];
+	}
+
+	/** Integrates over the distance along the tether, this is used when the voltage above the plasma does not fall */
+	private void integrateAlongTether(double startingVoltage) {
+		double position = 0;
+		double h = cableLength * INITIAL_STEP;
+		double minimumStep = cableLength * MINIMUM_STEP;
+
+		values[0] = startingVoltage;
+		values[1] = 0;
+		values[2] = 0;
+		values[3] = 0;
+		absoluteTolerance[0] = tolerance;
+		absoluteTolerance[1] = tolerance * CURRENT_FLOOR;
+		absoluteTolerance[2] = tolerance * CURRENT_FLOOR * cableLength;
+		absoluteTolerance[3] = tolerance * CURRENT_FLOOR * cableLength * cableLength;
+
+		tetherDerivative(position, values, k1);
+
+		while(position < cableLength) {
+			boolean last = position + h >= cableLength;
+			if(last) {
+				h = cableLength - position;
+			}
+
+			double error = attemptStep(false, position, h);
+
+			if(error > 1 && h > minimumStep) {
+				h *= scaleFactor(error, 1.0);
+				continue;
+			}
+
+			acceptStep();
+			position = last ? cableLength : position + h;
+			h *= scaleFactor(error, MAX_SCALE);
+		}
+
+		endCurrent = values[1];
+		endVoltage = values[0] - cableLength * voltageGradient;
+		currentLength = values[2];
+		currentLengthRadius = values[3];
+	}
+
+	/**
+	 * Takes one step of length h from x, writing the fifth order solution into next. The derivative at the start of the
+	 * step must already be in k1.
+	 *
+	 * @return the RMS of the error estimate scaled by the tolerance, or NaN if the derivative could not be found
+	 */
+	private double attemptStep(boolean collecting, double x, double h) {
+		boolean valid = true;
+
+		for(int i = 0; i < VALUES; i++) {
+			stage[i] = values[i] + h * (A21 * k1[i]);
+		}
+		valid &= derivative(collecting, x + C2 * h, stage, k2);
+
+		for(int i = 0; i < VALUES; i++) {
+			stage[i] = values[i] + h * (A31 * k1[i] + A32 * k2[i]);
+		}
+		valid &= derivative(collecting, x + C3 * h, stage, k3);
+
+		for(int i = 0; i < VALUES; i++) {
+			stage[i] = values[i] + h * (A41 * k1[i] + A42 * k2[i] + A43 * k3[i]);
+		}
+		valid &= derivative(collecting, x + C4 * h, stage, k4);
+
+		for(int i = 0; i < VALUES; i++) {
+			stage[i] = values[i] + h * (A51 * k1[i] + A52 * k2[i] + A53 * k3[i] + A54 * k4[i]);
+		}
+		valid &= derivative(collecting, x + C5 * h, stage, k5);
+
+		for(int i = 0; i < VALUES; i++) {
+			stage[i] = values[i] + h * (A61 * k1[i] + A62 * k2[i] + A63 * k3[i] + A64 * k4[i] + A65 * k5[i]);
+		}
+		valid &= derivative(collecting, x + h, stage, k6);
+
+		for(int i = 0; i < VALUES; i++) {
+			next[i] = values[i] + h * (A71 * k1[i] + A73 * k3[i] + A74 * k4[i] + A75 * k5[i] + A76 * k6[i]);
+		}
+		valid &= derivative(collecting, x + h, next, k7);
+
+		if(!valid) {
+			return Double.NaN;
+		}
+
+		double sum = 0;
+		for(int i = 0; i < VALUES; i++) {
+			double error = h * (E1 * k1[i] + E3 * k3[i] + E4 * k4[i] + E5 * k5[i] + E6 * k6[i] + E7 * k7[i]);
+			double scaled = error / (absoluteTolerance[i] + tolerance * Math.max(Math.abs(values[i]), Math.abs(next[i])));
+			sum += scaled * scaled;
+		}
+
+		return Math.sqrt(sum / VALUES);
+	}
+
+	private boolean derivative(boolean collecting, double x, double[] y, double[] result) {
+		if(collecting) {
+			return collectingDerivative(x, y, result);
+		}
+
+		tetherDerivative(x, y, result);
+		return true;
+	}
+
+	/** Moves to the end of the last step, reusing the derivative there as the first stage of the next step */
+	private void acceptStep() {
+		System.arraycopy(next, 0, values, 0, VALUES);
+
+		double[] first = k1;
+		k1 = k7;
+		k7 = first;
+	}
+
+	private static double scaleFactor(double error, double maxScale) {
+		if(error == 0) {
+			return maxScale;
+		}
+
+		return Math.max(MIN_SCALE, Math.min(maxScale, SAFETY * Math.pow(error, -0.2)));
+	}
+
+	/**
+	 * The derivative with respect to w, the square root of the voltage above the plasma, of the distance, current, and
+	 * the integrals of Il and Ilr.
+	 *
+	 * @return false if the voltage above the plasma is not falling
+	 */
+	private boolean collectingDerivative(double w, double[] y, double[] result) {
+		derivativeEvaluations++;
+
+		// The rate of change of the voltage above the plasma along the tether
+		double slope = y[1] * resistivity - voltageGradient;
+
+		if(!(slope < 0)) {
+			return false;
+		}
+
+		double dldw = 2 * w / slope;
+
+		result[0] = dldw;
+		result[1] = dIdlConstant * w * dldw;
+		result[2] = y[1] * dldw;
+		result[3] = y[1] * (satellite.centreOfMass - y[0]) * dldw;
+
+		return true;
+	}
+
+	/** The derivative with respect to the distance along the tether of the voltage, current, and the integrals of Il and Ilr */
+	private void tetherDerivative(double position, double[] y, double[] result) {
+		derivativeEvaluations++;
+
+		// Voltage compared to the plasma
+		double deltaV = y[0] - position * voltageGradient;
+
+		result[0] = y[1] * resistivity;
+		result[1] = deltaV > 0 ? Math.sqrt(deltaV) * dIdlConstant : 0;
+		result[2] = y[1];
+		result[3] = y[1] * (satellite.centreOfMass - position);
+	}
+
+	/** The integral of Il from the last solve */
+	public double getCurrentLength() {
+		return currentLength;
+	}
+
+	/** The integral of Ilr from the last solve, where r is the displacement from the COM of the satellite */
+	public double getCurrentLengthRadius() {
+		return currentLengthRadius;
+	}
+
+	/** The current at the satellite end of the tether from the last solve */
+	public double getEndCurrent() {
+		return endCurrent;
+	}
+
+	/** The voltage relative to the plasma at the satellite end of the tether from the last solve */
+	public double getEndVoltage() {
+		return endVoltage;
+	}
+
+	/** The number of times the tether was integrated by the last solve */
+	public int getEvaluations() {
+		return evaluations;
+	}
+
+	public long getTotalSolves() {
+		return totalSolves;
+	}
+
+	public long getTotalEvaluations() {
+		return totalEvaluations;
+	}
+
+	/** The number of times the derivative along the tether was evaluated, over all solves */
+	public long getDerivativeEvaluations() {
+		return derivativeEvaluations;
+	}
+
+	/** The number of warm starts that did not find the root near the last root */
+	public long getWarmStartFailures() {
+		return warmStartFailures;
+	}
+
+	/** The number of solves that were answered by the surrogate table */
+	public long getSurrogateLookups() {
+		return surrogateLookups;
+	}
+}
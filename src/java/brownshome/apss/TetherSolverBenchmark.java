@@ -0,0 +1,53 @@
+package brownshome.apss;
+
+/**
+ * Measures the speed of the tether solver on its own, over a slowly varying sequence of EMFs and plasma densities
+ * like those seen along an orbit. Long tethers spend much of the orbit at the current limit of the emitter, so the
+ * length of the tether can be given to see how the search for the free end voltage copes there.
+ *
+ * Usage: TetherSolverBenchmark [tether length (m)]
+ */
+public class TetherSolverBenchmark {
+	private static final int WARMUP_SOLVES = 20_000, MEASURED_SOLVES = 100_000;
+
+	public static void main(String[] args) {
+		double cableLength = args.length > 0 ? Double.parseDouble(args[0]) : 200;
+
+		Satellite satellite = new Satellite(CableFunction.acrossVelocity(cableLength), Emitter.createThermionicCathode(), 1.0, 0.001, UnderlyingModels.σAluminium);
+		TetherSolver solver = new TetherSolver(satellite);
+
+		double checksum = 0;
+		for(int i = 0; i < WARMUP_SOLVES; i++) {
+			checksum += solve(solver, cableLength, i);
+		}
+
+		long startEvaluations = solver.getTotalEvaluations();
+		long startDerivatives = solver.getDerivativeEvaluations();
+		long startWarmFailures = solver.getWarmStartFailures();
+		long startTime = System.nanoTime();
+
+		for(int i = 0; i < MEASURED_SOLVES; i++) {
+			checksum += solve(solver, cableLength, i);
+		}
+
+		long nanos = System.nanoTime() - startTime;
+		long evaluations = solver.getTotalEvaluations() - startEvaluations;
+		long derivatives = solver.getDerivativeEvaluations() - startDerivatives;
+
+		System.out.printf("Tether length: %.0f m, checksum: %e%n", cableLength, checksum);
+		System.out.printf("Time: %.0f ns per solve%n", nanos / (double) MEASURED_SOLVES);
+		System.out.printf("Integrations of the tether: %.2f per solve, %.1f derivative evaluations per integration%n",
+				evaluations / (double) MEASURED_SOLVES, derivatives / (double) evaluations);
+		System.out.printf("Failed warm starts: %d%n", solver.getWarmStartFailures() - startWarmFailures);
+	}
+
+	/** Solves at the i-th point of a path that sweeps the EMF and the density back and forth */
+	private static double solve(TetherSolver solver, double cableLength, int i) {
+		double voltageGradient = 0.05 + 0.35 * (0.5 + 0.5 * Math.sin(i * 0.01));
+		double plasmaDensity = Math.pow(10, 9 + 4 * (0.5 + 0.5 * Math.sin(i * 0.0037)));
+
+		solver.solve(cableLength, voltageGradient, plasmaDensity);
+
+		return solver.getEndCurrent();
+	}
+}
@@ -0,0 +1,308 @@
+package brownshome.apss;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A table of the tether solution for one satellite, over the two inputs it depends on: the motional voltage gradient,
+ * and the plasma density. Values between the nodes are found with a bicubic (Catmull-Rom) spline in the square root
+ * of the gradient and the log of the density. The square root puts more nodes at small gradients, where the current
+ * changes quickly.
+ *
+ * When the table is built the spline is checked against the exact solution at five points in every cell. Cells where
+ * the error is above the tolerance, such as those where the current reaches the limit of the emitter, are marked so
+ * that inputs falling in them are solved exactly. Inputs outside of the table are also solved exactly. The error is
+ * relative, with a floor of a thousandth of the largest value in the table so that tiny currents are not counted. With
+ * the default tolerance of 1e-3 the error seen at random points is within a few times the tolerance.
+ *
+ * Tables are immutable once built, so they can be shared between simulations on different threads.
+ */
+public final class TetherSurrogate {
+	private static final long MAGIC = 0x41505353544D4150L; // APSSTMAP
+	/** Changed whenever the tether model or the table layout changes, so that old cache files are rebuilt */
+	private static final int VERSION = 2;
+
+	/** End current, end voltage, integral of Il, integral of Ilr */
+	static final int VALUES = 4;
+
+	private static final int GRADIENT_NODES = 65, DENSITY_NODES = 97;
+	private static final double MAX_GRADIENT = 1.0;
+	private static final double MIN_LOG_DENSITY = 7, MAX_LOG_DENSITY = 14;
+	private static final double DEFAULT_TOLERANCE = 1e-3;
+
+	/** The points in each cell where the spline is checked, as fractions of the cell */
+	private static final double[][] CHECK_POINTS = { { 0.5, 0.5 }, { 0.25, 0.25 }, { 0.25, 0.75 }, { 0.75, 0.25 }, { 0.75, 0.75 } };
+
+	/** Tables that have already been built in this process, by key */
+	private static final Map<String, TetherSurrogate> LOADED = new ConcurrentHashMap<>();
+
+	private final String key;
+	private final double tolerance;
+
+	/** Node values, indexed by [gradient][density][value] */
+	private final double[][][] nodes;
+
+	/** Cells that must be solved exactly, indexed by [gradient][density] */
+	private final boolean[][] exactCells;
+
+	private static final double SQRT_GRADIENT_SPACING = Math.sqrt(MAX_GRADIENT) / (GRADIENT_NODES - 1);
+	private static final double LOG_DENSITY_SPACING = (MAX_LOG_DENSITY - MIN_LOG_DENSITY) / (DENSITY_NODES - 1);
+
+	private TetherSurrogate(String key, double tolerance, double[][][] nodes, boolean[][] exactCells) {
+		this.key = key;
+		this.tolerance = tolerance;
+		this.nodes = nodes;
+		this.exactCells = exactCells;
+	}
+
+	/**
+	 * Gets the table for a satellite, building it if it has not been built by this process.
+	 *
+	 * @param cacheDirectory a directory to store tables in between runs, or null to always build the table
+	 */
+	public static TetherSurrogate forSatellite(Satellite satellite, Path cacheDirectory) throws IOException {
+		String key = key(satellite, DEFAULT_TOLERANCE);
+		TetherSurrogate surrogate = LOADED.get(key);
+
+		if(surrogate != null) {
+			return surrogate;
+		}
+
+		Path file = null;
+		if(cacheDirectory != null) {
+			file = cacheDirectory.resolve(String.format("tether-%08x.bin", key.hashCode()));
+
+			if(Files.exists(file)) {
+				surrogate = read(file, key);
+			}
+		}
+
+		if(surrogate == null) {
+			surrogate = build(satellite, DEFAULT_TOLERANCE);
+
+			if(file != null) {
+				Files.createDirectories(cacheDirectory);
+				surrogate.write(file);
+			}
+		}
+
+		TetherSurrogate existing = LOADED.putIfAbsent(key, surrogate);
+		return existing == null ? surrogate : existing;
+	}
+
+	/** Everything that the tether solution depends on */
+	private static String key(Satellite satellite, double tolerance) {
+		Emitter emitter = satellite.emitter;
+
+		return String.format("v%d,%a,%a,%a,%a,%a,%a,%a,%a,%a,%d,%d,%a,%a,%a",
+				VERSION,
+				satellite.cableVector.cableLength, satellite.cableDiameter, satellite.cableConductivity, satellite.centreOfMass,
+				emitter.powerLimit, emitter.currentLimit, emitter.setBias, emitter.technologyVoltageDrop,
+				tolerance, GRADIENT_NODES, DENSITY_NODES, MAX_GRADIENT, MIN_LOG_DENSITY, MAX_LOG_DENSITY);
+	}
+
+	public static TetherSurrogate build(Satellite satellite, double tolerance) {
+		TetherSolver solver = new TetherSolver(satellite);
+		double cableLength = satellite.cableVector.cableLength;
+
+		double[][][] nodes = new double[GRADIENT_NODES][DENSITY_NODES][];
+		for(int g = 0; g < GRADIENT_NODES; g++) {
+			for(int d = 0; d < DENSITY_NODES; d++) {
+				nodes[g][d] = solve(solver, cableLength, gradient(g), density(d));
+			}
+		}
+
+		// The scale of each value, used to set an absolute error floor for values that pass through zero
+		double[] scale = new double[VALUES];
+		for(double[][] column : nodes) {
+			for(double[] node : column) {
+				for(int i = 0; i < VALUES; i++) {
+					scale[i] = Math.max(scale[i], Math.abs(node[i]));
+				}
+			}
+		}
+
+		TetherSurrogate surrogate = new TetherSurrogate(key(satellite, tolerance), tolerance, nodes,
+				new boolean[GRADIENT_NODES - 1][DENSITY_NODES - 1]);
+
+		double[] estimate = new double[VALUES];
+		for(int g = 0; g < GRADIENT_NODES - 1; g++) {
+			for(int d = 0; d < DENSITY_NODES - 1; d++) {
+				for(double[] point : CHECK_POINTS) {
+					double[] exact = solve(solver, cableLength, gradient(g + point[0]), density(d + point[1]));
+					surrogate.spline(g, d, point[0], point[1], estimate);
+
+					for(int i = 0; i < VALUES; i++) {
+						if(Math.abs(exact[i] - estimate[i]) > tolerance * (Math.abs(exact[i]) + 1e-3 * scale[i])) {
+							surrogate.exactCells[g][d] = true;
+						}
+					}
+				}
+			}
+		}
+
+		return surrogate;
+	}
+
+	/** The gradient at a position on the gradient axis, in nodes */
+	private static double gradient(double node) {
+		double root = node * SQRT_GRADIENT_SPACING;
+		return root * root;
+	}
+
+	/** The density at a position on the density axis, in nodes */
+	private static double density(double node) {
+		return Math.pow(10, MIN_LOG_DENSITY + node * LOG_DENSITY_SPACING);
+	}
+
+	private static double[] solve(TetherSolver solver, double cableLength, double gradient, double density) {
+		solver.solve(cableLength, gradient, density);
+
+		return new double[] { solver.getEndCurrent(), solver.getEndVoltage(), solver.getCurrentLength(), solver.getCurrentLengthRadius() };
+	}
+
+	/**
+	 * Looks up the tether solution.
+	 *
+	 * @param result the end current, end voltage, integral of Il and integral of Ilr are written into this array
+	 * @return false if the inputs are outside of the table, or in a cell that must be solved exactly
+	 */
+	boolean interpolate(double voltageGradient, double plasmaDensity, double[] result) {
+		double x = Math.sqrt(voltageGradient) / SQRT_GRADIENT_SPACING;
+		double y = (Math.log10(plasmaDensity) - MIN_LOG_DENSITY) / LOG_DENSITY_SPACING;
+
+		// Also rejects NaN
+		if(!(x >= 0 && x < GRADIENT_NODES - 1 && y >= 0 && y < DENSITY_NODES - 1)) {
+			return false;
+		}
+
+		int g = (int) x, d = (int) y;
+
+		if(exactCells[g][d]) {
+			return false;
+		}
+
+		spline(g, d, x - g, y - d, result);
+		return true;
+	}
+
+	/** The Catmull-Rom spline over the 4x4 nodes around cell (g, d), with the edge nodes repeated at the table edges */
+	private void spline(int g, int d, double tx, double ty, double[] result) {
+		for(int i = 0; i < VALUES; i++) {
+			result[i] = 0;
+		}
+
+		for(int a = 0; a < 4; a++) {
+			double[][] column = nodes[clamp(g + a - 1, GRADIENT_NODES)];
+			double wx = weight(a, tx);
+
+			for(int b = 0; b < 4; b++) {
+				double[] node = column[clamp(d + b - 1, DENSITY_NODES)];
+				double w = wx * weight(b, ty);
+
+				for(int i = 0; i < VALUES; i++) {
+					result[i] += w * node[i];
+				}
+			}
+		}
+	}
+
+	private static int clamp(int index, int size) {
+		return Math.max(0, Math.min(size - 1, index));
+	}
+
+	/** The weight of one of the four samples of a Catmull-Rom spline at t between the middle two */
+	private static double weight(int sample, double t) {
+		double t2 = t * t, t3 = t2 * t;
+
+		switch(sample) {
+			case 0: return 0.5 * (-t3 + 2 * t2 - t);
+			case 1: return 0.5 * (3 * t3 - 5 * t2 + 2);
+			case 2: return 0.5 * (-3 * t3 + 4 * t2 + t);
+			default: return 0.5 * (t3 - t2);
+		}
+	}
+
+	/** The tolerance that the cells were checked against */
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	/** The fraction of the cells that are solved exactly */
+	public double getExactFraction() {
+		int count = 0;
+
+		for(boolean[] column : exactCells) {
+			for(boolean exact : column) {
+				if(exact) {
+					count++;
+				}
+			}
+		}
+
+		return count / (double) ((GRADIENT_NODES - 1) * (DENSITY_NODES - 1));
+	}
+
+	private void write(Path file) throws IOException {
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+			out.writeLong(MAGIC);
+			out.writeUTF(key);
+			out.writeDouble(tolerance);
+
+			for(int g = 0; g < GRADIENT_NODES; g++) {
+				for(int d = 0; d < DENSITY_NODES; d++) {
+					for(double value : nodes[g][d]) {
+						out.writeDouble(value);
+					}
+				}
+			}
+
+			for(boolean[] column : exactCells) {
+				for(boolean exact : column) {
+					out.writeBoolean(exact);
+				}
+			}
+		}
+
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** @return the table, or null if the file holds a table for a different satellite */
+	private static TetherSurrogate read(Path file, String key) throws IOException {
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if(in.readLong() != MAGIC || !in.readUTF().equals(key)) {
+				return null;
+			}
+
+			double tolerance = in.readDouble();
+
+			double[][][] nodes = new double[GRADIENT_NODES][DENSITY_NODES][VALUES];
+			for(int g = 0; g < GRADIENT_NODES; g++) {
+				for(int d = 0; d < DENSITY_NODES; d++) {
+					for(int i = 0; i < VALUES; i++) {
+						nodes[g][d][i] = in.readDouble();
+					}
+				}
+			}
+
+			boolean[][] exactCells = new boolean[GRADIENT_NODES - 1][DENSITY_NODES - 1];
+			for(boolean[] column : exactCells) {
+				for(int d = 0; d < column.length; d++) {
+					column[d] = in.readBoolean();
+				}
+			}
+
+			return new TetherSurrogate(key, tolerance, nodes, exactCells);
+		}
+	}
+}
@@ -0,0 +1,391 @@
+package brownshome.apss;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads a file written by {@link ColumnarStateSink}. Opening the file only reads the header of each block, and a block
+ * is memory mapped and decoded when a row in it is read, so any time in a long run can be found quickly. Only the
+ * columns that are read are decoded. A block that was cut short, such as by a run that was stopped while writing it,
+ * is left out.
+ *
+ * This is not safe to use from more than one thread at once.
+ */
+public final class TrajectoryFile implements Closeable {
+	/** The number of rows, the first and last times, and the length of the block */
+	private static final int BLOCK_HEADER = 4 + 8 + 8 + 4;
+
+	private static final class Block {
+		final long offset, firstRow, firstTime, lastTime;
+		final int length, rows;
+
+		Block(long offset, int length, long firstRow, int rows, long firstTime, long lastTime) {
+			this.offset = offset;
+			this.length = length;
+			this.firstRow = firstRow;
+			this.rows = rows;
+			this.firstTime = firstTime;
+			this.lastTime = lastTime;
+		}
+	}
+
+	private final FileChannel channel;
+	private final List<String> columns;
+	private final List<Block> blocks = new ArrayList<>();
+	private final long rowCount;
+
+	/** The block that is loaded, the position of each column in it, and the columns that have been decoded */
+	private Block loaded;
+	private ByteBuffer data;
+	private final int[] columnOffsets;
+	private long[] times;
+	private final double[][] values;
+
+	private TrajectoryFile(FileChannel channel) throws IOException {
+		this.channel = channel;
+
+		ByteBuffer start = read(0, 16);
+		if(start.getLong() != ColumnarStateSink.MAGIC) {
+			throw new IOException("This is not a trajectory file");
+		}
+
+		int headerLength = start.getInt();
+		if(start.getInt() != ColumnarStateSink.VERSION) {
+			throw new IOException("This trajectory file is from a different version of the simulator");
+		}
+
+		ByteBuffer header = read(0, headerLength);
+		byte[] bytes = new byte[headerLength];
+		header.get(bytes);
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 16, headerLength - 16));
+		String[] names = new String[in.readInt()];
+		for(int c = 0; c < names.length; c++) {
+			names[c] = in.readUTF();
+		}
+
+		columns = Collections.unmodifiableList(Arrays.asList(names));
+		columnOffsets = new int[names.length];
+		values = new double[names.length][];
+
+		long position = headerLength, rows = 0;
+		long size = channel.size();
+
+		while(position + BLOCK_HEADER <= size) {
+			ByteBuffer blockHeader = read(position, BLOCK_HEADER);
+			int blockRows = blockHeader.getInt();
+			long firstTime = blockHeader.getLong(), lastTime = blockHeader.getLong();
+			int length = blockHeader.getInt();
+
+			if(blockRows <= 0 || length < 0) {
+				throw new IOException("Invalid block at " + position);
+			}
+
+			if(position + BLOCK_HEADER + length > size) {
+				break;
+			}
+
+			blocks.add(new Block(position + BLOCK_HEADER, length, rows, blockRows, firstTime, lastTime));
+			rows += blockRows;
+			position += BLOCK_HEADER + length;
+		}
+
+		rowCount = rows;
+	}
+
+	public static TrajectoryFile open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+
+		try {
+			return new TrajectoryFile(channel);
+		} catch(IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("The trajectory file ends early");
+			}
+		}
+
+		buffer.flip();
+		return buffer;
+	}
+
+	/** The names of the columns, the first of which is the time */
+	public List<String> getColumns() {
+		return columns;
+	}
+
+	/** @throws IllegalArgumentException if there is no column with the name */
+	public int findColumn(String name) {
+		int column = columns.indexOf(name);
+
+		if(column < 0) {
+			throw new IllegalArgumentException("No column found: " + name);
+		}
+
+		return column;
+	}
+
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	/** The time of the first row in nanoseconds, or zero if there are no rows */
+	public long getStartTime() {
+		return blocks.isEmpty() ? 0 : blocks.get(0).firstTime;
+	}
+
+	/** The time of the last row in nanoseconds, or zero if there are no rows */
+	public long getEndTime() {
+		return blocks.isEmpty() ? 0 : blocks.get(blocks.size() - 1).lastTime;
+	}
+
+	/**
+	 * @param time a time in nanoseconds
+	 * @return the last row at or before the time, or -1 if every row is after it
+	 */
+	public long findRow(long time) throws IOException {
+		// The last block that starts at or before the time
+		int low = 0, high = blocks.size() - 1, found = -1;
+		while(low <= high) {
+			int middle = (low + high) >>> 1;
+
+			if(blocks.get(middle).firstTime <= time) {
+				found = middle;
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+
+		if(found < 0) {
+			return -1;
+		}
+
+		Block block = blocks.get(found);
+		if(block.lastTime <= time) {
+			return block.firstRow + block.rows - 1;
+		}
+
+		load(block);
+		int row = Arrays.binarySearch(times, 0, block.rows, time);
+
+		return block.firstRow + (row >= 0 ? row : -row - 2);
+	}
+
+	/** The time of a row in nanoseconds */
+	public long getTime(long row) throws IOException {
+		int index = locate(row);
+		return times[index];
+	}
+
+	/**
+	 * @param column the index of the column in {@link #getColumns()}, the time column is read in seconds
+	 */
+	public double getValue(long row, int column) throws IOException {
+		int index = locate(row);
+
+		if(column == 0) {
+			return times[index] / 1e9;
+		}
+
+		return decoded(column)[index];
+	}
+
+	/** Reads every column of a row, with the time in seconds */
+	public void readRow(long row, double[] result) throws IOException {
+		int index = locate(row);
+
+		result[0] = times[index] / 1e9;
+		for(int c = 1; c < columns.size(); c++) {
+			result[c] = decoded(c)[index];
+		}
+	}
+
+	/** Loads the block holding a row, and returns the index of the row in it */
+	private int locate(long row) throws IOException {
+		if(row < 0 || row >= rowCount) {
+			throw new IndexOutOfBoundsException("Row " + row + " of " + rowCount);
+		}
+
+		Block block = loaded;
+		if(block == null || row < block.firstRow || row >= block.firstRow + block.rows) {
+			int low = 0, high = blocks.size() - 1;
+			while(low < high) {
+				int middle = (low + high + 1) >>> 1;
+
+				if(blocks.get(middle).firstRow <= row) {
+					low = middle;
+				} else {
+					high = middle - 1;
+				}
+			}
+
+			block = blocks.get(low);
+			load(block);
+		}
+
+		return (int) (row - block.firstRow);
+	}
+
+	private void load(Block block) throws IOException {
+		if(block == loaded) {
+			return;
+		}
+
+		data = channel.map(FileChannel.MapMode.READ_ONLY, block.offset, block.length);
+
+		int position = 0;
+		for(int c = 0; c < columns.size(); c++) {
+			columnOffsets[c] = position;
+			position += 1 + 4 + data.getInt(position + 1);
+		}
+
+		Arrays.fill(values, null);
+		times = decodeTimes(column(0), data.get(columnOffsets[0]), block.rows);
+		loaded = block;
+	}
+
+	/** The bytes of a column of the loaded block */
+	private ByteBuffer column(int column) {
+		ByteBuffer bytes = data.duplicate();
+		bytes.position(columnOffsets[column] + 5);
+		bytes.limit(bytes.position() + data.getInt(columnOffsets[column] + 1));
+
+		return bytes.slice();
+	}
+
+	private double[] decoded(int column) throws IOException {
+		if(values[column] == null) {
+			values[column] = decodeValues(column(column), data.get(columnOffsets[column]), loaded.rows);
+		}
+
+		return values[column];
+	}
+
+	private static long[] decodeTimes(ByteBuffer bytes, byte encoding, int rows) throws IOException {
+		long[] result = new long[rows];
+
+		switch(encoding) {
+			case ColumnarStateSink.RAW:
+				for(int i = 0; i < rows; i++) {
+					result[i] = bytes.getLong();
+				}
+
+				break;
+			case ColumnarStateSink.DELTA:
+				result[0] = bytes.getLong();
+
+				long step = 0;
+				for(int i = 1; i < rows; i++) {
+					long value = 0;
+					int shift = 0;
+					byte b;
+
+					do {
+						b = bytes.get();
+						value |= (long) (b & 0x7F) << shift;
+						shift += 7;
+					} while(b < 0);
+
+					step += (value >>> 1) ^ -(value & 1);
+					result[i] = result[i - 1] + step;
+				}
+
+				break;
+			default:
+				throw new IOException("Unknown encoding of the time column: " + encoding);
+		}
+
+		return result;
+	}
+
+	private static double[] decodeValues(ByteBuffer bytes, byte encoding, int rows) throws IOException {
+		double[] result = new double[rows];
+
+		switch(encoding) {
+			case ColumnarStateSink.RAW:
+				for(int i = 0; i < rows; i++) {
+					result[i] = bytes.getDouble();
+				}
+
+				break;
+			case ColumnarStateSink.XOR:
+				BitReader bits = new BitReader(bytes);
+
+				long previous = bits.read(64);
+				result[0] = Double.longBitsToDouble(previous);
+
+				int leading = 0, trailing = 0;
+				for(int i = 1; i < rows; i++) {
+					if(bits.read(1) != 0) {
+						if(bits.read(1) != 0) {
+							leading = (int) bits.read(5);
+							int meaningful = (int) bits.read(6) + 1;
+							trailing = 64 - leading - meaningful;
+						}
+
+						previous ^= bits.read(64 - leading - trailing) << trailing;
+					}
+
+					result[i] = Double.longBitsToDouble(previous);
+				}
+
+				break;
+			default:
+				throw new IOException("Unknown encoding of a value column: " + encoding);
+		}
+
+		return result;
+	}
+
+	/** Reads bits from the most significant end of each byte */
+	private static final class BitReader {
+		private final ByteBuffer bytes;
+		private int current = 0, available = 0;
+
+		BitReader(ByteBuffer bytes) {
+			this.bytes = bytes;
+		}
+
+		long read(int bits) {
+			long value = 0;
+
+			while(bits > 0) {
+				if(available == 0) {
+					current = bytes.get() & 0xFF;
+					available = 8;
+				}
+
+				int take = Math.min(bits, available);
+				value = (value << take) | ((current >>> (available - take)) & ((1 << take) - 1));
+				available -= take;
+				bits -= take;
+			}
+
+			return value;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,95 @@
+package brownshome.apss;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Converts a file written by {@link ColumnarStateSink} to CSV for use in a spreadsheet, with every column or the
+ * columns given. Values are written with as many digits as are needed to read back the same double. A range of times
+ * can be given, so that part of a long run can be looked at without converting all of it.
+ *
+ * Usage: TrajectoryToCsv trajectory csv [start (s)] [end (s)] [columns, comma separated]
+ */
+public class TrajectoryToCsv {
+	public static void main(String[] args) throws IOException {
+		if(args.length < 2) {
+			System.out.println("Usage: TrajectoryToCsv trajectory csv [start (s)] [end (s)] [columns, comma separated]");
+			return;
+		}
+
+		long start = System.nanoTime();
+
+		try(TrajectoryFile trajectory = TrajectoryFile.open(Paths.get(args[0]))) {
+			long startTime = args.length > 2 ? (long) (Double.parseDouble(args[2]) * 1e9) : Long.MIN_VALUE;
+			long endTime = args.length > 3 ? (long) (Double.parseDouble(args[3]) * 1e9) : Long.MAX_VALUE;
+
+			List<String> names = trajectory.getColumns();
+			int[] columns;
+
+			if(args.length > 4) {
+				String[] selected = args[4].split(",");
+				columns = new int[selected.length];
+
+				for(int i = 0; i < selected.length; i++) {
+					columns[i] = trajectory.findColumn(selected[i].trim());
+				}
+			} else {
+				columns = new int[names.size()];
+
+				for(int i = 0; i < columns.length; i++) {
+					columns[i] = i;
+				}
+			}
+
+			long rows = convert(trajectory, Paths.get(args[1]), columns, startTime, endTime);
+
+			System.out.printf("Wrote %d rows of %d columns to %s in %.2f s%n", rows, columns.length, args[1], (System.nanoTime() - start) / 1e9);
+		}
+	}
+
+	/**
+	 * Writes the rows between two times.
+	 *
+	 * @param columns the indices of the columns to write, in order
+	 * @param startTime the first time to write (ns), the row before it is written if there is no row at the time
+	 * @param endTime the last time to write (ns)
+	 * @return the number of rows written
+	 */
+	public static long convert(TrajectoryFile trajectory, Path file, int[] columns, long startTime, long endTime) throws IOException {
+		List<String> names = trajectory.getColumns();
+
+		try(Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			StringBuilder line = new StringBuilder();
+
+			for(int c = 0; c < columns.length; c++) {
+				line.append(c == 0 ? "\"" : ",\"").append(names.get(columns[c])).append('"');
+			}
+
+			writer.write(line.append('\n').toString());
+
+			long first = Math.max(0, trajectory.findRow(startTime));
+			long row = first;
+
+			for(; row < trajectory.getRowCount() && trajectory.getTime(row) <= endTime; row++) {
+				line.setLength(0);
+
+				for(int c = 0; c < columns.length; c++) {
+					if(c > 0) {
+						line.append(',');
+					}
+
+					line.append(trajectory.getValue(row, columns[c]));
+				}
+
+				writer.write(line.append('\n').toString());
+			}
+
+			return row - first;
+		}
+	}
+}
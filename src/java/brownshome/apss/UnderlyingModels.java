@@ -1,10 +1,10 @@
 package brownshome.apss;
 
-import java.io.IOException;
-import java.util.Arrays;
-
-import static java.lang.Math.atan2;
-import static java.lang.Math.sqrt;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.ConcurrentLinkedDeque;
 
 public class UnderlyingModels {
 	/** Radius of the earth (m)*/
@@ -20,94 +20,153 @@ public class UnderlyingModels {
 	/** Conductivity of aluminium (S/m)*/
 	public static final double  σAluminium = 3.50e7;
 
-	/** External program links */
-	private static final ExternalInterlink plasmaModel = new ExternalInterlink(Arrays.asList("python3", "getElectronDensity.py"));
+	/** The native library is loaded on first use, so that runs that do not need the field model do not need it */
+	private static final class NativeLibrary {
+		/**
+		 * Workspaces that are not in use. A call takes one, or allocates one if there are none free, and returns it
+		 * when it is done, so there are as many as there have been calls at once. The most recently returned one is
+		 * taken first, as it is the most likely to hold the coefficients for the date that is asked for.
+		 */
+		static final ConcurrentLinkedDeque<Long> WORKSPACES = new ConcurrentLinkedDeque<>();
+
+		static {
+			System.loadLibrary("library");
+			if(!initializeWMMData()) {
+				throw new OutOfMemoryError();
+			}
+		}
+
+		static long takeWorkspace() {
+			Long workspace = WORKSPACES.pollFirst();
+
+			if(workspace != null) {
+				return workspace;
+			}
+
+			long allocated = allocateWorkspace();
+			if(allocated == 0) {
+				throw new OutOfMemoryError("Unable to allocate a workspace for the field model");
+			}
 
-	static {
-		System.loadLibrary("library");
-		if(!initializeWMMData()) {
-			throw new OutOfMemoryError();
+			return allocated;
+		}
+
+		static void returnWorkspace(long workspace) {
+			WORKSPACES.offerFirst(workspace);
 		}
 	}
 	
+	/** The date that the field model is evaluated at when none is given */
+	private static final double DEFAULT_DECIMAL_YEAR = 2017.5;
+	/** The highest degree of the coefficients in WMM.COF */
+	public static final int WMM_DEGREE = 12;
+
 	/**
 	 * Calculates the field strength at 
 	 * @param position The position in R3 that the satellite is at.
 	 * @return The vector of the magnetic field in R3
 	 */
 	public static Vec3 getMagneticFieldStrength(Vec3 position) {
-		double longitude = getLongitude(position);
-		double latitude = getLatitude(position);
-		
-		Vec3 NED = getWMMData(latitude / Math.PI * 180, longitude / Math.PI * 180, position.length(), 2017.5).scale(1e-9);
-		
-		//y is up, x is right, z is forward. 0-longitude is (0, 0, -rE)
-		return translateNED(new Vec3(NED.y, NED.x, NED.z), latitude, longitude);
+		return getMagneticFieldStrength(position, DEFAULT_DECIMAL_YEAR);
 	}
 
-	private static double getLatitude(Vec3 position) {
-		return atan2(position.y, sqrt(position.x * position.x + position.z * position.z));
+	/**
+	 * Calculates the field strength at a date. The native library keeps the coefficients of the model for the last
+	 * date it was given, so calls for the same date as the previous call are cheaper.
+	 *
+	 * @param decimalYear the date, see {@link #toDecimalYear(Instant)}
+	 */
+	public static Vec3 getMagneticFieldStrength(Vec3 position, double decimalYear) {
+		return getMagneticFieldStrength(position, decimalYear, WMM_DEGREE);
 	}
 
-	private static double getLongitude(Vec3 position) {
-		return atan2(position.x, -position.z);
-	}
+	/**
+	 * Calculates the field strength using only the terms of the model up to a degree. The cost of the model grows with
+	 * the square of the degree.
+	 *
+	 * @param degree the highest degree to include, from 1 to {@link #WMM_DEGREE}
+	 */
+	public static Vec3 getMagneticFieldStrength(Vec3 position, double decimalYear, int degree) {
+		long workspace = NativeLibrary.takeWorkspace();
 
-	private static Vec3 translateNED(Vec3 ned, double latitude, double longitude) {
-		//rotate up by longitude
-		//rotate by latitude
-		
-		ned = ned.rotateX(latitude);
-		return ned.rotateY(longitude);
+		try {
+			return getMagneticField(workspace, position.x, position.y, position.z, decimalYear, degree);
+		} finally {
+			NativeLibrary.returnWorkspace(workspace);
+		}
 	}
 
 	/**
-	 * 
-	 * @param latitude degrees
-	 * @param longitude degrees
-	 * @param height m
-	 * @param time decimal year
-	 * @return A Vec3 representing the strength in (North, East Down)
+	 * Calculates the field strength at many positions with one call into the native library.
+	 *
+	 * @param positions the positions, packed as x, y, z triples
+	 * @param field the field at each position is written here as x, y, z triples. This may be the positions array.
+	 * @param count the number of positions
 	 */
-	private static native Vec3 getWMMData(double latitude, double longitude, double height, double time);
+	public static void getMagneticFieldStrength(double[] positions, double[] field, int count) {
+		getMagneticFieldStrength(positions, field, count, DEFAULT_DECIMAL_YEAR);
+	}
 
-	private static native boolean initializeWMMData();
-	
-	/** e per m3 */
-	public static double getPlasmaDensity(Vec3 position) {
-		// Year
-		plasmaModel.send(2013);
+	/** The batched form of {@link #getMagneticFieldStrength(Vec3, double)} */
+	public static void getMagneticFieldStrength(double[] positions, double[] field, int count, double decimalYear) {
+		getMagneticFieldStrength(positions, field, count, decimalYear, WMM_DEGREE);
+	}
 
-		// Month
-		plasmaModel.send(1);
+	/** The batched form of {@link #getMagneticFieldStrength(Vec3, double, int)} */
+	public static void getMagneticFieldStrength(double[] positions, double[] field, int count, double decimalYear, int degree) {
+		if(count < 0 || positions.length < count * 3 || field.length < count * 3) {
+			throw new IndexOutOfBoundsException("Arrays too short for " + count + " positions");
+		}
 
-		// Day
-		plasmaModel.send(1);
+		long workspace = NativeLibrary.takeWorkspace();
 
-		// Hour
-		plasmaModel.send(2);
+		try {
+			getMagneticFields(workspace, positions, field, count, decimalYear, degree);
+		} finally {
+			NativeLibrary.returnWorkspace(workspace);
+		}
+	}
 
-		// Minute
-		plasmaModel.send(30);
+	/** The date as a year and the fraction of that year that has passed, in UTC, as used by the field model */
+	public static double toDecimalYear(Instant instant) {
+		LocalDateTime date = LocalDateTime.ofInstant(instant, ZoneOffset.UTC);
+		LocalDateTime startOfYear = LocalDateTime.of(date.getYear(), 1, 1, 0, 0);
 
-		// Lat
-		plasmaModel.send(getLatitude(position));
+		long year = ChronoUnit.NANOS.between(startOfYear, startOfYear.plusYears(1));
 
-		// Long
-		plasmaModel.send(getLongitude(position));
+		return date.getYear() + ChronoUnit.NANOS.between(startOfYear, date) / (double) year;
+	}
 
-		// Altitude
-		plasmaModel.send((position.length() - rE) * 1e-3);
+	/**
+	 * @param workspace the memory to evaluate the model in, from {@link #allocateWorkspace()}. This must not be used by
+	 *                  another thread during the call, calls with different workspaces may run at the same time.
+	 * @param time decimal year
+	 * @param degree the highest degree of the terms to sum
+	 * @return the field (T) at a position (m), in the same frame as the position.
+	 */
+	private static native Vec3 getMagneticField(long workspace, double x, double y, double z, double time, int degree);
 
-		// shouldTerminate
-		plasmaModel.send(0);
+	/** The batched form of {@link #getMagneticField}, see {@link #getMagneticFieldStrength(double[], double[], int)} */
+	private static native void getMagneticFields(long workspace, double[] positions, double[] field, int count, double time, int degree);
 
-		try {
-			// Convert from m^-3 to cm^-3
-			return plasmaModel.readDouble() * 1e6;
-		} catch (IOException e1) {
-			throw new RuntimeException(e1);
-		}
+	/** @return a handle to the working memory of one evaluation of the model, or 0 if there is not enough memory */
+	private static native long allocateWorkspace();
+
+	private static native boolean initializeWMMData();
+	
+	/** e per m3, from the International Reference Ionosphere, see {@link IriPlasmaModel} */
+	public static double getPlasmaDensity(Vec3 position) {
+		return IriPlasmaModel.getInstance().getDensity(position);
+	}
+
+	/**
+	 * Finds the electron density at many positions with one round trip to the plasma model.
+	 *
+	 * @param positions the positions, packed as x, y, z triples
+	 * @param densities the density (e per m3) at each position is written here
+	 */
+	public static void getPlasmaDensity(double[] positions, double[] densities, int count) {
+		IriPlasmaModel.getInstance().getDensities(positions, densities, count);
 	}
 	
 	public static Vec3 getGravitationalAcceleration(Vec3 position) {
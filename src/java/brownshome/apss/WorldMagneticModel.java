@@ -0,0 +1,39 @@
+package brownshome.apss;
+
+/**
+ * The World Magnetic Model from WMM.COF, evaluated by the native library. The spherical harmonic sum can be cut off
+ * at a lower degree than the file holds, the cost of the model grows with the square of the degree.
+ */
+public final class WorldMagneticModel implements MagneticFieldModel {
+	public static final WorldMagneticModel FULL = new WorldMagneticModel(UnderlyingModels.WMM_DEGREE);
+
+	private final int degree;
+
+	/** @param degree the highest degree of the terms to include, from 1 to {@link UnderlyingModels#WMM_DEGREE} */
+	public WorldMagneticModel(int degree) {
+		if(degree < 1 || degree > UnderlyingModels.WMM_DEGREE) {
+			throw new IllegalArgumentException("The degree must be between 1 and " + UnderlyingModels.WMM_DEGREE);
+		}
+
+		this.degree = degree;
+	}
+
+	public int getDegree() {
+		return degree;
+	}
+
+	@Override
+	public Vec3 getFieldStrength(Vec3 position, double decimalYear) {
+		return UnderlyingModels.getMagneticFieldStrength(position, decimalYear, degree);
+	}
+
+	@Override
+	public String getName() {
+		return degree == UnderlyingModels.WMM_DEGREE ? "wmm" : "wmm:" + degree;
+	}
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+}
@@ -1,18 +1,63 @@
 #include <jni.h>
 #include <stdio.h>
+#include <stdlib.h>
+#include <stdint.h>
+#include <math.h>
 #include "GeomagnetismHeader.h"
 #include "EGM9615.h"
 
+/* Read once by initializeWMMData, and only read after that */
 MAGtype_Geoid Geoid;
 MAGtype_Ellipsoid Ellip;
-MAGtype_MagneticModel *MagneticModels[1], *TimedMagneticModel;
-MAGtype_LegendreFunction *LegendreFunction;
-MAGtype_SphericalHarmonicVariables *SphVariables;
+MAGtype_MagneticModel *MagneticModels[1];
+
+/*
+ * The memory that one evaluation of the model writes into. Each caller owns its workspaces, and a workspace must not
+ * be used by two threads at once. Nothing else is written during an evaluation, so calls with different workspaces
+ * may run at the same time.
+ */
+typedef struct {
+	MAGtype_MagneticModel *TimedMagneticModel; /* For storing the time modified WMM Model parameters */
+	MAGtype_LegendreFunction *LegendreFunction; /* For storing the ALF functions */
+	MAGtype_SphericalHarmonicVariables *SphVariables;
+
+	/* The decimal year that TimedMagneticModel was last modified for */
+	double ModelYear;
+} Workspace;
+
+/* M_PI is not part of standard C */
+static const double PI = 3.14159265358979323846;
+
+/* Looked up once when the library is loaded, rather than on every call */
+static jclass Vec3Class;
+static jmethodID Vec3Constructor;
+
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
+	JNIEnv *env;
+
+	if((*vm)->GetEnv(vm, (void **) &env, JNI_VERSION_1_6) != JNI_OK) {
+		return JNI_ERR;
+	}
+
+	jclass cls = (*env)->FindClass(env, "brownshome/apss/Vec3");
+	if(cls == NULL) {
+		return JNI_ERR;
+	}
+
+	Vec3Class = (*env)->NewGlobalRef(env, cls);
+	Vec3Constructor = (*env)->GetMethodID(env, cls, "<init>", "(DDD)V");
+	(*env)->DeleteLocalRef(env, cls);
+
+	if(Vec3Class == NULL || Vec3Constructor == NULL) {
+		return JNI_ERR;
+	}
+
+	return JNI_VERSION_1_6;
+}
 
 JNIEXPORT jboolean JNICALL Java_brownshome_apss_UnderlyingModels_initializeWMMData(JNIEnv *env, jclass class) {
 	int epochs = 1;
 	char filename[] = "WMM.COF";
-	int nMax = 0;
 
 	MAG_SetDefaults(&Ellip, &Geoid); /* Set default values and constants */
 
@@ -21,48 +66,145 @@ JNIEXPORT jboolean JNICALL Java_brownshome_apss_UnderlyingModels_initializeWMMDa
 		return JNI_FALSE;
 	}
 
-	if(nMax < MagneticModels[0]->nMax) {
-		nMax = MagneticModels[0]->nMax;
+	if(MagneticModels[0] == NULL) {
+		return JNI_FALSE;
 	}
 
+	return JNI_TRUE;
+}
+
+/* Returns a new workspace as a handle, or 0 if there is not enough memory */
+JNIEXPORT jlong JNICALL Java_brownshome_apss_UnderlyingModels_allocateWorkspace(JNIEnv *env, jclass thisClass) {
+	int nMax = MagneticModels[0]->nMax;
 	int NumTerms = ((nMax + 1) * (nMax + 2) / 2);
-	TimedMagneticModel = MAG_AllocateModelMemory(NumTerms); /* For storing the time modified WMM Model parameters */
-	LegendreFunction = MAG_AllocateLegendreFunctionMemory(NumTerms); /* For storing the ALF functions */
-	SphVariables = MAG_AllocateSphVarMemory(MagneticModels[0]->nMax);
 
-	if(MagneticModels[0] == NULL || TimedMagneticModel == NULL) {
-		return JNI_FALSE;
+	Workspace *workspace = malloc(sizeof(Workspace));
+	if(workspace == NULL) {
+		return 0;
 	}
 
-	return JNI_TRUE;
+	workspace->TimedMagneticModel = MAG_AllocateModelMemory(NumTerms);
+	workspace->LegendreFunction = MAG_AllocateLegendreFunctionMemory(NumTerms);
+	workspace->SphVariables = MAG_AllocateSphVarMemory(nMax);
+	workspace->ModelYear = NAN;
+
+	if(workspace->TimedMagneticModel == NULL || workspace->LegendreFunction == NULL || workspace->SphVariables == NULL) {
+		if(workspace->TimedMagneticModel != NULL) MAG_FreeMagneticModelMemory(workspace->TimedMagneticModel);
+		if(workspace->LegendreFunction != NULL) MAG_FreeLegendreMemory(workspace->LegendreFunction);
+		if(workspace->SphVariables != NULL) MAG_FreeSphVarMemory(workspace->SphVariables);
+		free(workspace);
+
+		return 0;
+	}
+
+	return (jlong) (intptr_t) workspace;
 }
 
-JNIEXPORT jobject JNICALL Java_brownshome_apss_UnderlyingModels_getWMMData(
-		JNIEnv *env, jclass thisClass, jdouble latitude,
-		jdouble longitude, jdouble height, jdouble time) {
+/* Modifies the coefficients for the date, if they were last modified for a different one */
+static void setModelYear(Workspace *workspace, double decimalYear) {
+	if(decimalYear != workspace->ModelYear) {
+		MAGtype_Date date;
+		date.DecimalYear = decimalYear;
 
-	MAGtype_CoordSpherical CoordSpherical;
-	CoordSpherical.lambda = longitude;
-	CoordSpherical.phig = latitude;
-	CoordSpherical.r = height / 1000.0;
+		MAG_TimelyModifyMagneticModel(date, MagneticModels[0], workspace->TimedMagneticModel);
+		workspace->ModelYear = decimalYear;
+	}
+}
+
+/* Limits a degree to those in the model file */
+static int clampDegree(int degree) {
+	if(degree > MagneticModels[0]->nMax) {
+		return MagneticModels[0]->nMax;
+	}
+
+	return degree < 1 ? 1 : degree;
+}
 
-	//Time input
-	MAGtype_Date date;
-	date.DecimalYear = time;
+/*
+ * Finds the field (T) at a position (m) in the simulation frame, where y is up, x is right and z is forward, and
+ * 0-longitude is (0, 0, -rE). Only the terms up to the given degree are summed. The result is written to field[0..2].
+ */
+static void fieldAt(Workspace *workspace, double x, double y, double z, int degree, double *field) {
+	MAGtype_MagneticModel *TimedMagneticModel = workspace->TimedMagneticModel;
 
-	MAG_TimelyModifyMagneticModel(date, MagneticModels[0], TimedMagneticModel);//
+	double latitude = atan2(y, sqrt(x * x + z * z));
+	double longitude = atan2(x, -z);
+
+	MAGtype_CoordSpherical CoordSpherical;
+	CoordSpherical.lambda = longitude / PI * 180;
+	CoordSpherical.phig = latitude / PI * 180;
+	CoordSpherical.r = sqrt(x * x + y * y + z * z) / 1000.0;
 
 	//Unrolled MAG_GeoMag()
 	MAGtype_MagneticResults MagneticResultsSph;
 
-	MAG_ComputeSphericalHarmonicVariables(Ellip, CoordSpherical, TimedMagneticModel->nMax, SphVariables); // Compute Spherical Harmonic variables
-	MAG_AssociatedLegendreFunction(CoordSpherical, TimedMagneticModel->nMax, LegendreFunction); // Compute ALF
-	MAG_Summation(LegendreFunction, TimedMagneticModel, *SphVariables, CoordSpherical, &MagneticResultsSph); // Accumulate the spherical harmonic coefficients
+	//The summation runs to the nMax of the model, the coefficients of the lower degrees do not depend on it
+	TimedMagneticModel->nMax = degree;
 
-	jclass cls = (*env)->FindClass(env, "brownshome/apss/Vec3");
-	jmethodID constructor = (*env)->GetMethodID(env, cls, "<init>", "(DDD)V");
-	jobject object = (*env)->NewObject(env, cls, constructor, MagneticResultsSph.Bx,
-			MagneticResultsSph.By, MagneticResultsSph.Bz);
+	MAG_ComputeSphericalHarmonicVariables(Ellip, CoordSpherical, TimedMagneticModel->nMax, workspace->SphVariables); // Compute Spherical Harmonic variables
+	MAG_AssociatedLegendreFunction(CoordSpherical, TimedMagneticModel->nMax, workspace->LegendreFunction); // Compute ALF
+	MAG_Summation(workspace->LegendreFunction, TimedMagneticModel, *workspace->SphVariables, CoordSpherical, &MagneticResultsSph); // Accumulate the spherical harmonic coefficients
+
+	//North, East, Down (nT) to east, north, down (T), then rotated by the latitude and then the longitude
+	double east = MagneticResultsSph.By * 1e-9;
+	double north = MagneticResultsSph.Bx * 1e-9;
+	double down = MagneticResultsSph.Bz * 1e-9;
+
+	double s = sin(latitude);
+	double c = cos(latitude);
+
+	double ry = north * c - down * s;
+	double rz = down * c + north * s;
+
+	s = sin(longitude);
+	c = cos(longitude);
+
+	field[0] = east * c - rz * s;
+	field[1] = ry;
+	field[2] = east * s + rz * c;
+}
+
+JNIEXPORT jobject JNICALL Java_brownshome_apss_UnderlyingModels_getMagneticField(
+		JNIEnv *env, jclass thisClass, jlong handle, jdouble x, jdouble y, jdouble z, jdouble time, jint degree) {
+
+	Workspace *workspace = (Workspace *) (intptr_t) handle;
+	double field[3];
+
+	setModelYear(workspace, time);
+	fieldAt(workspace, x, y, z, clampDegree(degree), field);
+
+	return (*env)->NewObject(env, Vec3Class, Vec3Constructor, field[0], field[1], field[2]);
+}
+
+JNIEXPORT void JNICALL Java_brownshome_apss_UnderlyingModels_getMagneticFields(
+		JNIEnv *env, jclass thisClass, jlong handle, jdoubleArray positionArray, jdoubleArray fieldArray, jint count, jdouble time, jint degree) {
+
+	Workspace *workspace = (Workspace *) (intptr_t) handle;
+
+	setModelYear(workspace, time);
+	degree = clampDegree(degree);
+
+	jboolean inPlace = (*env)->IsSameObject(env, positionArray, fieldArray);
+
+	/* No JNI calls may be made while these are held, and the model code makes none */
+	double *positions = (*env)->GetPrimitiveArrayCritical(env, positionArray, NULL);
+	double *fields = inPlace ? positions : (*env)->GetPrimitiveArrayCritical(env, fieldArray, NULL);
+
+	if(positions == NULL || fields == NULL) {
+		if(positions != NULL) {
+			(*env)->ReleasePrimitiveArrayCritical(env, positionArray, positions, JNI_ABORT);
+		}
+
+		return; /* An OutOfMemoryError is pending */
+	}
+
+	for(jint i = 0; i < count * 3; i += 3) {
+		fieldAt(workspace, positions[i], positions[i + 1], positions[i + 2], degree, fields + i);
+	}
+
+	if(!inPlace) {
+		(*env)->ReleasePrimitiveArrayCritical(env, fieldArray, fields, 0);
+	}
 
-	return object;
+	(*env)->ReleasePrimitiveArrayCritical(env, positionArray, positions, inPlace ? 0 : JNI_ABORT);
 }